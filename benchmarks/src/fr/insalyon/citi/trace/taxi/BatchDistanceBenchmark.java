@@ -0,0 +1,83 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the evaluation of a block of candidates one pair at a time (DistanceMetric.isInRange)
+ * and at once (BatchDistanceKernel, with and without the Vector API)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchDistanceBenchmark {
+
+    @Param({"CHORD", "EQUIRECTANGULAR"})
+    public DistanceMetric.Standard metric;
+
+    private double threshold;
+    private double[] query;
+    private double[] candidates;
+    private double[][] block;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        threshold = metric.threshold(250);
+        query = new double[DistanceMetric.CACHE_SIZE];
+        metric.prepare(31.2, 121.4, query, 0);
+        candidates = new double[BatchDistanceKernel.BLOCK_SIZE * DistanceMetric.CACHE_SIZE];
+        block = new double[DistanceMetric.CACHE_SIZE][BatchDistanceKernel.BLOCK_SIZE];
+        for (int i = 0; i < BatchDistanceKernel.BLOCK_SIZE; i++) {
+            metric.prepare(31.2 + (random.nextDouble() - 0.5) * 0.01, 121.4 + (random.nextDouble() - 0.5) * 0.01,
+                    candidates, i * DistanceMetric.CACHE_SIZE);
+            for (int k = 0; k < DistanceMetric.CACHE_SIZE; k++) block[k][i] = candidates[i * DistanceMetric.CACHE_SIZE + k];
+        }
+    }
+
+    @Benchmark
+    public long pairs() {
+        long mask = 0;
+        for (int i = 0; i < BatchDistanceKernel.BLOCK_SIZE; i++) {
+            if (metric.isInRange(candidates, i * DistanceMetric.CACHE_SIZE, query, 0, threshold)) mask |= 1L << i;
+        }
+        return mask;
+    }
+
+    @Benchmark
+    public long batchScalar() {
+        BatchDistanceKernel.VECTORIZED = false;
+        return BatchDistanceKernel.inRange(metric, query, block[0], block[1], block[2], BatchDistanceKernel.BLOCK_SIZE, threshold);
+    }
+
+    @Benchmark
+    public long batchVector() {
+        BatchDistanceKernel.VECTORIZED = true;
+        return BatchDistanceKernel.inRange(metric, query, block[0], block[1], block[2], BatchDistanceKernel.BLOCK_SIZE, threshold);
+    }
+}
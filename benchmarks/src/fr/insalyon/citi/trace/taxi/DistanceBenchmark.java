@@ -0,0 +1,70 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the three GPS distance implementations of Coordinate
+ * on consecutive coordinates (in time order) of the example trace
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DistanceBenchmark {
+
+    private static final int LENGTH = 1024;
+
+    private Coordinate[] coordinates;
+
+    @Setup
+    public void setup() throws Exception {
+        Trace.VERBOSE = false;
+        CoordinateStore taxiCoordinates = Trace.fromDirectory(new File(GenerateBenchmark.EXAMPLE)).getTaxiCoordinates();
+        coordinates = new Coordinate[LENGTH + 1];
+        for (int i = 0; i <= LENGTH; i++) coordinates[i] = taxiCoordinates.getCoordinate(i);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LENGTH)
+    public void distanceGeometric(Blackhole blackhole) {
+        for (int i = 0; i < LENGTH; i++) blackhole.consume(coordinates[i].distanceGeometric(coordinates[i + 1]));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LENGTH)
+    public void distanceHaversine(Blackhole blackhole) {
+        for (int i = 0; i < LENGTH; i++) blackhole.consume(coordinates[i].distanceHaversine(coordinates[i + 1]));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LENGTH)
+    public void distanceVincenty(Blackhole blackhole) {
+        for (int i = 0; i < LENGTH; i++) blackhole.consume(coordinates[i].distanceVincenty(coordinates[i + 1]));
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the contact trace generation engines
+ * on the example trace or on synthetic traces of a given fleet size,
+ * for several contact distance and time ranges
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class GenerateBenchmark {
+
+    public static final String EXAMPLE = "tests/shanghai-taxi-070218-example";
+    public static final int SYNTHETIC_DURATION = 1800; // seconds
+
+    @Param({"example", "100", "1000"})
+    public String fleet;
+
+    @Param({"250"})
+    public double distanceRange;
+
+    @Param({"30"})
+    public long timeRange;
+
+    private CoordinateStore taxiCoordinates;
+
+    @Setup
+    public void setup() throws Exception {
+        Trace.VERBOSE = false;
+        Trace.DISTANCE_RANGE = distanceRange;
+        Trace.TIME_RANGE = timeRange;
+        if (fleet.equals("example")) taxiCoordinates = Trace.fromDirectory(new File(EXAMPLE)).getTaxiCoordinates();
+        else taxiCoordinates = new SyntheticTraceGenerator().setFleetSize(Integer.parseInt(fleet))
+                .setDuration(SYNTHETIC_DURATION).generate();
+    }
+
+    @Benchmark
+    public ContactBuffer generateSingleThread() {
+        Trace trace = new Trace(taxiCoordinates);
+        trace.generateSingleThread();
+        return trace.getTaxiContacts();
+    }
+
+    @Benchmark
+    public ContactBuffer generateMultiThread() {
+        Trace trace = new Trace(taxiCoordinates);
+        trace.generateMultiThread();
+        return trace.getTaxiContacts();
+    }
+
+    @Benchmark
+    public ContactBuffer generateGrid() {
+        Trace trace = new Trace(taxiCoordinates);
+        trace.generateGrid();
+        return trace.getTaxiContacts();
+    }
+}
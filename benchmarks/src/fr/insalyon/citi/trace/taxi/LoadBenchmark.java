@@ -0,0 +1,77 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the parsing throughput of Trace.fromFile,
+ * on the example trace concatenated into a single file or on a synthetic trace
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoadBenchmark {
+
+    @Param({"example", "synthetic"})
+    public String source;
+
+    private File file;
+
+    @Setup
+    public void setup() throws IOException {
+        Trace.VERBOSE = false;
+        file = File.createTempFile("taxi-trace-", ".txt");
+        file.deleteOnExit();
+        File dir = new File(GenerateBenchmark.EXAMPLE);
+        if (source.equals("synthetic")) {
+            dir = Files.createTempDirectory("taxi-trace-").toFile();
+            new SyntheticTraceGenerator().setFleetSize(1000).setDuration(3600).write(dir);
+        }
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (File taxiFile : TraceReader.listFiles(dir)) Files.copy(taxiFile.toPath(), out);
+        }
+        if (source.equals("synthetic")) {
+            for (File taxiFile : TraceReader.listFiles(dir)) taxiFile.delete();
+            dir.delete();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public Trace fromFile() throws Exception {
+        return Trace.fromFile(file);
+    }
+}
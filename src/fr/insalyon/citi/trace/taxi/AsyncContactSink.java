@@ -0,0 +1,179 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gives the contacts to another sink from a dedicated thread, through a bounded queue of contact batches
+ *
+ * The contacts keep their order and orientation. When the queue is full, add waits for the thread
+ * to drain a batch (backpressure), so the memory is bounded by the queue length.
+ */
+public class AsyncContactSink implements ContactSink, Closeable {
+
+    public static final int BATCH_SIZE = 4096; // contacts
+    public static final int DEFAULT_QUEUE_LENGTH = 16; // batches
+
+    private static final Batch END = new Batch(0);
+
+    private BlockingQueue<Batch> queue;
+    private Batch batch;
+    private Thread thread;
+    private volatile Throwable failure;
+    private long writeNanos;
+    private long waitNanos;
+
+    /**
+     * Starts the thread giving the contacts to the sink
+     *
+     * @param sink the sink, only called from the thread
+     * @param queueLength the highest number of batches waiting in the queue
+     */
+    public AsyncContactSink(final ContactSink sink, int queueLength) {
+        this.queue = new ArrayBlockingQueue<>(queueLength);
+        this.batch = new Batch(BATCH_SIZE);
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (Batch taken = queue.take(); taken != END; taken = queue.take()) {
+                        long start = System.nanoTime();
+                        for (int i = 0; i < taken.size; i++) {
+                            sink.add(taken.taxis1[i], taken.taxis2[i], taken.starts[i], taken.stops[i]);
+                        }
+                        writeNanos += System.nanoTime() - start;
+                    }
+                } catch (Throwable e) {
+                    failure = e;
+                    queue.clear(); // unblocks add, which then reports the failure
+                }
+            }
+        }, "contact-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Adds a contact to the current batch, queued once full
+     *
+     * @throws UncheckedIOException if the sink failed, or if interrupted
+     */
+    @Override
+    public void add(int taxi1, int taxi2, long start, long stop) {
+        batch.taxis1[batch.size] = taxi1;
+        batch.taxis2[batch.size] = taxi2;
+        batch.starts[batch.size] = start;
+        batch.stops[batch.size] = stop;
+        if (++batch.size == BATCH_SIZE) {
+            try {
+                put(batch);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            batch = new Batch(BATCH_SIZE);
+        }
+    }
+
+    /**
+     * Queues the last batch and waits for the thread to give all the contacts to the sink
+     *
+     * @throws IOException if the sink failed
+     */
+    @Override
+    public void close() throws IOException {
+        if (batch.size > 0) put(batch);
+        batch = new Batch(BATCH_SIZE);
+        put(END);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("contact writer interrupted");
+        }
+        checkFailure();
+    }
+
+    /**
+     * Gets the time spent by the thread in the sink
+     *
+     * @return the time in nanoseconds
+     */
+    public long getWriteNanos() {
+        return writeNanos;
+    }
+
+    /**
+     * Gets the time add waited for the queue
+     *
+     * @return the time in nanoseconds
+     */
+    public long getWaitNanos() {
+        return waitNanos;
+    }
+
+    private void put(Batch full) throws IOException {
+        checkFailure();
+        long start = System.nanoTime();
+        try {
+            while (!queue.offer(full, 100, TimeUnit.MILLISECONDS)) checkFailure();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("contact writer interrupted");
+        } finally {
+            waitNanos += System.nanoTime() - start;
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        Throwable e = failure;
+        if (e == null) return;
+        if (e instanceof UncheckedIOException) throw ((UncheckedIOException) e).getCause();
+        if (e instanceof IOException) throw (IOException) e;
+        if (e instanceof RuntimeException) throw (RuntimeException) e;
+        if (e instanceof Error) throw (Error) e;
+        throw new IOException(e);
+    }
+
+    /**
+     * Contacts of a batch, as primitive columns
+     */
+    private static class Batch {
+        int[] taxis1;
+        int[] taxis2;
+        long[] starts;
+        long[] stops;
+        int size;
+
+        Batch(int capacity) {
+            taxis1 = new int[capacity];
+            taxis2 = new int[capacity];
+            starts = new long[capacity];
+            stops = new long[capacity];
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+/**
+ * Checks the distance between one query coordinate and a block of candidate coordinates at once
+ *
+ * The block is given as the cached values of the distance metric (see DistanceMetric.prepare),
+ * one array per cached value, and the result is a bitmask of the candidates in range.
+ * The block is evaluated with the Vector API (jdk.incubator.vector) when the module is available
+ * (java --add-modules jdk.incubator.vector), and with the same scalar operations otherwise:
+ * both give exactly the same result as DistanceMetric.isInRange.
+ * Only the metrics without any trigonometry per pair (CHORD and EQUIRECTANGULAR) are supported.
+ */
+public class BatchDistanceKernel {
+
+    public static final int BLOCK_SIZE = 64; // candidates per bitmask
+
+    public static boolean VECTORIZED = isVectorApiAvailable();
+
+    /**
+     * Checks that a metric can be evaluated by blocks
+     *
+     * @param metric the distance metric
+     * @return a boolean
+     */
+    public static boolean supports(DistanceMetric metric) {
+        return metric == DistanceMetric.Standard.CHORD || metric == DistanceMetric.Standard.EQUIRECTANGULAR;
+    }
+
+    /**
+     * Checks which candidates of a block are in range of the query
+     *
+     * @param metric the distance metric (CHORD or EQUIRECTANGULAR)
+     * @param query the cached values of the query coordinate
+     * @param values0 the first cached value of the candidates
+     * @param values1 the second cached value of the candidates
+     * @param values2 the third cached value of the candidates
+     * @param length the number of candidates (at most BLOCK_SIZE)
+     * @param threshold the threshold of the metric
+     * @return the bitmask of the candidates in range (bit i for the candidate i)
+     */
+    public static long inRange(DistanceMetric metric, double[] query,
+                               double[] values0, double[] values1, double[] values2, int length, double threshold) {
+        boolean chord = metric == DistanceMetric.Standard.CHORD;
+        if (VECTORIZED) return VectorDistanceKernel.inRange(chord, query, values0, values1, values2, length, threshold);
+        return inRange(chord, query, values0, values1, values2, 0, length, threshold);
+    }
+
+    /**
+     * Scalar evaluation of a part of a block
+     *
+     * @param from the first candidate to check
+     * @param to the candidate following the last one to check
+     */
+    static long inRange(boolean chord, double[] query,
+                        double[] values0, double[] values1, double[] values2, int from, int to, double threshold) {
+        long mask = 0;
+        for (int i = from; i < to; i++) {
+            double d0 = values0[i] - query[0];
+            double d1 = values1[i] - query[1];
+            double value;
+            if (chord) {
+                double d2 = values2[i] - query[2];
+                value = d0 * d0 + d1 * d1 + d2 * d2;
+            } else {
+                value = d0 * d0 + values2[i] * query[2] * d1 * d1;
+            }
+            if (value <= threshold) mask |= 1L << i;
+        }
+        return mask;
+    }
+
+    private static boolean isVectorApiAvailable() {
+        try {
+            Class.forName("jdk.incubator.vector.DoubleVector");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+}
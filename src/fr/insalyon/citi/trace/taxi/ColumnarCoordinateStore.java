@@ -0,0 +1,305 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import java.util.Arrays;
+
+/**
+ * Stores the taxi coordinates as parallel primitive arrays
+ *
+ * Coordinates are first appended in any order, then sorted once in time order.
+ * Speed, direction and status are packed in a single int (12 bits, 12 bits, 8 bits),
+ * the values out of these ranges being clamped (the contact generation never reads them,
+ * TraceReader counts the clamped records).
+ */
+public class ColumnarCoordinateStore implements CoordinateStore {
+
+    public static final int BYTES_PER_RECORD = 8 + 4 + 8 + 8 + 4;
+
+    private static final int SPEED_BITS = 12;
+    private static final int DIRECTION_BITS = 12;
+    private static final int STATUS_BITS = 8;
+
+    private long[] taxiTimestamps;
+    private int[] taxiNumbers;
+    private double[] taxiLongitudes;
+    private double[] taxiLatitudes;
+    private int[] taxiStates;
+    private int size;
+
+    public ColumnarCoordinateStore() {
+        this(1024);
+    }
+
+    public ColumnarCoordinateStore(int capacity) {
+        this.taxiTimestamps = new long[capacity];
+        this.taxiNumbers = new int[capacity];
+        this.taxiLongitudes = new double[capacity];
+        this.taxiLatitudes = new double[capacity];
+        this.taxiStates = new int[capacity];
+        this.size = 0;
+    }
+
+    /**
+     * Appends a coordinate at the end of the store (sort() has to be called before any lookup)
+     *
+     * @param taxiNumber the id of a taxi
+     * @param taxiTimestamp the timestamp in seconds since the epoch
+     * @param taxiLongitude the longitude in degrees
+     * @param taxiLatitude the latitude in degrees
+     * @param taxiSpeed the speed (clamped from 0 to 4095)
+     * @param taxiDirection the direction degree (clamped from 0 to 4095)
+     * @param taxiStatus the status (clamped from 0 to 255)
+     */
+    public void add(int taxiNumber, long taxiTimestamp, double taxiLongitude, double taxiLatitude,
+                    int taxiSpeed, int taxiDirection, int taxiStatus) {
+        if (size == taxiTimestamps.length) grow(size + 1);
+        taxiTimestamps[size] = taxiTimestamp;
+        taxiNumbers[size] = taxiNumber;
+        taxiLongitudes[size] = taxiLongitude;
+        taxiLatitudes[size] = taxiLatitude;
+        taxiStates[size] = pack(taxiSpeed, taxiDirection, taxiStatus);
+        size++;
+    }
+
+    /**
+     * Appends all the coordinates of another store at the end of the store
+     *
+     * @param store the other store
+     */
+    public void addAll(ColumnarCoordinateStore store) {
+        addAll(store, 0, store.size);
+    }
+
+    /**
+     * Appends a range of the coordinates of another store at the end of the store
+     *
+     * @param store the other store
+     * @param from the index of the first coordinate to append
+     * @param length the number of coordinates to append
+     */
+    public void addAll(ColumnarCoordinateStore store, int from, int length) {
+        if (size + length > taxiTimestamps.length) grow(size + length);
+        System.arraycopy(store.taxiTimestamps, from, taxiTimestamps, size, length);
+        System.arraycopy(store.taxiNumbers, from, taxiNumbers, size, length);
+        System.arraycopy(store.taxiLongitudes, from, taxiLongitudes, size, length);
+        System.arraycopy(store.taxiLatitudes, from, taxiLatitudes, size, length);
+        System.arraycopy(store.taxiStates, from, taxiStates, size, length);
+        size += length;
+    }
+
+    /**
+     * Removes all the coordinates (the arrays are kept for the next ones)
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Sorts the coordinates in time order and trims the arrays
+     *
+     * As in a TreeMap, when two coordinates have the same id, only the last added one is kept.
+     */
+    public void sort() {
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) order[i] = i;
+        sort(order, 0, size);
+        int length = 0;
+        for (int i = 0; i < size; i++) {
+            if (i + 1 < size
+                    && taxiTimestamps[order[i]] == taxiTimestamps[order[i + 1]]
+                    && taxiNumbers[order[i]] == taxiNumbers[order[i + 1]]) continue;
+            order[length++] = order[i];
+        }
+        long[] sortedTimestamps = new long[length];
+        int[] sortedNumbers = new int[length];
+        double[] sortedLongitudes = new double[length];
+        double[] sortedLatitudes = new double[length];
+        int[] sortedStates = new int[length];
+        for (int i = 0; i < length; i++) {
+            sortedTimestamps[i] = taxiTimestamps[order[i]];
+            sortedNumbers[i] = taxiNumbers[order[i]];
+            sortedLongitudes[i] = taxiLongitudes[order[i]];
+            sortedLatitudes[i] = taxiLatitudes[order[i]];
+            sortedStates[i] = taxiStates[order[i]];
+        }
+        taxiTimestamps = sortedTimestamps;
+        taxiNumbers = sortedNumbers;
+        taxiLongitudes = sortedLongitudes;
+        taxiLatitudes = sortedLatitudes;
+        taxiStates = sortedStates;
+        size = length;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int getTaxiNumber(int index) {
+        return taxiNumbers[index];
+    }
+
+    @Override
+    public long getTaxiTimestamp(int index) {
+        return taxiTimestamps[index];
+    }
+
+    @Override
+    public double getTaxiLongitude(int index) {
+        return taxiLongitudes[index];
+    }
+
+    @Override
+    public double getTaxiLatitude(int index) {
+        return taxiLatitudes[index];
+    }
+
+    @Override
+    public int getTaxiSpeed(int index) {
+        return unpackSpeed(taxiStates[index]);
+    }
+
+    @Override
+    public int getTaxiDirection(int index) {
+        return unpackDirection(taxiStates[index]);
+    }
+
+    @Override
+    public int getTaxiStatus(int index) {
+        return unpackStatus(taxiStates[index]);
+    }
+
+    @Override
+    public long getMemorySize() {
+        return (long) taxiTimestamps.length * BYTES_PER_RECORD;
+    }
+
+    /**
+     * Packs the speed, the direction and the status of a coordinate into an int
+     *
+     * @param taxiSpeed the speed (clamped from 0 to 4095)
+     * @param taxiDirection the direction degree (clamped from 0 to 4095)
+     * @param taxiStatus the status (clamped from 0 to 255)
+     * @return the packed state
+     */
+    static int pack(int taxiSpeed, int taxiDirection, int taxiStatus) {
+        return (clamp(taxiSpeed, SPEED_BITS) << (DIRECTION_BITS + STATUS_BITS))
+                | (clamp(taxiDirection, DIRECTION_BITS) << STATUS_BITS) | clamp(taxiStatus, STATUS_BITS);
+    }
+
+    /**
+     * Tells whether the speed, the direction and the status of a coordinate can be packed without clamping
+     *
+     * @param taxiSpeed the speed
+     * @param taxiDirection the direction degree
+     * @param taxiStatus the status
+     * @return true if they are all in range
+     */
+    static boolean fits(int taxiSpeed, int taxiDirection, int taxiStatus) {
+        return clamp(taxiSpeed, SPEED_BITS) == taxiSpeed && clamp(taxiDirection, DIRECTION_BITS) == taxiDirection
+                && clamp(taxiStatus, STATUS_BITS) == taxiStatus;
+    }
+
+    private static int clamp(int value, int bits) {
+        return Math.max(0, Math.min(value, (1 << bits) - 1));
+    }
+
+    static int unpackSpeed(int taxiState) {
+        return taxiState >>> (DIRECTION_BITS + STATUS_BITS);
+    }
+
+    static int unpackDirection(int taxiState) {
+        return (taxiState >>> STATUS_BITS) & ((1 << DIRECTION_BITS) - 1);
+    }
+
+    static int unpackStatus(int taxiState) {
+        return taxiState & ((1 << STATUS_BITS) - 1);
+    }
+
+    private void grow(int minCapacity) {
+        int capacity = Math.max(minCapacity, taxiTimestamps.length + (taxiTimestamps.length >> 1) + 16);
+        taxiTimestamps = Arrays.copyOf(taxiTimestamps, capacity);
+        taxiNumbers = Arrays.copyOf(taxiNumbers, capacity);
+        taxiLongitudes = Arrays.copyOf(taxiLongitudes, capacity);
+        taxiLatitudes = Arrays.copyOf(taxiLatitudes, capacity);
+        taxiStates = Arrays.copyOf(taxiStates, capacity);
+    }
+
+    /**
+     * Orders two appended coordinates
+     * first according to the time criterion
+     * then according to the taxi id
+     * then according to the insertion order
+     */
+    private int compare(int i, int j) {
+        if (taxiTimestamps[i] < taxiTimestamps[j]) return -1;
+        if (taxiTimestamps[i] > taxiTimestamps[j]) return 1;
+        if (taxiNumbers[i] < taxiNumbers[j]) return -1;
+        if (taxiNumbers[i] > taxiNumbers[j]) return 1;
+        return Integer.compare(i, j);
+    }
+
+    /**
+     * Sorts a range of the permutation (quicksort with a median of three pivot,
+     * insertion sort on small ranges)
+     */
+    private void sort(int[] order, int from, int to) {
+        while (to - from > 16) {
+            int middle = (from + to) >>> 1;
+            if (compare(order[middle], order[from]) < 0) swap(order, middle, from);
+            if (compare(order[to - 1], order[from]) < 0) swap(order, to - 1, from);
+            if (compare(order[to - 1], order[middle]) < 0) swap(order, to - 1, middle);
+            int pivot = order[middle];
+            int i = from;
+            int j = to - 1;
+            while (i <= j) {
+                while (compare(order[i], pivot) < 0) i++;
+                while (compare(order[j], pivot) > 0) j--;
+                if (i <= j) swap(order, i++, j--);
+            }
+            // recurses on the smallest part to bound the stack depth
+            if (j - from < to - i) {
+                sort(order, from, j + 1);
+                from = i;
+            } else {
+                sort(order, i, to);
+                to = j + 1;
+            }
+        }
+        for (int i = from + 1; i < to; i++) {
+            int value = order[i];
+            int j = i - 1;
+            while (j >= from && compare(order[j], value) > 0) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = value;
+        }
+    }
+
+    private static void swap(int[] order, int i, int j) {
+        int value = order[i];
+        order[i] = order[j];
+        order[j] = value;
+    }
+}
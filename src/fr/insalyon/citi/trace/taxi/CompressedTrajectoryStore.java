@@ -0,0 +1,511 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the taxi trajectories in memory as compressed per-taxi blocks of coordinates
+ *
+ * The coordinates of each taxi are cut into blocks of at most BLOCK_LENGTH coordinates in time order.
+ * A block is encoded as varints: the time deltas, the zigzag deltas of the latitudes and longitudes
+ * scaled to integers (1e-6 or 1e-7 degrees, only when the scaling is lossless, raw doubles otherwise)
+ * and the zigzag deltas of the speeds and directions, with the statuses.
+ * The block headers (taxi, length, first and last timestamps, bounding box) are kept in primitive arrays,
+ * so the blocks out of a period are skipped without being decoded. A block is decoded into reusable
+ * primitive arrays (see Block); the decoded coordinates are exactly the original ones.
+ */
+public class CompressedTrajectoryStore {
+
+    public static final int BLOCK_LENGTH = 128;
+
+    private static final double[] SCALES = {1e6, 1e7};
+    private static final int RAW = SCALES.length; // scale index of the blocks of raw doubles
+    private static final int PAGE_SIZE = 1 << 20; // bytes, a block never spans two pages
+    private static final int MAX_BLOCK_SIZE = BLOCK_LENGTH * (10 + 10 + 10 + 5 + 5 + 5); // longest varints
+
+    private int size;
+    private int nbBlocks;
+    private int[] taxis;
+    private int[] lengths;
+    private byte[] scales;
+    private long[] offsets;
+    private long[] firstTimestamps;
+    private long[] lastTimestamps;
+    private double[] minLatitudes;
+    private double[] maxLatitudes;
+    private double[] minLongitudes;
+    private double[] maxLongitudes;
+    private List<byte[]> pages;
+    private int pageLength;
+    private long encodedSize;
+
+    /**
+     * Compresses the coordinates of a store
+     *
+     * @param taxiCoordinates the taxi coordinates in time order, without two coordinates of the same id
+     */
+    public CompressedTrajectoryStore(CoordinateStore taxiCoordinates) {
+        this.size = taxiCoordinates.size();
+        this.nbBlocks = 0;
+        int capacity = 16;
+        this.taxis = new int[capacity];
+        this.lengths = new int[capacity];
+        this.scales = new byte[capacity];
+        this.offsets = new long[capacity];
+        this.firstTimestamps = new long[capacity];
+        this.lastTimestamps = new long[capacity];
+        this.minLatitudes = new double[capacity];
+        this.maxLatitudes = new double[capacity];
+        this.minLongitudes = new double[capacity];
+        this.maxLongitudes = new double[capacity];
+        this.pages = new ArrayList<>();
+        this.pageLength = PAGE_SIZE;
+        int[] byTaxi = sortByTaxi(taxiCoordinates);
+        Block block = new Block();
+        for (int i = 0; i < size; ) {
+            block.taxi = taxiCoordinates.getTaxiNumber(byTaxi[i]);
+            block.length = 0;
+            for (; i < size && block.length < BLOCK_LENGTH && taxiCoordinates.getTaxiNumber(byTaxi[i]) == block.taxi; i++) {
+                int index = byTaxi[i];
+                block.timestamps[block.length] = taxiCoordinates.getTaxiTimestamp(index);
+                block.latitudes[block.length] = taxiCoordinates.getTaxiLatitude(index);
+                block.longitudes[block.length] = taxiCoordinates.getTaxiLongitude(index);
+                block.speeds[block.length] = taxiCoordinates.getTaxiSpeed(index);
+                block.directions[block.length] = taxiCoordinates.getTaxiDirection(index);
+                block.statuses[block.length] = taxiCoordinates.getTaxiStatus(index);
+                block.length++;
+            }
+            encode(block);
+        }
+        trim();
+    }
+
+    /**
+     * Sorts the coordinate indexes by taxi, keeping the time order of the coordinates of each taxi
+     */
+    private static int[] sortByTaxi(CoordinateStore taxiCoordinates) {
+        int size = taxiCoordinates.size();
+        int[] taxiNumbers = new int[size];
+        for (int i = 0; i < size; i++) taxiNumbers[i] = taxiCoordinates.getTaxiNumber(i);
+        int[] sortedNumbers = taxiNumbers.clone();
+        Arrays.sort(sortedNumbers);
+        int nbTaxis = 0;
+        for (int i = 0; i < sortedNumbers.length; i++) {
+            if (nbTaxis == 0 || sortedNumbers[i] != sortedNumbers[nbTaxis - 1]) sortedNumbers[nbTaxis++] = sortedNumbers[i];
+        }
+        // counting sort on the taxi rank, stable so the time order is kept
+        int[] starts = new int[nbTaxis + 1];
+        int[] ranks = new int[size];
+        for (int i = 0; i < size; i++) {
+            ranks[i] = Arrays.binarySearch(sortedNumbers, 0, nbTaxis, taxiNumbers[i]);
+            starts[ranks[i] + 1]++;
+        }
+        for (int i = 0; i < nbTaxis; i++) starts[i + 1] += starts[i];
+        int[] sorted = new int[size];
+        for (int i = 0; i < size; i++) sorted[starts[ranks[i]]++] = i;
+        return sorted;
+    }
+
+    private void encode(Block block) {
+        if (nbBlocks == taxis.length) growBlocks();
+        int scale = scale(block);
+        if (pageLength + MAX_BLOCK_SIZE > PAGE_SIZE) {
+            pages.add(new byte[PAGE_SIZE]);
+            pageLength = 0;
+        }
+        byte[] page = pages.get(pages.size() - 1);
+        offsets[nbBlocks] = (long) (pages.size() - 1) * PAGE_SIZE + pageLength;
+        taxis[nbBlocks] = block.taxi;
+        lengths[nbBlocks] = block.length;
+        scales[nbBlocks] = (byte) scale;
+        firstTimestamps[nbBlocks] = block.timestamps[0];
+        lastTimestamps[nbBlocks] = block.timestamps[block.length - 1];
+        double minLatitude = Double.POSITIVE_INFINITY;
+        double maxLatitude = Double.NEGATIVE_INFINITY;
+        double minLongitude = Double.POSITIVE_INFINITY;
+        double maxLongitude = Double.NEGATIVE_INFINITY;
+        int position = pageLength;
+        long timestamp = block.timestamps[0];
+        long latitude = 0;
+        long longitude = 0;
+        int speed = 0;
+        int direction = 0;
+        for (int i = 0; i < block.length; i++) {
+            minLatitude = Math.min(minLatitude, block.latitudes[i]);
+            maxLatitude = Math.max(maxLatitude, block.latitudes[i]);
+            minLongitude = Math.min(minLongitude, block.longitudes[i]);
+            maxLongitude = Math.max(maxLongitude, block.longitudes[i]);
+            position = putVarint(page, position, block.timestamps[i] - timestamp);
+            timestamp = block.timestamps[i];
+            if (scale == RAW) {
+                position = putRaw(page, position, Double.doubleToRawLongBits(block.latitudes[i]));
+                position = putRaw(page, position, Double.doubleToRawLongBits(block.longitudes[i]));
+            } else {
+                long scaledLatitude = Math.round(block.latitudes[i] * SCALES[scale]);
+                long scaledLongitude = Math.round(block.longitudes[i] * SCALES[scale]);
+                position = putVarint(page, position, zigzag(scaledLatitude - latitude));
+                position = putVarint(page, position, zigzag(scaledLongitude - longitude));
+                latitude = scaledLatitude;
+                longitude = scaledLongitude;
+            }
+            position = putVarint(page, position, zigzag(block.speeds[i] - speed));
+            position = putVarint(page, position, zigzag(block.directions[i] - direction));
+            position = putVarint(page, position, block.statuses[i]);
+            speed = block.speeds[i];
+            direction = block.directions[i];
+        }
+        minLatitudes[nbBlocks] = minLatitude;
+        maxLatitudes[nbBlocks] = maxLatitude;
+        minLongitudes[nbBlocks] = minLongitude;
+        maxLongitudes[nbBlocks] = maxLongitude;
+        encodedSize += position - pageLength;
+        pageLength = position;
+        nbBlocks++;
+    }
+
+    /**
+     * Finds the first scale giving back exactly all the latitudes and longitudes of a block
+     */
+    private static int scale(Block block) {
+        for (int scale = 0; scale < SCALES.length; scale++) {
+            boolean lossless = true;
+            for (int i = 0; lossless && i < block.length; i++) {
+                lossless = isLossless(block.latitudes[i], SCALES[scale]) && isLossless(block.longitudes[i], SCALES[scale]);
+            }
+            if (lossless) return scale;
+        }
+        return RAW;
+    }
+
+    private static boolean isLossless(double value, double scale) {
+        double scaled = Math.rint(value * scale);
+        return Math.abs(scaled) < (1L << 52) && scaled / scale == value;
+    }
+
+    /**
+     * Decodes a block
+     *
+     * @param index the index of the block
+     * @param block the arrays where to decode the block
+     */
+    public void decode(int index, Block block) {
+        byte[] page = pages.get((int) (offsets[index] / PAGE_SIZE));
+        block.cursor = (int) (offsets[index] % PAGE_SIZE);
+        int scale = scales[index];
+        block.taxi = taxis[index];
+        block.length = lengths[index];
+        long timestamp = firstTimestamps[index];
+        long latitude = 0;
+        long longitude = 0;
+        int speed = 0;
+        int direction = 0;
+        for (int i = 0; i < block.length; i++) {
+            timestamp += getVarint(page, block);
+            block.timestamps[i] = timestamp;
+            if (scale == RAW) {
+                block.latitudes[i] = Double.longBitsToDouble(getRaw(page, block));
+                block.longitudes[i] = Double.longBitsToDouble(getRaw(page, block));
+            } else {
+                latitude += unzigzag(getVarint(page, block));
+                longitude += unzigzag(getVarint(page, block));
+                block.latitudes[i] = latitude / SCALES[scale];
+                block.longitudes[i] = longitude / SCALES[scale];
+            }
+            speed += (int) unzigzag(getVarint(page, block));
+            direction += (int) unzigzag(getVarint(page, block));
+            block.speeds[i] = speed;
+            block.directions[i] = direction;
+            block.statuses[i] = (int) getVarint(page, block);
+        }
+    }
+
+    /**
+     * Decodes the coordinates of a period
+     *
+     * @param from the first timestamp of the period (seconds)
+     * @param to the timestamp following the period (seconds)
+     * @return the coordinates of the period, in time order
+     */
+    public ColumnarCoordinateStore extract(long from, long to) {
+        ColumnarCoordinateStore taxiCoordinates = new ColumnarCoordinateStore();
+        Block block = new Block();
+        for (int index = 0; index < nbBlocks; index++) {
+            if (lastTimestamps[index] < from || firstTimestamps[index] >= to) continue;
+            decode(index, block);
+            for (int i = 0; i < block.length; i++) {
+                if (block.timestamps[i] < from || block.timestamps[i] >= to) continue;
+                taxiCoordinates.add(block.taxi, block.timestamps[i], block.longitudes[i], block.latitudes[i],
+                        block.speeds[i], block.directions[i], block.statuses[i]);
+            }
+        }
+        taxiCoordinates.sort();
+        return taxiCoordinates;
+    }
+
+    /**
+     * Generates the contacts of the coordinates of a period, with the current contact parameters
+     *
+     * The blocks of each taxi are decoded one after the other, the blocks out of the period being skipped,
+     * and merged in time order into the sliding window of a GridContactTraceGenerator.
+     *
+     * @param from the first timestamp of the period (seconds)
+     * @param to the timestamp following the period (seconds)
+     * @param sink where to add the detected contacts (in the time order of the following coordinates)
+     * @return the number of blocks decoded
+     */
+    public int generate(long from, long to, ContactSink sink) {
+        PriorityQueue<Cursor> cursors = new PriorityQueue<>(16, new Comparator<Cursor>() {
+            @Override
+            public int compare(Cursor cursor1, Cursor cursor2) {
+                long timestamp1 = cursor1.block.timestamps[cursor1.position];
+                long timestamp2 = cursor2.block.timestamps[cursor2.position];
+                if (timestamp1 != timestamp2) return timestamp1 < timestamp2 ? -1 : 1;
+                return Integer.compare(cursor1.block.taxi, cursor2.block.taxi);
+            }
+        });
+        List<Cursor> taxiCursors = new ArrayList<>();
+        for (int first = 0, last; first < nbBlocks; first = last) {
+            last = first + 1;
+            while (last < nbBlocks && taxis[last] == taxis[first]) last++;
+            Cursor cursor = new Cursor(first, last, from, to);
+            taxiCursors.add(cursor);
+            if (cursor.refill()) cursors.add(cursor);
+        }
+        WindowCoordinateStore window = new WindowCoordinateStore();
+        GridContactTraceGenerator grid = new GridContactTraceGenerator(window);
+        long traceLength = 0;
+        while (!cursors.isEmpty()) {
+            Cursor cursor = cursors.poll();
+            Block block = cursor.block;
+            int i = cursor.position;
+            int index = window.add(block.taxi, block.timestamps[i], block.longitudes[i], block.latitudes[i],
+                    block.speeds[i], block.directions[i], block.statuses[i]);
+            grid.follow(index, sink);
+            window.release(grid.getOldest());
+            traceLength++;
+            if (cursor.advance()) cursors.add(cursor);
+        }
+        grid.countMetrics(0, (int) traceLength);
+        int nbDecoded = 0;
+        for (Cursor cursor : taxiCursors) nbDecoded += cursor.nbDecoded;
+        return nbDecoded;
+    }
+
+    /**
+     * Gets the number of coordinates
+     *
+     * @return the trace length
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the number of blocks
+     *
+     * @return the number of blocks
+     */
+    public int getNbBlocks() {
+        return nbBlocks;
+    }
+
+    /**
+     * Gets the memory used by the blocks and their headers
+     *
+     * @return the size in bytes
+     */
+    public long getMemorySize() {
+        long memorySize = (long) taxis.length * (4 + 4 + 1 + 8 + 8 + 8 + 4 * 8);
+        for (byte[] page : pages) memorySize += page.length;
+        return memorySize;
+    }
+
+    /**
+     * Gets the bytes used by the encoded blocks
+     *
+     * @return the size in bytes
+     */
+    public long getEncodedSize() {
+        return encodedSize;
+    }
+
+    public int getTaxi(int block) {
+        return taxis[block];
+    }
+
+    public long getFirstTimestamp(int block) {
+        return firstTimestamps[block];
+    }
+
+    public long getLastTimestamp(int block) {
+        return lastTimestamps[block];
+    }
+
+    public double getMinLatitude(int block) {
+        return minLatitudes[block];
+    }
+
+    public double getMaxLatitude(int block) {
+        return maxLatitudes[block];
+    }
+
+    public double getMinLongitude(int block) {
+        return minLongitudes[block];
+    }
+
+    public double getMaxLongitude(int block) {
+        return maxLongitudes[block];
+    }
+
+    /**
+     * Trims the last page and the block headers (the store is not extended after its construction)
+     */
+    private void trim() {
+        if (!pages.isEmpty()) pages.set(pages.size() - 1, Arrays.copyOf(pages.get(pages.size() - 1), pageLength));
+        taxis = Arrays.copyOf(taxis, nbBlocks);
+        lengths = Arrays.copyOf(lengths, nbBlocks);
+        scales = Arrays.copyOf(scales, nbBlocks);
+        offsets = Arrays.copyOf(offsets, nbBlocks);
+        firstTimestamps = Arrays.copyOf(firstTimestamps, nbBlocks);
+        lastTimestamps = Arrays.copyOf(lastTimestamps, nbBlocks);
+        minLatitudes = Arrays.copyOf(minLatitudes, nbBlocks);
+        maxLatitudes = Arrays.copyOf(maxLatitudes, nbBlocks);
+        minLongitudes = Arrays.copyOf(minLongitudes, nbBlocks);
+        maxLongitudes = Arrays.copyOf(maxLongitudes, nbBlocks);
+    }
+
+    private void growBlocks() {
+        int capacity = taxis.length * 2;
+        taxis = Arrays.copyOf(taxis, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        scales = Arrays.copyOf(scales, capacity);
+        offsets = Arrays.copyOf(offsets, capacity);
+        firstTimestamps = Arrays.copyOf(firstTimestamps, capacity);
+        lastTimestamps = Arrays.copyOf(lastTimestamps, capacity);
+        minLatitudes = Arrays.copyOf(minLatitudes, capacity);
+        maxLatitudes = Arrays.copyOf(maxLatitudes, capacity);
+        minLongitudes = Arrays.copyOf(minLongitudes, capacity);
+        maxLongitudes = Arrays.copyOf(maxLongitudes, capacity);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int putVarint(byte[] page, int position, long value) {
+        while ((value & ~0x7fL) != 0) {
+            page[position++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        page[position++] = (byte) value;
+        return position;
+    }
+
+    private static long getVarint(byte[] page, Block block) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = page[block.cursor++];
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) return value;
+        }
+    }
+
+    private static int putRaw(byte[] page, int position, long value) {
+        for (int i = 0; i < 8; i++) page[position++] = (byte) (value >>> (8 * i));
+        return position;
+    }
+
+    private static long getRaw(byte[] page, Block block) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) value |= (page[block.cursor++] & 0xffL) << (8 * i);
+        return value;
+    }
+
+    /**
+     * Decoded coordinates of a block, as reusable primitive arrays
+     */
+    public static class Block {
+        public final long[] timestamps = new long[BLOCK_LENGTH];
+        public final double[] latitudes = new double[BLOCK_LENGTH];
+        public final double[] longitudes = new double[BLOCK_LENGTH];
+        public final int[] speeds = new int[BLOCK_LENGTH];
+        public final int[] directions = new int[BLOCK_LENGTH];
+        public final int[] statuses = new int[BLOCK_LENGTH];
+        public int taxi;
+        public int length;
+        private int cursor; // decoding position in the page
+    }
+
+    /**
+     * Current coordinate of the blocks of a taxi within a period
+     */
+    private class Cursor {
+        int next; // next block of the taxi
+        int last; // block following the last block of the taxi
+        long from;
+        long to;
+        Block block;
+        int position;
+        int nbDecoded;
+
+        Cursor(int first, int last, long from, long to) {
+            this.next = first;
+            this.last = last;
+            this.from = from;
+            this.to = to;
+            this.block = new Block();
+        }
+
+        /**
+         * Decodes the next block of the taxi within the period, and moves to its first coordinate of the period
+         *
+         * @return false if there is no more coordinate in the period
+         */
+        boolean refill() {
+            while (next < last && lastTimestamps[next] < from) next++;
+            if (next == last || firstTimestamps[next] >= to) return false;
+            decode(next++, block);
+            nbDecoded++;
+            position = 0;
+            while (block.timestamps[position] < from) position++;
+            return block.timestamps[position] < to;
+        }
+
+        /**
+         * Moves to the next coordinate of the taxi within the period
+         *
+         * @return false if there is no more coordinate in the period
+         */
+        boolean advance() {
+            if (++position < block.length) return block.timestamps[position] < to;
+            return refill();
+        }
+    }
+}
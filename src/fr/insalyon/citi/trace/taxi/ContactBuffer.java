@@ -0,0 +1,240 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import java.util.Arrays;
+
+/**
+ * Stores contacts as packed primitive longs (taxi pair, start, stop), without any per-contact object
+ *
+ * Contacts are first appended in any order, then sorted once (in the Contact order) and deduplicated.
+ * A contact is oriented in time order: the first taxi is the one seen first
+ * (or the lowest id when both are seen at the same time),
+ * so (A, B, tA, tB) and (B, A, tB, tA) are stored as the same contact.
+ */
+public class ContactBuffer implements ContactSink {
+
+    private static final int STRIDE = 3; // longs per contact
+
+    private long[] contacts;
+    private int size;
+
+    public ContactBuffer() {
+        this(1024);
+    }
+
+    public ContactBuffer(int capacity) {
+        this.contacts = new long[capacity * STRIDE];
+        this.size = 0;
+    }
+
+    /**
+     * Appends a contact at the end of the buffer (sort() has to be called to remove the duplicates)
+     */
+    @Override
+    public void add(int taxi1, int taxi2, long start, long stop) {
+        if ((size + 1) * STRIDE > contacts.length) grow(size + 1);
+        int offset = size * STRIDE;
+        if (start > stop || (start == stop && taxi1 > taxi2)) {
+            contacts[offset] = pair(taxi2, taxi1);
+            contacts[offset + 1] = stop;
+            contacts[offset + 2] = start;
+        } else {
+            contacts[offset] = pair(taxi1, taxi2);
+            contacts[offset + 1] = start;
+            contacts[offset + 2] = stop;
+        }
+        size++;
+    }
+
+    /**
+     * Appends all the contacts of another buffer at the end of the buffer
+     *
+     * @param buffer the other buffer
+     */
+    public void addAll(ContactBuffer buffer) {
+        if (size + buffer.size > contacts.length / STRIDE) grow(size + buffer.size);
+        System.arraycopy(buffer.contacts, 0, contacts, size * STRIDE, buffer.size * STRIDE);
+        size += buffer.size;
+    }
+
+    /**
+     * Sorts the contacts, removes the duplicates and trims the buffer
+     */
+    public void sort() {
+        sort(contacts, 0, size);
+        int length = 0;
+        for (int i = 0; i < size; i++) {
+            if (length > 0 && compare(i, length - 1) == 0) continue;
+            if (i != length) System.arraycopy(contacts, i * STRIDE, contacts, length * STRIDE, STRIDE);
+            length++;
+        }
+        Metrics.count(Metrics.Counter.DUPLICATE_CONTACTS, size - length);
+        size = length;
+        contacts = Arrays.copyOf(contacts, size * STRIDE);
+    }
+
+    /**
+     * Merges two sorted buffers into a new sorted buffer, without duplicates
+     *
+     * @param run1 a sorted buffer
+     * @param run2 another sorted buffer
+     * @return the merged buffer
+     */
+    public static ContactBuffer merge(ContactBuffer run1, ContactBuffer run2) {
+        ContactBuffer merged = new ContactBuffer(run1.size + run2.size);
+        int i = 0;
+        int j = 0;
+        while (i < run1.size || j < run2.size) {
+            ContactBuffer run;
+            int index;
+            if (j == run2.size || (i < run1.size && compare(run1, i, run2, j) <= 0)) {
+                run = run1;
+                index = i++;
+            } else {
+                run = run2;
+                index = j++;
+            }
+            if (merged.size > 0 && compare(merged, merged.size - 1, run, index) == 0) continue;
+            System.arraycopy(run.contacts, index * STRIDE, merged.contacts, merged.size * STRIDE, STRIDE);
+            merged.size++;
+        }
+        Metrics.count(Metrics.Counter.DUPLICATE_CONTACTS, run1.size + run2.size - merged.size);
+        merged.contacts = Arrays.copyOf(merged.contacts, merged.size * STRIDE);
+        return merged;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getTaxi1(int index) {
+        return (int) (contacts[index * STRIDE] >> 32);
+    }
+
+    public int getTaxi2(int index) {
+        return (int) contacts[index * STRIDE];
+    }
+
+    public long getStart(int index) {
+        return contacts[index * STRIDE + 1];
+    }
+
+    public long getStop(int index) {
+        return contacts[index * STRIDE + 2];
+    }
+
+    /**
+     * Creates the Contact object of a contact (not to be used on a hot path)
+     *
+     * @param index of the contact
+     * @return the contact
+     */
+    public Contact getContact(int index) {
+        return new Contact(getTaxi1(index), getTaxi2(index), getStart(index), getStop(index));
+    }
+
+    private static long pair(int taxi1, int taxi2) {
+        return ((long) taxi1 << 32) | (taxi2 & 0xffffffffL);
+    }
+
+    private void grow(int minCapacity) {
+        int capacity = Math.max(minCapacity, size + (size >> 1) + 16);
+        contacts = Arrays.copyOf(contacts, capacity * STRIDE);
+    }
+
+    /**
+     * Orders two contacts as Contact.compareTo
+     */
+    private int compare(int i, int j) {
+        return compare(this, i, this, j);
+    }
+
+    private static int compare(ContactBuffer buffer1, int i, ContactBuffer buffer2, int j) {
+        for (int k = 0; k < STRIDE; k++) {
+            long value1 = buffer1.contacts[i * STRIDE + k];
+            long value2 = buffer2.contacts[j * STRIDE + k];
+            if (value1 != value2) return value1 < value2 ? -1 : 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Sorts a range of records of STRIDE longs in place, in the lexicographic order of their longs
+     * (quicksort with a median of three pivot, insertion sort on small ranges)
+     *
+     * @param records the records, one after the other
+     * @param from the first record to sort
+     * @param to the record after the last one to sort
+     */
+    static void sort(long[] records, int from, int to) {
+        long[] pivot = new long[STRIDE];
+        while (to - from > 16) {
+            int middle = (from + to) >>> 1;
+            if (compare(records, middle, from) < 0) swap(records, middle, from);
+            if (compare(records, to - 1, from) < 0) swap(records, to - 1, from);
+            if (compare(records, to - 1, middle) < 0) swap(records, to - 1, middle);
+            System.arraycopy(records, middle * STRIDE, pivot, 0, STRIDE);
+            int i = from;
+            int j = to - 1;
+            while (i <= j) {
+                while (compareTo(records, i, pivot) < 0) i++;
+                while (compareTo(records, j, pivot) > 0) j--;
+                if (i <= j) swap(records, i++, j--);
+            }
+            // recurses on the smallest part to bound the stack depth
+            if (j - from < to - i) {
+                sort(records, from, j + 1);
+                from = i;
+            } else {
+                sort(records, i, to);
+                to = j + 1;
+            }
+        }
+        for (int i = from + 1; i < to; i++) {
+            for (int j = i; j > from && compare(records, j - 1, j) > 0; j--) swap(records, j - 1, j);
+        }
+    }
+
+    private static int compare(long[] records, int i, int j) {
+        return compareTo(records, i, records, j * STRIDE);
+    }
+
+    private static int compareTo(long[] records, int i, long[] record) {
+        return compareTo(records, i, record, 0);
+    }
+
+    private static int compareTo(long[] records, int i, long[] record, int offset) {
+        for (int k = 0; k < STRIDE; k++) {
+            long value = records[i * STRIDE + k];
+            if (value != record[offset + k]) return value < record[offset + k] ? -1 : 1;
+        }
+        return 0;
+    }
+
+    private static void swap(long[] records, int i, int j) {
+        for (int k = 0; k < STRIDE; k++) {
+            long value = records[i * STRIDE + k];
+            records[i * STRIDE + k] = records[j * STRIDE + k];
+            records[j * STRIDE + k] = value;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Collects the contacts detected by several threads without any contention
+ *
+ * Each thread appends its contacts to its own ContactBuffer,
+ * the buffers are only sorted (in parallel, as sorted runs), then merged and deduplicated
+ * once all the threads are done.
+ */
+public class ContactCollector {
+
+    private List<ContactBuffer> buffers;
+    private ThreadLocal<ContactBuffer> buffer;
+
+    public ContactCollector() {
+        this.buffers = new ArrayList<>();
+        this.buffer = new ThreadLocal<ContactBuffer>() {
+            @Override
+            protected ContactBuffer initialValue() {
+                ContactBuffer created = new ContactBuffer();
+                synchronized (buffers) {
+                    buffers.add(created);
+                }
+                return created;
+            }
+        };
+    }
+
+    /**
+     * Gets the buffer of the current thread (to look up once per task, not per contact)
+     *
+     * @return the buffer where the current thread adds its contacts
+     */
+    public ContactBuffer getBuffer() {
+        return buffer.get();
+    }
+
+    /**
+     * Merges the buffers of all the threads (to call when all the threads are done)
+     *
+     * @return the sorted and deduplicated contacts
+     */
+    public ContactBuffer merge() {
+        List<ContactBuffer> runs;
+        synchronized (buffers) {
+            runs = new ArrayList<>(buffers);
+        }
+        List<RecursiveAction> sorts = new ArrayList<>();
+        for (final ContactBuffer run : runs) {
+            sorts.add(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    run.sort();
+                }
+            });
+        }
+        ForkJoinTask.invokeAll(sorts);
+        // merges the runs two by two, each round in parallel
+        while (runs.size() > 1) {
+            final ContactBuffer[] merged = new ContactBuffer[(runs.size() + 1) / 2];
+            final List<ContactBuffer> round = runs;
+            List<RecursiveAction> merges = new ArrayList<>();
+            for (int i = 0; i < merged.length; i++) {
+                final int index = i;
+                merges.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        merged[index] = 2 * index + 1 < round.size()
+                                ? ContactBuffer.merge(round.get(2 * index), round.get(2 * index + 1))
+                                : round.get(2 * index);
+                    }
+                });
+            }
+            ForkJoinTask.invokeAll(merges);
+            runs = new ArrayList<>(Arrays.asList(merged));
+        }
+        return runs.isEmpty() ? new ContactBuffer(0) : runs.get(0);
+    }
+}
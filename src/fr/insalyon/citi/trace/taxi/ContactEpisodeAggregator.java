@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Aggregates the point contacts of a same pair of taxis into contact episodes
+ *
+ * Two contacts of the same (unordered) pair of taxis belong to the same episode
+ * when the second one starts at most gap milliseconds after the end of the first one.
+ * An episode is given to the next sink, with the lowest taxi id first,
+ * as soon as no later contact can extend it anymore.
+ *
+ * The contacts have to be added in the order of their stop timestamp, give or take the lateness
+ * (i.e. a contact never starts lateness milliseconds before the highest stop timestamp already added),
+ * which is the case of the contacts emitted by GridContactTraceGenerator.follow with a TIME_RANGE lateness.
+ */
+public class ContactEpisodeAggregator implements ContactSink {
+
+    private ContactSink sink;
+    private long gap;
+    private long lateness;
+    private HashMap<Long, Episode> episodes;
+    private long maxStop;
+    private long lastFlush;
+
+    /**
+     * @param sink where to add the contact episodes
+     * @param gap the highest time between two contacts of the same episode in milliseconds
+     * @param lateness the highest time between the start of a contact and the stop of the previous ones in milliseconds
+     */
+    public ContactEpisodeAggregator(ContactSink sink, long gap, long lateness) {
+        this.sink = sink;
+        this.gap = gap;
+        this.lateness = lateness;
+        this.episodes = new HashMap<>();
+        this.maxStop = Long.MIN_VALUE;
+        this.lastFlush = Long.MIN_VALUE;
+    }
+
+    @Override
+    public void add(int taxi1, int taxi2, long start, long stop) {
+        Long key = pairKey(Math.min(taxi1, taxi2), Math.max(taxi1, taxi2));
+        Episode first = episodes.get(key);
+        Episode previous = null;
+        Episode episode = first;
+        // the open episodes of a pair are chained in start order and never overlap
+        while (episode != null && episode.stop + gap < start) {
+            previous = episode;
+            episode = episode.next;
+        }
+        if (episode == null || stop + gap < episode.start) {
+            Episode created = new Episode(start, stop);
+            created.next = episode;
+            if (previous == null) episodes.put(key, created);
+            else previous.next = created;
+        } else {
+            episode.start = Math.min(episode.start, start);
+            episode.stop = Math.max(episode.stop, stop);
+            while (episode.next != null && episode.stop + gap >= episode.next.start) {
+                episode.stop = Math.max(episode.stop, episode.next.stop);
+                episode.next = episode.next.next;
+            }
+        }
+        if (lastFlush == Long.MIN_VALUE) lastFlush = stop;
+        if (stop > maxStop) {
+            maxStop = stop;
+            if (maxStop - lastFlush > Math.max(gap, 1000)) {
+                flush(maxStop - lateness);
+                lastFlush = maxStop;
+            }
+        }
+    }
+
+    /**
+     * Copies the open episodes to another sink without giving them to the next sink
+     * (e.g. to save them in a checkpoint, they are restored by adding them back as contacts)
+     *
+     * @param copy where to add the open episodes
+     */
+    public void copyOpenEpisodes(ContactSink copy) {
+        for (Map.Entry<Long, Episode> pair : episodes.entrySet()) {
+            for (Episode episode = pair.getValue(); episode != null; episode = episode.next) {
+                copy.add((int) (pair.getKey() >> 32), (int) (long) pair.getKey(), episode.start, episode.stop);
+            }
+        }
+    }
+
+    /**
+     * Gives the remaining episodes to the next sink (to call when all the contacts are added)
+     */
+    public void close() {
+        flush(Long.MAX_VALUE);
+    }
+
+    /**
+     * Gives to the next sink the episodes which cannot be extended anymore
+     *
+     * @param watermark the lowest start timestamp of the contacts still to come
+     */
+    private void flush(long watermark) {
+        Iterator<Map.Entry<Long, Episode>> pairs = episodes.entrySet().iterator();
+        while (pairs.hasNext()) {
+            Map.Entry<Long, Episode> pair = pairs.next();
+            Episode episode = pair.getValue();
+            while (episode != null && (watermark == Long.MAX_VALUE || episode.stop + gap < watermark)) {
+                sink.add((int) (pair.getKey() >> 32), (int) (long) pair.getKey(), episode.start, episode.stop);
+                episode = episode.next;
+            }
+            if (episode == null) pairs.remove();
+            else pair.setValue(episode);
+        }
+    }
+
+    private static Long pairKey(int taxi1, int taxi2) {
+        return ((long) taxi1 << 32) | (taxi2 & 0xffffffffL);
+    }
+
+    /**
+     * Open episode of a pair of taxis
+     */
+    private static class Episode {
+        long start;
+        long stop;
+        Episode next;
+
+        Episode(long start, long stop) {
+            this.start = start;
+            this.stop = stop;
+        }
+    }
+}
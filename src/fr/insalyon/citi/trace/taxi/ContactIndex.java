@@ -0,0 +1,468 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Answers the queries on a contact trace from a memory-mapped contact index file
+ *
+ * The contact index format (little endian) is made of:
+ * - a 64 bytes header: magic number, version, record size, contact number, taxi number,
+ *   bucket step (seconds), first bucket start (ms) and bucket number
+ * - a taxi table sorted by taxi id: taxi id (int), record number (int), first record (long),
+ *   longest contact duration (long, ms)
+ * - a bucket table: the number of contacts starting in each bucket step
+ * - the fixed-width records, grouped by taxi and sorted by start time, aligned on 8 bytes:
+ *   start (long, ms), stop (long, ms), other taxi id (int), flags (int, FIRST if the taxi is the first of the contact)
+ *
+ * Each contact is recorded once for each of its taxis. Only the taxi and bucket tables are read when opened,
+ * the records are mapped by segments of at most 1 GB and binary searched.
+ */
+public class ContactIndex {
+
+    public static final long MAGIC = 0x3158494349584154L; // "TAXICIX1"
+    public static final int VERSION = 1;
+    public static final int RECORD_SIZE = 24;
+    public static final int HEADER_SIZE = 64;
+    public static final int TAXI_SIZE = 24;
+    public static final int DEFAULT_BUCKET_STEP = 60; // seconds
+
+    public static final int FIRST = 1;
+
+    private static final int SEGMENT_SHIFT = 25; // records per segment: 2^25 * 24 bytes = 768 MB
+    private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+    private long size;
+    private int[] taxis;
+    private int[] recordCounts;
+    private long[] firstRecords;
+    private long[] maxDurations;
+    private long bucketStep; // ms
+    private long firstBucket; // ms
+    private long[] buckets;
+    private MappedByteBuffer[] segments;
+
+    /**
+     * Maps a contact index file
+     *
+     * @param file the contact index file
+     * @throws IOException if the file cannot be mapped or is not a contact index
+     */
+    public ContactIndex(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            long fileSize = channel.size();
+            if (fileSize < HEADER_SIZE) throw new IOException(file + ": not a contact index");
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getLong(0) != MAGIC) throw new IOException(file + ": not a contact index");
+            if (header.getInt(8) != VERSION || header.getInt(12) != RECORD_SIZE)
+                throw new IOException(file + ": unsupported contact index version");
+            size = header.getLong(16);
+            int nbTaxis = header.getInt(24);
+            bucketStep = header.getInt(28) * 1000L;
+            firstBucket = header.getLong(32);
+            int nbBuckets = header.getInt(40);
+            long dataOffset = dataOffset(nbTaxis, nbBuckets);
+            long nbRecords = 2 * size;
+            if (dataOffset + nbRecords * RECORD_SIZE > fileSize) throw new IOException(file + ": truncated contact index");
+            ByteBuffer tables = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, dataOffset - HEADER_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            taxis = new int[nbTaxis];
+            recordCounts = new int[nbTaxis];
+            firstRecords = new long[nbTaxis];
+            maxDurations = new long[nbTaxis];
+            for (int i = 0; i < nbTaxis; i++) {
+                taxis[i] = tables.getInt();
+                recordCounts[i] = tables.getInt();
+                firstRecords[i] = tables.getLong();
+                maxDurations[i] = tables.getLong();
+            }
+            buckets = new long[nbBuckets];
+            tables.asLongBuffer().get(buckets);
+            segments = new MappedByteBuffer[(int) ((nbRecords + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+            for (int i = 0; i < segments.length; i++) {
+                long length = Math.min(nbRecords - ((long) i << SEGMENT_SHIFT), 1L << SEGMENT_SHIFT) * RECORD_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        dataOffset + ((long) i << SEGMENT_SHIFT) * RECORD_SIZE, length);
+                segments[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+    }
+
+    /**
+     * Builds the contact index of a contact trace file
+     *
+     * @param contactTrace the contact trace file (text or binary, gzip compressed or not)
+     * @param file the destination contact index file
+     * @param bucketStep the bucket step in seconds
+     * @throws IOException
+     */
+    public static void build(File contactTrace, File file, int bucketStep) throws IOException {
+        ContactBuffer contacts = readContactTrace(contactTrace);
+        contacts.sort();
+        write(contacts, file, bucketStep);
+    }
+
+    /**
+     * Writes the contact index of sorted contacts
+     *
+     * @param contacts the sorted and deduplicated contacts
+     * @param file the destination contact index file
+     * @param bucketStep the bucket step in seconds
+     * @throws IOException
+     */
+    public static void write(ContactBuffer contacts, File file, int bucketStep) throws IOException {
+        int size = contacts.size();
+        // taxi table
+        int[] ids = new int[2 * size];
+        for (int i = 0; i < size; i++) {
+            ids[2 * i] = contacts.getTaxi1(i);
+            ids[2 * i + 1] = contacts.getTaxi2(i);
+        }
+        Arrays.sort(ids);
+        int nbTaxis = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (nbTaxis == 0 || ids[i] != ids[nbTaxis - 1]) ids[nbTaxis++] = ids[i];
+        }
+        int[] taxis = Arrays.copyOf(ids, nbTaxis);
+        int[] recordCounts = new int[nbTaxis];
+        long[] maxDurations = new long[nbTaxis];
+        long minStart = Long.MAX_VALUE;
+        long maxStart = Long.MIN_VALUE;
+        for (int i = 0; i < size; i++) {
+            long duration = contacts.getStop(i) - contacts.getStart(i);
+            for (int taxi : new int[]{Arrays.binarySearch(taxis, contacts.getTaxi1(i)), Arrays.binarySearch(taxis, contacts.getTaxi2(i))}) {
+                recordCounts[taxi]++;
+                maxDurations[taxi] = Math.max(maxDurations[taxi], duration);
+            }
+            minStart = Math.min(minStart, contacts.getStart(i));
+            maxStart = Math.max(maxStart, contacts.getStart(i));
+        }
+        int[] firstRecords = new int[nbTaxis + 1];
+        for (int i = 0; i < nbTaxis; i++) firstRecords[i + 1] = firstRecords[i] + recordCounts[i];
+        // bucket table
+        long step = bucketStep * 1000L;
+        long firstBucket = size == 0 ? 0 : Math.floorDiv(minStart, step) * step;
+        long[] buckets = new long[size == 0 ? 0 : (int) ((maxStart - firstBucket) / step) + 1];
+        for (int i = 0; i < size; i++) buckets[(int) ((contacts.getStart(i) - firstBucket) / step)]++;
+        // records, grouped by taxi then sorted by (start, stop, other taxi) as the contacts of a ContactBuffer
+        long[] records = new long[2 * size * 3]; // start, stop, other taxi id shifted to keep the FIRST flag in the lowest bit
+        int[] next = Arrays.copyOf(firstRecords, nbTaxis);
+        for (int i = 0; i < size; i++) {
+            int taxi1 = contacts.getTaxi1(i);
+            int taxi2 = contacts.getTaxi2(i);
+            int record = 3 * next[Arrays.binarySearch(taxis, taxi1)]++;
+            records[record] = contacts.getStart(i);
+            records[record + 1] = contacts.getStop(i);
+            records[record + 2] = (long) taxi2 << 1 | FIRST;
+            record = 3 * next[Arrays.binarySearch(taxis, taxi2)]++;
+            records[record] = contacts.getStart(i);
+            records[record + 1] = contacts.getStop(i);
+            records[record + 2] = (long) taxi1 << 1;
+        }
+        for (int i = 0; i < nbTaxis; i++) ContactBuffer.sort(records, firstRecords[i], firstRecords[i + 1]);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            channel.truncate(0);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putLong(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putLong(size)
+                    .putInt(nbTaxis).putInt(bucketStep).putLong(firstBucket).putInt(buckets.length);
+            while (buffer.position() < HEADER_SIZE) buffer.put((byte) 0);
+            for (int i = 0; i < nbTaxis; i++) {
+                if (buffer.remaining() < TAXI_SIZE) flush(buffer, channel);
+                buffer.putInt(taxis[i]).putInt(recordCounts[i]).putLong(firstRecords[i]).putLong(maxDurations[i]);
+            }
+            for (long bucket : buckets) {
+                if (buffer.remaining() < 8) flush(buffer, channel);
+                buffer.putLong(bucket);
+            }
+            for (int record = 0; record < 3 * 2 * size; record += 3) {
+                if (buffer.remaining() < RECORD_SIZE) flush(buffer, channel);
+                buffer.putLong(records[record]).putLong(records[record + 1])
+                        .putInt((int) (records[record + 2] >> 1)).putInt((int) records[record + 2] & FIRST);
+            }
+            flush(buffer, channel);
+        }
+    }
+
+    /**
+     * Reads a whole contact trace file, in the text or binary format of ContactWriter
+     *
+     * @param file the contact trace file (gzip compressed or not)
+     * @return the contacts, unsorted
+     * @throws IOException
+     */
+    public static ContactBuffer readContactTrace(File file) throws IOException {
+        ContactBuffer contacts = new ContactBuffer();
+        try (InputStream in = open(file)) {
+            byte[] bytes = new byte[ContactWriter.HEADER_SIZE];
+            in.mark(bytes.length);
+            int length = in.readNBytes(bytes, 0, bytes.length);
+            ByteBuffer header = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+            if (length == bytes.length && header.getLong(0) == ContactWriter.MAGIC) {
+                if (header.getInt(8) != ContactWriter.VERSION || header.getInt(12) != ContactWriter.RECORD_SIZE)
+                    throw new IOException(file + ": unsupported binary contact trace version");
+                ReadableByteChannel channel = Channels.newChannel(in);
+                ByteBuffer buffer = ByteBuffer.allocate(ContactWriter.RECORD_SIZE << 12).order(ByteOrder.LITTLE_ENDIAN);
+                int read;
+                do {
+                    read = channel.read(buffer);
+                    buffer.flip();
+                    while (buffer.remaining() >= ContactWriter.RECORD_SIZE) {
+                        contacts.add(buffer.getInt(), buffer.getInt(), buffer.getLong(), buffer.getLong());
+                    }
+                    buffer.compact();
+                } while (read != -1);
+                if (buffer.position() > 0) throw new IOException(file + ": truncated binary contact trace");
+            } else {
+                in.reset();
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII), 1 << 16);
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    if (line.isEmpty()) continue;
+                    String[] fields = line.split(" ");
+                    if (fields.length != 4) throw new IOException(file + ": not a contact trace line: " + line);
+                    contacts.add(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]),
+                            Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException(file + ": not a contact trace", e);
+        }
+        return contacts;
+    }
+
+    private static InputStream open(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+        in.mark(2);
+        boolean compressed = in.read() == 0x1f && in.read() == 0x8b;
+        in.reset();
+        return new BufferedInputStream(compressed ? new GZIPInputStream(in, 1 << 16) : in, 1 << 16);
+    }
+
+    /**
+     * Gets the contacts of a taxi during a period, in start order
+     *
+     * @param taxi the taxi id
+     * @param from the beginning of the period (ms)
+     * @param to the end of the period (ms, excluded)
+     * @return the contacts overlapping the period
+     */
+    public ContactBuffer contactsOf(int taxi, long from, long to) {
+        ContactBuffer contacts = new ContactBuffer(16);
+        int i = Arrays.binarySearch(taxis, taxi);
+        if (i < 0) return contacts;
+        long end = firstRecords[i] + recordCounts[i];
+        // the records starting up to the longest contact duration before the period may overlap it
+        long first = from < Long.MIN_VALUE + maxDurations[i] ? firstRecords[i] : search(i, from - maxDurations[i]);
+        for (long record = first; record < end && getStart(record) < to; record++) {
+            if (getStop(record) >= from) add(contacts, taxi, record);
+        }
+        return contacts;
+    }
+
+    /**
+     * Gets the contacts between two taxis, in start order
+     *
+     * @param taxi1 a taxi id
+     * @param taxi2 another taxi id
+     * @return the contacts of the two taxis
+     */
+    public ContactBuffer contactsBetween(int taxi1, int taxi2) {
+        ContactBuffer contacts = new ContactBuffer(16);
+        int i = Arrays.binarySearch(taxis, taxi1);
+        int j = Arrays.binarySearch(taxis, taxi2);
+        if (i < 0 || j < 0) return contacts;
+        if (recordCounts[j] < recordCounts[i]) {
+            i = j;
+            taxi2 = taxi1;
+        }
+        for (long record = firstRecords[i]; record < firstRecords[i] + recordCounts[i]; record++) {
+            if (getOther(record) == taxi2) add(contacts, taxis[i], record);
+        }
+        return contacts;
+    }
+
+    /**
+     * Counts the contacts starting in each bucket of a period, from the bucket table
+     *
+     * @param from the beginning of the period (ms, aligned on the bucket step)
+     * @param to the end of the period (ms, excluded)
+     * @param bucketLength the bucket length (ms, a multiple of the bucket step)
+     * @return the number of contacts of each bucket
+     * @throws IllegalArgumentException if the buckets are not aligned on the bucket step
+     */
+    public long[] countPerBucket(long from, long to, long bucketLength) {
+        if (Math.floorMod(from - firstBucket, bucketStep) != 0 || bucketLength <= 0 || bucketLength % bucketStep != 0)
+            throw new IllegalArgumentException("buckets not aligned on the " + bucketStep / 1000 + "s bucket step");
+        long[] counts = new long[(int) ((to - from + bucketLength - 1) / bucketLength)];
+        long first = Math.floorDiv(from - firstBucket, bucketStep);
+        long steps = bucketLength / bucketStep;
+        for (int k = 0; k < counts.length; k++) {
+            for (long step = Math.max(0, first + k * steps); step < Math.min(buckets.length, first + (k + 1) * steps); step++) {
+                if (firstBucket + step * bucketStep < to) counts[k] += buckets[(int) step];
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Counts the contacts of a taxi starting in each bucket of a period
+     *
+     * @param taxi the taxi id
+     * @param from the beginning of the period (ms)
+     * @param to the end of the period (ms, excluded)
+     * @param bucketLength the bucket length (ms)
+     * @return the number of contacts of each bucket
+     */
+    public long[] countPerBucket(int taxi, long from, long to, long bucketLength) {
+        long[] counts = new long[(int) ((to - from + bucketLength - 1) / bucketLength)];
+        int i = Arrays.binarySearch(taxis, taxi);
+        if (i < 0) return counts;
+        long end = firstRecords[i] + recordCounts[i];
+        for (long record = search(i, from); record < end && getStart(record) < to; record++) {
+            counts[(int) ((getStart(record) - from) / bucketLength)]++;
+        }
+        return counts;
+    }
+
+    /**
+     * Gets the number of contacts
+     *
+     * @return the number of contacts
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Gets the ids of the taxis having contacts
+     *
+     * @return the sorted taxi ids
+     */
+    public int[] getTaxis() {
+        return taxis.clone();
+    }
+
+    /**
+     * Gets the number of contacts of a taxi
+     *
+     * @param taxi the taxi id
+     * @return the number of contacts
+     */
+    public int countOf(int taxi) {
+        int i = Arrays.binarySearch(taxis, taxi);
+        return i < 0 ? 0 : recordCounts[i];
+    }
+
+    /**
+     * Gets the bucket step of the bucket table
+     *
+     * @return the bucket step (ms)
+     */
+    public long getBucketStep() {
+        return bucketStep;
+    }
+
+    /**
+     * Gets the beginning of the first bucket of the bucket table
+     *
+     * @return the beginning of the first bucket (ms)
+     */
+    public long getFirstBucket() {
+        return firstBucket;
+    }
+
+    /**
+     * Gets the end of the last bucket of the bucket table
+     *
+     * @return the end of the last bucket (ms, excluded)
+     */
+    public long getLastBucket() {
+        return firstBucket + buckets.length * bucketStep;
+    }
+
+    private long search(int i, long start) {
+        long low = firstRecords[i];
+        long high = low + recordCounts[i];
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (getStart(middle) < start) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    private void add(ContactBuffer contacts, int taxi, long record) {
+        if ((getFlags(record) & FIRST) != 0) contacts.add(taxi, getOther(record), getStart(record), getStop(record));
+        else contacts.add(getOther(record), taxi, getStart(record), getStop(record));
+    }
+
+    private ByteBuffer segment(long record) {
+        return segments[(int) (record >>> SEGMENT_SHIFT)];
+    }
+
+    private int offset(long record) {
+        return (int) (record & SEGMENT_MASK) * RECORD_SIZE;
+    }
+
+    private long getStart(long record) {
+        return segment(record).getLong(offset(record));
+    }
+
+    private long getStop(long record) {
+        return segment(record).getLong(offset(record) + 8);
+    }
+
+    private int getOther(long record) {
+        return segment(record).getInt(offset(record) + 16);
+    }
+
+    private int getFlags(long record) {
+        return segment(record).getInt(offset(record) + 20);
+    }
+
+    private static long dataOffset(int nbTaxis, int nbBuckets) {
+        return HEADER_SIZE + (long) TAXI_SIZE * nbTaxis + 8L * nbBuckets;
+    }
+
+    private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Contact parameters of a run: distance range, time range, distance metric and episode gap
+ *
+ * The static fields of Trace are the parameters of the current run (ContactParameters.current()),
+ * an engine given its own ContactParameters can run along other runs in the same JVM.
+ */
+public final class ContactParameters {
+
+    private final double distanceRange;
+    private final long timeRange;
+    private final DistanceMetric metric;
+    private final long episodeGap;
+
+    /**
+     * @param distanceRange the distance range in meters
+     * @param timeRange the time range in seconds
+     * @param metric the distance metric
+     * @param episodeGap the episode gap in seconds, negative to keep the point contacts
+     */
+    public ContactParameters(double distanceRange, long timeRange, DistanceMetric metric, long episodeGap) {
+        if (!(distanceRange >= 0) || timeRange < 0) throw new IllegalArgumentException("negative contact range");
+        this.distanceRange = distanceRange;
+        this.timeRange = timeRange;
+        this.metric = Objects.requireNonNull(metric);
+        this.episodeGap = episodeGap;
+    }
+
+    /**
+     * Gets the parameters of the current run, from the static fields of Trace
+     *
+     * @return the current parameters
+     */
+    public static ContactParameters current() {
+        return new ContactParameters(Trace.DISTANCE_RANGE, Trace.TIME_RANGE, Trace.DISTANCE_METRIC, Trace.EPISODE_GAP);
+    }
+
+    /**
+     * Gets the parameters of each combination of distance and time ranges, with the current metric and episode gap
+     *
+     * @param distanceRanges the distance ranges in meters
+     * @param timeRanges the time ranges in seconds
+     * @return the parameters, by distance range then time range
+     */
+    public static List<ContactParameters> sweep(double[] distanceRanges, long[] timeRanges) {
+        List<ContactParameters> runs = new ArrayList<>();
+        for (double distanceRange : distanceRanges) {
+            for (long timeRange : timeRanges) {
+                runs.add(new ContactParameters(distanceRange, timeRange, Trace.DISTANCE_METRIC, Trace.EPISODE_GAP));
+            }
+        }
+        return runs;
+    }
+
+    public double getDistanceRange() {
+        return distanceRange;
+    }
+
+    public long getTimeRange() {
+        return timeRange;
+    }
+
+    public DistanceMetric getMetric() {
+        return metric;
+    }
+
+    public long getEpisodeGap() {
+        return episodeGap;
+    }
+
+    /**
+     * Gets a short name of the ranges, e.g. to name the contact trace file of the run
+     *
+     * @return the name, e.g. 250m-30s
+     */
+    public String getName() {
+        String distance = distanceRange == Math.rint(distanceRange) ? Long.toString((long) distanceRange) : Double.toString(distanceRange);
+        return distance + "m-" + timeRange + "s";
+    }
+
+    @Override
+    public String toString() {
+        return "ContactParameters{" +
+                "distanceRange=" + distanceRange +
+                ", timeRange=" + timeRange +
+                ", metric=" + metric +
+                ", episodeGap=" + episodeGap +
+                '}';
+    }
+}
@@ -0,0 +1,427 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Estimates the contact counts per hour and per taxi from a sample of the taxi trace
+ *
+ * Each hour is split into time windows, a part of the windows of each hour is sampled at random (without replacement),
+ * and the contacts whose following coordinate is in a sampled window are generated with the grid
+ * (optionally between a sample of the taxis only, drawn again for each window).
+ * The counts of the sampled windows are scaled to their hour (stratified estimation, the hours being the strata),
+ * with the confidence intervals of the variance between the sampled windows (Student t quantiles, with the
+ * Welch-Satterthwaite degrees of freedom over several hours). The hours without any sampled contact are bounded
+ * by the rule of three: no contact in a sampled part f of a count bounds it by 3 / f at 95%.
+ * refine() then samples more windows in the hours where they reduce the variance the most (Neyman allocation).
+ */
+public class ContactPreview {
+
+    public static final int DEFAULT_WINDOW_LENGTH = 60; // seconds
+    public static final double Z = 1.959964; // normal quantile of the confidence intervals at 95%
+
+    // Student t quantiles of the confidence intervals at 95%, for 1 to 30 degrees of freedom
+    private static final double[] T = {12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+            2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+            2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042};
+
+    private static final int HOUR = 3600; // seconds
+
+    private CoordinateStore taxiCoordinates;
+    private ContactParameters parameters;
+    private int windowLength;
+    private double taxiRate;
+    private long seed;
+    private long firstHour; // hours since the epoch
+    private int nbHours;
+    private int nbWindows; // windows per hour
+    private int[][] orders; // sampling order of the windows of each hour
+    private int[] nbSampled;
+    private double[] sums; // scaled contact counts of the sampled windows, per hour
+    private double[] squares;
+    private HashMap<Integer, double[]> taxiSums; // per taxi, the sums then the squares of each hour
+    private long nbFollowed;
+
+    /**
+     * Prepares the sampling of a taxi trace, with the current contact parameters
+     *
+     * @param taxiCoordinates the taxi coordinates in time order
+     * @param windowLength the length of the sampled time windows in seconds (dividing an hour)
+     * @param taxiRate the part of the taxis sampled in each window, in ]0, 1]
+     * @param seed the seed of the samples
+     */
+    public ContactPreview(CoordinateStore taxiCoordinates, int windowLength, double taxiRate, long seed) {
+        this(taxiCoordinates, ContactParameters.current(), windowLength, taxiRate, seed);
+    }
+
+    /**
+     * Prepares the sampling of a taxi trace (the episode gap of the parameters is ignored: the point contacts are counted)
+     *
+     * @param taxiCoordinates the taxi coordinates in time order
+     * @param parameters the contact parameters
+     * @param windowLength the length of the sampled time windows in seconds (dividing an hour)
+     * @param taxiRate the part of the taxis sampled in each window, in ]0, 1]
+     * @param seed the seed of the samples
+     */
+    public ContactPreview(CoordinateStore taxiCoordinates, ContactParameters parameters,
+                          int windowLength, double taxiRate, long seed) {
+        if (windowLength <= 0 || HOUR % windowLength != 0)
+            throw new IllegalArgumentException("the window length has to divide an hour: " + windowLength);
+        if (!(taxiRate > 0 && taxiRate <= 1)) throw new IllegalArgumentException("taxi rate out of ]0, 1]: " + taxiRate);
+        this.taxiCoordinates = taxiCoordinates;
+        this.parameters = parameters;
+        this.windowLength = windowLength;
+        this.taxiRate = taxiRate;
+        this.seed = seed;
+        int size = taxiCoordinates.size();
+        this.firstHour = size == 0 ? 0 : Math.floorDiv(taxiCoordinates.getTaxiTimestamp(0), HOUR);
+        this.nbHours = size == 0 ? 0 : (int) (Math.floorDiv(taxiCoordinates.getTaxiTimestamp(size - 1), HOUR) - firstHour + 1);
+        this.nbWindows = HOUR / windowLength;
+        this.orders = new int[nbHours][];
+        Random random = new Random(seed);
+        for (int hour = 0; hour < nbHours; hour++) {
+            int[] order = new int[nbWindows];
+            for (int i = 0; i < nbWindows; i++) order[i] = i;
+            for (int i = nbWindows - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int window = order[i];
+                order[i] = order[j];
+                order[j] = window;
+            }
+            orders[hour] = order;
+        }
+        this.nbSampled = new int[nbHours];
+        this.sums = new double[nbHours];
+        this.squares = new double[nbHours];
+        this.taxiSums = new HashMap<>();
+    }
+
+    /**
+     * Samples a part of the windows of each hour (at least 2 per hour, to estimate the variance)
+     *
+     * @param windowRate the part of the windows to sample, in [0, 1]
+     */
+    public void sample(double windowRate) {
+        for (int hour = 0; hour < nbHours; hour++) {
+            int target = Math.min(nbWindows, Math.max(2, (int) Math.ceil(windowRate * nbWindows)));
+            while (nbSampled[hour] < target) sampleWindow(hour);
+        }
+    }
+
+    /**
+     * Samples more windows, one by one in the hour where an additional window reduces the variance the most
+     *
+     * @param nbMoreWindows the number of additional windows
+     */
+    public void refine(int nbMoreWindows) {
+        for (int i = 0; i < nbMoreWindows; i++) {
+            int best = -1;
+            double bestGain = -1;
+            for (int hour = 0; hour < nbHours; hour++) {
+                int n = nbSampled[hour];
+                if (n == nbWindows) continue;
+                if (n < 2) {
+                    best = hour; // the variance is unknown
+                    break;
+                }
+                // variance reduction of one more window, N^2 s^2 (1/n - 1/(n + 1))
+                double gain = (double) nbWindows * nbWindows * variance(sums[hour], squares[hour], n) / n / (n + 1);
+                if (gain > bestGain) {
+                    best = hour;
+                    bestGain = gain;
+                }
+            }
+            if (best == -1) return; // every window is sampled
+            sampleWindow(best);
+        }
+    }
+
+    /**
+     * Generates the contacts of the next window of an hour, and adds their scaled counts to the sums of the hour
+     */
+    private void sampleWindow(int hour) {
+        int window = orders[hour][nbSampled[hour]++];
+        long start = (firstHour + hour) * HOUR + (long) window * windowLength;
+        long windowIndex = (firstHour + hour) * nbWindows + window;
+        // the previous coordinates within TIME_RANGE are only inserted in the grid
+        int from = taxiCoordinates.ceiling(start - parameters.getTimeRange(), Integer.MIN_VALUE);
+        int first = taxiCoordinates.ceiling(start, Integer.MIN_VALUE);
+        int to = taxiCoordinates.ceiling(start + windowLength, Integer.MIN_VALUE);
+        if (first == to) return; // no contact, counted as such in the sums
+        ColumnarCoordinateStore sample = new ColumnarCoordinateStore(to - from);
+        int nbPrevious = 0;
+        for (int i = from; i < to; i++) {
+            int taxi = taxiCoordinates.getTaxiNumber(i);
+            if (!isSampled(taxi, windowIndex)) continue;
+            sample.add(taxi, taxiCoordinates.getTaxiTimestamp(i), taxiCoordinates.getTaxiLongitude(i), taxiCoordinates.getTaxiLatitude(i),
+                    taxiCoordinates.getTaxiSpeed(i), taxiCoordinates.getTaxiDirection(i), taxiCoordinates.getTaxiStatus(i));
+            if (i < first) nbPrevious++;
+        }
+        final HashMap<Integer, int[]> counts = new HashMap<>();
+        final int[] count = new int[1];
+        ContactSink sink = new ContactSink() {
+            @Override
+            public void add(int taxi1, int taxi2, long start, long stop) {
+                count[0]++;
+                increment(counts, taxi1);
+                increment(counts, taxi2);
+            }
+        };
+        GridContactTraceGenerator grid = new GridContactTraceGenerator(sample, 0, parameters);
+        for (int i = 0; i < nbPrevious; i++) grid.prefill(i);
+        for (int i = nbPrevious; i < sample.size(); i++) grid.follow(i, sink);
+        grid.countMetrics(nbPrevious, sample.size());
+        nbFollowed += sample.size() - nbPrevious;
+        // a contact is sampled if both its taxis are
+        double weight = 1 / (taxiRate * taxiRate);
+        sums[hour] += count[0] * weight;
+        squares[hour] += (count[0] * weight) * (count[0] * weight);
+        for (Integer taxi : counts.keySet()) {
+            double[] taxiSum = taxiSums.get(taxi);
+            if (taxiSum == null) {
+                taxiSum = new double[2 * nbHours];
+                taxiSums.put(taxi, taxiSum);
+            }
+            double value = counts.get(taxi)[0] * weight;
+            taxiSum[hour] += value;
+            taxiSum[nbHours + hour] += value * value;
+        }
+    }
+
+    private static void increment(HashMap<Integer, int[]> counts, int taxi) {
+        int[] count = counts.get(taxi);
+        if (count == null) counts.put(taxi, new int[]{1});
+        else count[0]++;
+    }
+
+    /**
+     * Draws whether a taxi is sampled in a window, independently of the other windows
+     */
+    private boolean isSampled(int taxi, long windowIndex) {
+        if (taxiRate >= 1) return true;
+        long z = seed + windowIndex * 0x9e3779b97f4a7c15L + taxi;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        z ^= z >>> 31;
+        return (z >>> 11) * 0x1.0p-53 < taxiRate;
+    }
+
+    /**
+     * Computes the sample variance of the values of n windows from their sum and the sum of their squares
+     */
+    private static double variance(double sum, double square, int n) {
+        if (n < 2) return 0;
+        return Math.max(0, (square - sum * sum / n) / (n - 1));
+    }
+
+    private double estimate(double sum, int hour) {
+        return nbSampled[hour] == 0 ? 0 : sum * nbWindows / nbSampled[hour];
+    }
+
+    /**
+     * Computes the variance of the estimate of an hour (with the finite population correction)
+     */
+    private double estimateVariance(double sum, double square, int hour) {
+        int n = nbSampled[hour];
+        return (double) nbWindows * nbWindows * (1 - (double) n / nbWindows) * variance(sum, square, n) / n;
+    }
+
+    /**
+     * Computes the half width of the confidence interval of a count over a range of hours
+     *
+     * The hours with sampled contacts give a t interval, the hours without any give a rule of three bound
+     * (from the smallest sampled part of these hours), both being added.
+     *
+     * @param sums the scaled counts of the sampled windows, per hour
+     * @param squares the squares of the scaled counts, per hour from the offset
+     * @param offset of the squares
+     * @param from the first hour
+     * @param to the hour following the last one
+     * @return the half width, infinite if an hour has less than 2 sampled windows out of more
+     */
+    private double halfWidth(double[] sums, double[] squares, int offset, int from, int to) {
+        double variance = 0;
+        double denominator = 0;
+        double minRate = 1;
+        boolean unseen = false;
+        for (int hour = from; hour < to; hour++) {
+            int n = nbSampled[hour];
+            if (n == nbWindows) continue; // counted exactly
+            if (n < 2) return Double.POSITIVE_INFINITY;
+            if (sums[hour] == 0) {
+                unseen = true;
+                minRate = Math.min(minRate, (double) n / nbWindows);
+            } else {
+                double hourVariance = estimateVariance(sums[hour], squares[offset + hour], hour);
+                variance += hourVariance;
+                denominator += hourVariance * hourVariance / (n - 1);
+            }
+        }
+        double halfWidth = variance == 0 ? 0 : tQuantile(variance * variance / denominator) * Math.sqrt(variance);
+        // a contact is sampled if its window and both its taxis are
+        if (unseen) halfWidth += 3 / (minRate * taxiRate * taxiRate);
+        return halfWidth;
+    }
+
+    /**
+     * Gets the Student t quantile of the confidence intervals (Cornish-Fisher expansion above 30 degrees of freedom)
+     *
+     * @param degrees the degrees of freedom, rounded down
+     * @return the quantile
+     */
+    static double tQuantile(double degrees) {
+        int k = Math.max(1, (int) degrees);
+        if (k <= T.length) return T[k - 1];
+        double z2 = Z * Z;
+        return Z + Z * (z2 + 1) / (4 * k) + Z * ((5 * z2 + 16) * z2 + 3) / (96.0 * k * k)
+                + Z * (((3 * z2 + 19) * z2 + 17) * z2 - 15) / (384.0 * k * k * k);
+    }
+
+    public int getNbHours() {
+        return nbHours;
+    }
+
+    /**
+     * Gets the start of an hour
+     *
+     * @param hour the index of the hour
+     * @return the timestamp in seconds
+     */
+    public long getHourStart(int hour) {
+        return (firstHour + hour) * HOUR;
+    }
+
+    public int getNbWindows() {
+        return nbWindows;
+    }
+
+    public int getNbSampledWindows(int hour) {
+        return nbSampled[hour];
+    }
+
+    /**
+     * Gets the number of sampled windows of all the hours
+     *
+     * @return the number of sampled windows
+     */
+    public int getNbSampledWindows() {
+        int nbSampledWindows = 0;
+        for (int n : nbSampled) nbSampledWindows += n;
+        return nbSampledWindows;
+    }
+
+    /**
+     * Gets the number of sampled coordinates compared to their previous coordinates
+     *
+     * @return the number of coordinates
+     */
+    public long getNbFollowed() {
+        return nbFollowed;
+    }
+
+    /**
+     * Estimates the number of contacts of an hour (the hour of their following coordinate)
+     *
+     * @param hour the index of the hour
+     * @return the estimated count
+     */
+    public double getEstimate(int hour) {
+        return estimate(sums[hour], hour);
+    }
+
+    /**
+     * Gets the half width of the confidence interval of the number of contacts of an hour
+     *
+     * @param hour the index of the hour
+     * @return the half width, infinite with less than 2 sampled windows
+     */
+    public double getHalfWidth(int hour) {
+        return halfWidth(sums, squares, 0, hour, hour + 1);
+    }
+
+    /**
+     * Estimates the number of contacts of the whole trace
+     *
+     * @return the estimated count
+     */
+    public double getTotal() {
+        double total = 0;
+        for (int hour = 0; hour < nbHours; hour++) total += getEstimate(hour);
+        return total;
+    }
+
+    /**
+     * Gets the half width of the confidence interval of the number of contacts of the whole trace
+     *
+     * @return the half width, infinite if an hour has less than 2 sampled windows
+     */
+    public double getTotalHalfWidth() {
+        return halfWidth(sums, squares, 0, 0, nbHours);
+    }
+
+    /**
+     * Gets the estimated error of the number of contacts of the whole trace
+     *
+     * @return the half width of the confidence interval relatively to the estimate, NaN without any contact
+     */
+    public double getRelativeError() {
+        double total = getTotal();
+        return total == 0 ? Double.NaN : getTotalHalfWidth() / total;
+    }
+
+    /**
+     * Gets the taxis seen in a sampled contact
+     *
+     * @return the taxi ids
+     */
+    public Set<Integer> getTaxis() {
+        return taxiSums.keySet();
+    }
+
+    /**
+     * Estimates the number of contacts of a taxi
+     *
+     * @param taxi the taxi id
+     * @return the estimated count
+     */
+    public double getTaxiEstimate(int taxi) {
+        double[] taxiSum = taxiSums.get(taxi);
+        if (taxiSum == null) return 0;
+        double estimate = 0;
+        for (int hour = 0; hour < nbHours; hour++) estimate += estimate(taxiSum[hour], hour);
+        return estimate;
+    }
+
+    /**
+     * Gets the half width of the confidence interval of the number of contacts of a taxi
+     *
+     * @param taxi the taxi id (not seen in a sampled contact, its interval is the rule of three bound)
+     * @return the half width, infinite if an hour has less than 2 sampled windows
+     */
+    public double getTaxiHalfWidth(int taxi) {
+        double[] taxiSum = taxiSums.get(taxi);
+        if (taxiSum == null) taxiSum = new double[2 * nbHours];
+        return halfWidth(taxiSum, taxiSum, nbHours, 0, nbHours);
+    }
+}
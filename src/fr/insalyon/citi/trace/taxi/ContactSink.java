@@ -0,0 +1,37 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+/**
+ * Receives the contacts detected by a contact trace generator
+ */
+public interface ContactSink {
+
+    /**
+     * Adds a contact between two taxi coordinates
+     *
+     * @param taxi1 the id of the taxi of the first coordinate (in time order)
+     * @param taxi2 the id of the taxi of the following coordinate
+     * @param start the timestamp of the first coordinate in milliseconds
+     * @param stop the timestamp of the following coordinate in milliseconds
+     */
+    void add(int taxi1, int taxi2, long start, long stop);
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Boundary state of an incremental contact trace generation (see IncrementalContactTraceGenerator)
+ *
+ * The checkpoint holds the contact parameters it was made with, the last timestamp generated,
+ * the length of the contact trace once its contacts were written,
+ * the coordinates of the last TIME_RANGE seconds (the only ones a later coordinate can be in contact with)
+ * and the contact episodes still open (when EPISODE_GAP is set).
+ * Its binary format (little endian) is a header (magic number, version, lengths, parameters,
+ * last timestamp, contact trace length, metric name) followed by the coordinates, as the records of MappedCoordinateStore,
+ * and by the open episodes, as the records of ContactWriter.
+ */
+public class ContactTraceCheckpoint {
+
+    public static final long MAGIC = 0x31504B4349584154L; // "TAXICKP1"
+    public static final int VERSION = 2;
+
+    private double distanceRange;
+    private long timeRange;
+    private long episodeGap;
+    private String metric;
+    private long lastTimestamp;
+    private long outputLength; // bytes of the contact trace, -1 if unknown
+    private ColumnarCoordinateStore window;
+    private ContactBuffer episodes;
+
+    /**
+     * Creates the empty checkpoint of a first generation, with the current contact parameters
+     * (the contact trace starts empty)
+     */
+    public ContactTraceCheckpoint() {
+        this(Long.MIN_VALUE, new ColumnarCoordinateStore(0), new ContactBuffer(0));
+        this.outputLength = 0;
+    }
+
+    /**
+     * Creates a checkpoint with the current contact parameters
+     *
+     * @param lastTimestamp the last timestamp generated in seconds
+     * @param window the coordinates of the last TIME_RANGE seconds, in time order
+     * @param episodes the open contact episodes
+     */
+    public ContactTraceCheckpoint(long lastTimestamp, ColumnarCoordinateStore window, ContactBuffer episodes) {
+        this.distanceRange = Trace.DISTANCE_RANGE;
+        this.timeRange = Trace.TIME_RANGE;
+        this.episodeGap = Trace.EPISODE_GAP;
+        this.metric = Trace.DISTANCE_METRIC.toString();
+        this.lastTimestamp = lastTimestamp;
+        this.outputLength = -1;
+        this.window = window;
+        this.episodes = episodes;
+    }
+
+    /**
+     * Reads a checkpoint file
+     *
+     * @param file the checkpoint file
+     * @return the checkpoint
+     * @throws IOException if the file cannot be read or is not a checkpoint
+     */
+    public static ContactTraceCheckpoint read(File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < 8 || buffer.getLong() != MAGIC) throw new IOException(file + ": not a checkpoint");
+        int version = buffer.getInt();
+        if (version != 1 && version != VERSION) throw new IOException(file + ": unsupported checkpoint version");
+        int windowLength = buffer.getInt();
+        int episodeLength = buffer.getInt();
+        byte[] name = new byte[buffer.getInt()];
+        ContactTraceCheckpoint checkpoint = new ContactTraceCheckpoint(0,
+                new ColumnarCoordinateStore(windowLength), new ContactBuffer(episodeLength));
+        checkpoint.distanceRange = buffer.getDouble();
+        checkpoint.timeRange = buffer.getLong();
+        checkpoint.episodeGap = buffer.getLong();
+        checkpoint.lastTimestamp = buffer.getLong();
+        checkpoint.outputLength = version == 1 ? -1 : buffer.getLong();
+        buffer.get(name);
+        checkpoint.metric = new String(name, StandardCharsets.UTF_8);
+        for (int i = 0; i < windowLength; i++) {
+            long timestamp = buffer.getLong();
+            double longitude = buffer.getDouble();
+            double latitude = buffer.getDouble();
+            int number = buffer.getInt();
+            int state = buffer.getInt();
+            checkpoint.window.add(number, timestamp, longitude, latitude, ColumnarCoordinateStore.unpackSpeed(state),
+                    ColumnarCoordinateStore.unpackDirection(state), ColumnarCoordinateStore.unpackStatus(state));
+        }
+        for (int i = 0; i < episodeLength; i++) {
+            checkpoint.episodes.add(buffer.getInt(), buffer.getInt(), buffer.getLong(), buffer.getLong());
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Writes the checkpoint (into a temporary file renamed at the end, so an interrupted write keeps the previous one)
+     *
+     * @param file the checkpoint file
+     * @throws IOException
+     */
+    public void write(File file) throws IOException {
+        byte[] name = metric.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(64 + name.length
+                + window.size() * MappedCoordinateStore.RECORD_SIZE
+                + episodes.size() * ContactWriter.RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putLong(MAGIC).putInt(VERSION).putInt(window.size()).putInt(episodes.size()).putInt(name.length)
+                .putDouble(distanceRange).putLong(timeRange).putLong(episodeGap).putLong(lastTimestamp)
+                .putLong(outputLength).put(name);
+        for (int i = 0; i < window.size(); i++) {
+            buffer.putLong(window.getTaxiTimestamp(i))
+                    .putDouble(window.getTaxiLongitude(i))
+                    .putDouble(window.getTaxiLatitude(i))
+                    .putInt(window.getTaxiNumber(i))
+                    .putInt(ColumnarCoordinateStore.pack(window.getTaxiSpeed(i),
+                            window.getTaxiDirection(i), window.getTaxiStatus(i)));
+        }
+        for (int i = 0; i < episodes.size(); i++) {
+            buffer.putInt(episodes.getTaxi1(i)).putInt(episodes.getTaxi2(i))
+                    .putLong(episodes.getStart(i)).putLong(episodes.getStop(i));
+        }
+        File temporary = new File(file.getPath() + ".tmp");
+        Files.write(temporary.toPath(), buffer.array());
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Checks that the checkpoint was made with the current contact parameters
+     *
+     * @param file the checkpoint file (for the error message)
+     * @throws IOException if a parameter differs
+     */
+    public void checkParameters(File file) throws IOException {
+        if (distanceRange != Trace.DISTANCE_RANGE || timeRange != Trace.TIME_RANGE
+                || episodeGap != Trace.EPISODE_GAP || !metric.equals(Trace.DISTANCE_METRIC.toString())) {
+            throw new IOException(file + ": checkpoint made with other contact parameters (DISTANCE_RANGE=" + distanceRange
+                    + ", TIME_RANGE=" + timeRange + ", EPISODE_GAP=" + episodeGap + ", DISTANCE_METRIC=" + metric + ")");
+        }
+    }
+
+    /**
+     * Gets the last timestamp generated
+     *
+     * @return the timestamp in seconds, Long.MIN_VALUE if nothing was generated yet
+     */
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    /**
+     * Gets the length of the contact trace once the contacts up to the checkpoint were written
+     *
+     * @return the length in bytes, -1 if unknown (version 1 checkpoint)
+     */
+    public long getOutputLength() {
+        return outputLength;
+    }
+
+    /**
+     * Sets the length of the contact trace once the contacts up to the checkpoint are written
+     *
+     * @param outputLength the length in bytes
+     */
+    public void setOutputLength(long outputLength) {
+        this.outputLength = outputLength;
+    }
+
+    public ColumnarCoordinateStore getWindow() {
+        return window;
+    }
+
+    public ContactBuffer getEpisodes() {
+        return episodes;
+    }
+}
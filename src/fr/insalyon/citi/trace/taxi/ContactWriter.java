@@ -0,0 +1,180 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a contact trace through a large direct buffer
+ *
+ * The contact trace is written either in the text format ("taxi1 taxi2 start stop" lines, as Contact.toString)
+ * or in the binary format (little endian): a 16 bytes header (magic number, version, record size)
+ * followed by the fixed-width records taxi1 (int), taxi2 (int), start (long, ms), stop (long, ms).
+ * Both formats can be gzip compressed on the fly, and appended to an existing contact trace
+ * (a gzip contact trace then holds several gzip members, read as one by GZIPInputStream).
+ */
+public class ContactWriter implements ContactSink, Closeable {
+
+    public enum Format { TEXT, BINARY }
+
+    public static final long MAGIC = 0x3143544349584154L; // "TAXICTC1"
+    public static final int VERSION = 1;
+    public static final int RECORD_SIZE = 24;
+    public static final int HEADER_SIZE = 16;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final int MAX_LINE_SIZE = 4 * 21; // 4 numbers with their sign and separator
+
+    private Format format;
+    private WritableByteChannel channel;
+    private ByteBuffer buffer;
+    private byte[] digits;
+
+    /**
+     * Creates the contact trace file and writes its header
+     *
+     * @param file the destination file
+     * @param format the contact trace format
+     * @param compressed true to gzip the contact trace
+     * @throws IOException
+     */
+    public ContactWriter(File file, Format format, boolean compressed) throws IOException {
+        this(file, format, compressed, false);
+    }
+
+    /**
+     * Creates or extends the contact trace file (the header is only written in an empty file)
+     *
+     * @param file the destination file
+     * @param format the contact trace format (the one of the existing contact trace when appending)
+     * @param compressed true to gzip the contact trace
+     * @param append true to add the contacts at the end of the existing contact trace
+     * @throws IOException
+     */
+    public ContactWriter(File file, Format format, boolean compressed, boolean append) throws IOException {
+        boolean empty = !append || file.length() == 0;
+        FileOutputStream out = new FileOutputStream(file, append);
+        this.format = format;
+        this.channel = compressed ? Channels.newChannel(new GZIPOutputStream(out, 1 << 16)) : out.getChannel();
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        this.digits = new byte[20];
+        if (format == Format.BINARY && empty) buffer.putLong(MAGIC).putInt(VERSION).putInt(RECORD_SIZE);
+    }
+
+    /**
+     * Writes a whole contact trace
+     *
+     * @param contacts the sorted contacts
+     * @param file the destination file
+     * @param format the contact trace format
+     * @param compressed true to gzip the contact trace
+     * @throws IOException
+     */
+    public static void write(ContactBuffer contacts, File file, Format format, boolean compressed) throws IOException {
+        Metrics.Timer timer = Metrics.start(Metrics.Phase.WRITE);
+        try (ContactWriter writer = new ContactWriter(file, format, compressed)) {
+            int size = contacts.size();
+            for (int part = 10, i = 0; part > 0; part--) {
+                for (int end = Trace.progress(size, part); i < end; i++) {
+                    writer.write(contacts.getTaxi1(i), contacts.getTaxi2(i), contacts.getStart(i), contacts.getStop(i));
+                }
+            }
+        } finally {
+            timer.stop();
+        }
+        if (Trace.VERBOSE) System.out.println("done.");
+    }
+
+    /**
+     * Writes a contact (as soon as it is detected, without any order)
+     *
+     * @throws UncheckedIOException if the contact cannot be written
+     */
+    @Override
+    public void add(int taxi1, int taxi2, long start, long stop) {
+        try {
+            write(taxi1, taxi2, start, stop);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes a contact
+     *
+     * @throws IOException
+     */
+    public void write(int taxi1, int taxi2, long start, long stop) throws IOException {
+        if (buffer.remaining() < MAX_LINE_SIZE) flush();
+        if (format == Format.BINARY) {
+            buffer.putInt(taxi1).putInt(taxi2).putLong(start).putLong(stop);
+        } else {
+            putDecimal(taxi1);
+            buffer.put((byte) ' ');
+            putDecimal(taxi2);
+            buffer.put((byte) ' ');
+            putDecimal(start);
+            buffer.put((byte) ' ');
+            putDecimal(stop);
+            buffer.put((byte) '\n');
+        }
+    }
+
+    /**
+     * Writes the remaining buffered contacts and closes the file
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void putDecimal(long value) {
+        if (value < 0) buffer.put((byte) '-');
+        else value = -value; // the digits are computed on the negative value to handle Long.MIN_VALUE
+        int length = 0;
+        do {
+            digits[length++] = (byte) ('0' - value % 10);
+            value /= 10;
+        } while (value != 0);
+        while (length > 0) buffer.put(digits[--length]);
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+}
@@ -69,6 +69,51 @@ public class Coordinate {
         return taxiTimestamp;
     }
 
+    /**
+     * Gets the current longitude
+     *
+     * @return the longitude of a taxi in degrees
+     */
+    public double getTaxiLongitude() {
+        return taxiLongitude;
+    }
+
+    /**
+     * Gets the current latitude
+     *
+     * @return the latitude of a taxi in degrees
+     */
+    public double getTaxiLatitude() {
+        return taxiLatitude;
+    }
+
+    /**
+     * Gets the current speed
+     *
+     * @return the speed of a taxi
+     */
+    public int getTaxiSpeed() {
+        return taxiSpeed;
+    }
+
+    /**
+     * Gets the current direction
+     *
+     * @return the direction degree of a taxi
+     */
+    public int getTaxiDirection() {
+        return taxiDirection;
+    }
+
+    /**
+     * Gets the current status
+     *
+     * @return the status of a taxi
+     */
+    public int getTaxiStatus() {
+        return taxiStatus;
+    }
+
     /**
      * Computes the distance between two taxi coordinates:
      * the current and the given one
@@ -77,7 +122,20 @@ public class Coordinate {
      * @return the distance in meters
      */
     public double distance(Coordinate coordinate) {
-        return distanceHaversine(coordinate);
+        return distance(taxiLatitude, taxiLongitude, coordinate.taxiLatitude, coordinate.taxiLongitude);
+    }
+
+    /**
+     * Computes the distance between two GPS coordinates given in degrees, with Trace.DISTANCE_METRIC
+     *
+     * @param latitude1 of the first coordinate
+     * @param longitude1 of the first coordinate
+     * @param latitude2 of the second coordinate
+     * @param longitude2 of the second coordinate
+     * @return the distance in meters
+     */
+    public static double distance(double latitude1, double longitude1, double latitude2, double longitude2) {
+        return Trace.DISTANCE_METRIC.distance(latitude1, longitude1, latitude2, longitude2);
     }
 
     /**
@@ -93,9 +151,18 @@ public class Coordinate {
      * @return the distance in meters
      */
     public double distanceGeometric(Coordinate coordinate) {
-        double theta = taxiLongitude - coordinate.taxiLongitude;
-        double dist = Math.sin(deg2rad(taxiLatitude)) * Math.sin(deg2rad(coordinate.taxiLatitude))
-                + Math.cos(deg2rad(taxiLatitude)) * Math.cos(deg2rad(coordinate.taxiLatitude)) * Math.cos(deg2rad(theta));
+        return distanceGeometric(taxiLatitude, taxiLongitude, coordinate.taxiLatitude, coordinate.taxiLongitude);
+    }
+
+    /**
+     * Computes the perfect circle earth distance between two GPS coordinates given in degrees
+     *
+     * @see #distanceGeometric(Coordinate)
+     */
+    public static double distanceGeometric(double latitude1, double longitude1, double latitude2, double longitude2) {
+        double theta = longitude1 - longitude2;
+        double dist = Math.sin(deg2rad(latitude1)) * Math.sin(deg2rad(latitude2))
+                + Math.cos(deg2rad(latitude1)) * Math.cos(deg2rad(latitude2)) * Math.cos(deg2rad(theta));
         dist = Math.acos(dist);
         dist = rad2deg(dist);
         dist = dist * 60 * 1.1515; // miles
@@ -104,11 +171,11 @@ public class Coordinate {
         return (dist);
     }
 
-    private double deg2rad(double deg) {
+    private static double deg2rad(double deg) {
         return (deg * Math.PI / 180.0);
     }
 
-    private double rad2deg(double rad) {
+    private static double rad2deg(double rad) {
         return (rad * 180.0 / Math.PI);
     }
 
@@ -125,13 +192,22 @@ public class Coordinate {
      * @return the distance in meters
      */
     public double distanceHaversine(Coordinate coordinate) {
+        return distanceHaversine(taxiLatitude, taxiLongitude, coordinate.taxiLatitude, coordinate.taxiLongitude);
+    }
+
+    /**
+     * Computes the Haversine distance between two GPS coordinates given in degrees
+     *
+     * @see #distanceHaversine(Coordinate)
+     */
+    public static double distanceHaversine(double latitude1, double longitude1, double latitude2, double longitude2) {
         double earthRadius = 3958.75;
-        double dLat = Math.toRadians(coordinate.taxiLatitude - taxiLatitude);
-        double dLng = Math.toRadians(coordinate.taxiLongitude - taxiLongitude);
+        double dLat = Math.toRadians(latitude2 - latitude1);
+        double dLng = Math.toRadians(longitude2 - longitude1);
         double sindLat = Math.sin(dLat / 2);
         double sindLng = Math.sin(dLng / 2);
         double a = Math.pow(sindLat, 2) + Math.pow(sindLng, 2)
-                * Math.cos(Math.toRadians(taxiLatitude)) * Math.cos(Math.toRadians(coordinate.taxiLatitude));
+                * Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2));
         double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
         double dist = earthRadius * c;
         dist = dist * 1.609344; // kilometers
@@ -152,10 +228,19 @@ public class Coordinate {
      * @return the distance in meters
      */
     public double distanceVincenty(Coordinate coordinate) {
+        return distanceVincenty(taxiLatitude, taxiLongitude, coordinate.taxiLatitude, coordinate.taxiLongitude);
+    }
+
+    /**
+     * Computes the Vincenty distance between two GPS coordinates given in degrees
+     *
+     * @see #distanceVincenty(Coordinate)
+     */
+    public static double distanceVincenty(double latitude1, double longitude1, double latitude2, double longitude2) {
         double a = 6378137, b = 6356752.314245, f = 1 / 298.257223563; // WGS-84 ellipsoid params
-        double L = Math.toRadians(coordinate.taxiLongitude - taxiLongitude);
-        double U1 = Math.atan((1 - f) * Math.tan(Math.toRadians(taxiLatitude)));
-        double U2 = Math.atan((1 - f) * Math.tan(Math.toRadians(coordinate.taxiLatitude)));
+        double L = Math.toRadians(longitude2 - longitude1);
+        double U1 = Math.atan((1 - f) * Math.tan(Math.toRadians(latitude1)));
+        double U2 = Math.atan((1 - f) * Math.tan(Math.toRadians(latitude2)));
         double sinU1 = Math.sin(U1), cosU1 = Math.cos(U1);
         double sinU2 = Math.sin(U2), cosU2 = Math.cos(U2);
 
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import java.util.Date;
+
+/**
+ * Stores the taxi coordinates of a trace, indexed in time order
+ * (first according to the timestamp, then according to the taxi id, as CoordinateId)
+ */
+public interface CoordinateStore {
+
+    /**
+     * Gets the number of coordinates
+     *
+     * @return the trace length
+     */
+    int size();
+
+    /**
+     * Identifies the taxi of a coordinate
+     *
+     * @param index of the coordinate
+     * @return the id of a taxi
+     */
+    int getTaxiNumber(int index);
+
+    /**
+     * Gets the date of a coordinate
+     *
+     * @param index of the coordinate
+     * @return the timestamp of a taxi in seconds since the epoch
+     */
+    long getTaxiTimestamp(int index);
+
+    /**
+     * Gets the longitude of a coordinate
+     *
+     * @param index of the coordinate
+     * @return the longitude of a taxi in degrees
+     */
+    double getTaxiLongitude(int index);
+
+    /**
+     * Gets the latitude of a coordinate
+     *
+     * @param index of the coordinate
+     * @return the latitude of a taxi in degrees
+     */
+    double getTaxiLatitude(int index);
+
+    /**
+     * Gets the speed of a coordinate
+     *
+     * @param index of the coordinate
+     * @return the speed of a taxi
+     */
+    int getTaxiSpeed(int index);
+
+    /**
+     * Gets the direction of a coordinate
+     *
+     * @param index of the coordinate
+     * @return the direction degree of a taxi
+     */
+    int getTaxiDirection(int index);
+
+    /**
+     * Gets the status of a coordinate
+     *
+     * @param index of the coordinate
+     * @return the status of a taxi
+     */
+    int getTaxiStatus(int index);
+
+    /**
+     * Estimates the memory used by the store
+     *
+     * @return the size in bytes
+     */
+    long getMemorySize();
+
+    /**
+     * Creates the coordinate object of an index (only for display and compatibility purposes)
+     *
+     * @param index of the coordinate
+     * @return the coordinate
+     */
+    default Coordinate getCoordinate(int index) {
+        return new Coordinate(getTaxiNumber(index),
+                new Date(getTaxiTimestamp(index) * 1000),
+                getTaxiLongitude(index),
+                getTaxiLatitude(index),
+                getTaxiSpeed(index),
+                getTaxiDirection(index),
+                getTaxiStatus(index));
+    }
+
+    /**
+     * Compares the coordinate of an index to a coordinate id
+     * first according to the time criterion
+     * then according to the taxi id
+     *
+     * @param index of the coordinate
+     * @param taxiTimestamp the timestamp in seconds
+     * @param taxiNumber the id of a taxi
+     * @return int -1,0,1
+     */
+    default int compareTo(int index, long taxiTimestamp, int taxiNumber) {
+        long timestamp = getTaxiTimestamp(index);
+        if (timestamp < taxiTimestamp) return -1;
+        if (timestamp > taxiTimestamp) return 1;
+        int number = getTaxiNumber(index);
+        if (number < taxiNumber) return -1;
+        if (number > taxiNumber) return 1;
+        return 0;
+    }
+
+    /**
+     * Finds by binary search the first coordinate greater than or equal to a coordinate id
+     *
+     * @param taxiTimestamp the timestamp in seconds
+     * @param taxiNumber the id of a taxi
+     * @return the index of the coordinate, size() if there is none
+     */
+    default int ceiling(long taxiTimestamp, int taxiNumber) {
+        int low = 0;
+        int high = size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compareTo(middle, taxiTimestamp, taxiNumber) < 0) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * Finds by binary search the first coordinate strictly greater than a coordinate id
+     *
+     * @param taxiTimestamp the timestamp in seconds
+     * @param taxiNumber the id of a taxi
+     * @return the index of the coordinate, size() if there is none
+     */
+    default int higher(long taxiTimestamp, int taxiNumber) {
+        int low = 0;
+        int high = size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compareTo(middle, taxiTimestamp, taxiNumber) <= 0) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+/**
+ * Computes the distance between two GPS coordinates and checks it against the contact distance range
+ *
+ * The range check works on a per-coordinate cache (e.g. radians and cosines computed once per coordinate)
+ * and on a per-run threshold (the distance range converted once into the metric space),
+ * so that a metric can avoid any trigonometry, sqrt or atan2 per pair of coordinates.
+ */
+public interface DistanceMetric {
+
+    int CACHE_SIZE = 3; // doubles per coordinate
+
+    /**
+     * Computes the distance between two GPS coordinates given in degrees
+     *
+     * @return the distance in meters
+     */
+    double distance(double latitude1, double longitude1, double latitude2, double longitude2);
+
+    /**
+     * Fills the cache of a coordinate
+     *
+     * @param latitude of the coordinate in degrees
+     * @param longitude of the coordinate in degrees
+     * @param cache where to store the CACHE_SIZE values of the coordinate
+     * @param offset of the coordinate in the cache
+     */
+    default void prepare(double latitude, double longitude, double[] cache, int offset) {
+        cache[offset] = latitude;
+        cache[offset + 1] = longitude;
+    }
+
+    /**
+     * Converts a distance range into the threshold given to isInRange
+     *
+     * @param distance the distance range in meters
+     * @return the threshold
+     */
+    default double threshold(double distance) {
+        return distance;
+    }
+
+    /**
+     * Checks that two prepared coordinates are at most at the threshold distance
+     *
+     * @return true if the coordinates are in range
+     */
+    default boolean isInRange(double[] cache1, int offset1, double[] cache2, int offset2, double threshold) {
+        return distance(cache1[offset1], cache1[offset1 + 1], cache2[offset2], cache2[offset2 + 1]) <= threshold;
+    }
+
+    /**
+     * Computes the longitude half-width (in degrees) of the bounding box of a coordinate:
+     * two coordinates whose longitudes differ by more are farther than the distance with any metric
+     * (the latitude half-height is GridContactTraceGenerator.latitudeCell)
+     *
+     * @param distance the distance range in meters
+     * @param latitude of the coordinate in degrees
+     * @return the half-width in degrees
+     */
+    static double longitudeLimit(double distance, double latitude) {
+        double maxLatitude = Math.abs(latitude) + GridContactTraceGenerator.latitudeCell(distance);
+        if (maxLatitude >= 89) return 360;
+        return GridContactTraceGenerator.longitudeCell(distance, maxLatitude);
+    }
+
+    /**
+     * Estimates the highest error of a metric against the Vincenty (WGS-84 ellipsoid) distance,
+     * on pairs of coordinates up to the distance range apart in every direction, between two latitudes
+     *
+     * @param metric the metric to check
+     * @param distance the distance range in meters
+     * @param minLatitude the lowest latitude of the coordinates in degrees
+     * @param maxLatitude the highest latitude of the coordinates in degrees
+     * @return the highest absolute error in meters
+     */
+    static double maxError(DistanceMetric metric, double distance, double minLatitude, double maxLatitude) {
+        double maxError = 0;
+        for (int i = 0; i <= 16; i++) {
+            double latitude = minLatitude + (maxLatitude - minLatitude) * i / 16;
+            for (int bearing = 0; bearing < 360; bearing += 15) {
+                for (int k = 1; k <= 4; k++) {
+                    double angle = distance * k / 4 / Standard.EARTH_RADIUS;
+                    double latitude2 = latitude + Math.toDegrees(angle * Math.cos(Math.toRadians(bearing)));
+                    double longitude2 = Math.toDegrees(angle * Math.sin(Math.toRadians(bearing))
+                            / Math.cos(Math.toRadians(latitude)));
+                    double error = Math.abs(metric.distance(latitude, 0, latitude2, longitude2)
+                            - Coordinate.distanceVincenty(latitude, 0, latitude2, longitude2));
+                    maxError = Math.max(maxError, error);
+                }
+            }
+        }
+        return maxError;
+    }
+
+    /**
+     * The available metrics
+     */
+    enum Standard implements DistanceMetric {
+
+        /**
+         * Exact Haversine distance (see Coordinate.distanceHaversine)
+         */
+        HAVERSINE {
+            @Override
+            public double distance(double latitude1, double longitude1, double latitude2, double longitude2) {
+                return Coordinate.distanceHaversine(latitude1, longitude1, latitude2, longitude2);
+            }
+        },
+
+        /**
+         * Exact Vincenty distance on the WGS-84 ellipsoid (see Coordinate.distanceVincenty)
+         */
+        VINCENTY {
+            @Override
+            public double distance(double latitude1, double longitude1, double latitude2, double longitude2) {
+                return Coordinate.distanceVincenty(latitude1, longitude1, latitude2, longitude2);
+            }
+        },
+
+        /**
+         * Spherical law of cosines (see Coordinate.distanceGeometric)
+         */
+        GEOMETRIC {
+            @Override
+            public double distance(double latitude1, double longitude1, double latitude2, double longitude2) {
+                return Coordinate.distanceGeometric(latitude1, longitude1, latitude2, longitude2);
+            }
+        },
+
+        /**
+         * Squared chord between the unit vectors of the coordinates, on the Haversine sphere:
+         * the same range check as Haversine (up to rounding) with 3 subtractions and 3 multiplications per pair
+         */
+        CHORD {
+            @Override
+            public double distance(double latitude1, double longitude1, double latitude2, double longitude2) {
+                double[] cache = new double[2 * CACHE_SIZE];
+                prepare(latitude1, longitude1, cache, 0);
+                prepare(latitude2, longitude2, cache, CACHE_SIZE);
+                return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(squaredChord(cache, 0, cache, CACHE_SIZE)) / 2));
+            }
+
+            @Override
+            public void prepare(double latitude, double longitude, double[] cache, int offset) {
+                double phi = Math.toRadians(latitude);
+                double lambda = Math.toRadians(longitude);
+                cache[offset] = Math.cos(phi) * Math.cos(lambda);
+                cache[offset + 1] = Math.cos(phi) * Math.sin(lambda);
+                cache[offset + 2] = Math.sin(phi);
+            }
+
+            @Override
+            public double threshold(double distance) {
+                double chord = 2 * Math.sin(Math.min(Math.PI / 2, distance / (2 * EARTH_RADIUS)));
+                return chord * chord;
+            }
+
+            @Override
+            public boolean isInRange(double[] cache1, int offset1, double[] cache2, int offset2, double threshold) {
+                return squaredChord(cache1, offset1, cache2, offset2) <= threshold;
+            }
+
+            private double squaredChord(double[] cache1, int offset1, double[] cache2, int offset2) {
+                double dx = cache1[offset1] - cache2[offset2];
+                double dy = cache1[offset1 + 1] - cache2[offset2 + 1];
+                double dz = cache1[offset1 + 2] - cache2[offset2 + 2];
+                return dx * dx + dy * dy + dz * dz;
+            }
+        },
+
+        /**
+         * Equirectangular approximation on the Haversine sphere (the small angle limit of Haversine):
+         * accurate at city scale, but not across the 180th meridian
+         */
+        EQUIRECTANGULAR {
+            @Override
+            public double distance(double latitude1, double longitude1, double latitude2, double longitude2) {
+                double[] cache = new double[2 * CACHE_SIZE];
+                prepare(latitude1, longitude1, cache, 0);
+                prepare(latitude2, longitude2, cache, CACHE_SIZE);
+                return EARTH_RADIUS * Math.sqrt(squaredAngle(cache, 0, cache, CACHE_SIZE));
+            }
+
+            @Override
+            public void prepare(double latitude, double longitude, double[] cache, int offset) {
+                cache[offset] = Math.toRadians(latitude);
+                cache[offset + 1] = Math.toRadians(longitude);
+                cache[offset + 2] = Math.cos(cache[offset]);
+            }
+
+            @Override
+            public double threshold(double distance) {
+                double angle = distance / EARTH_RADIUS;
+                return angle * angle;
+            }
+
+            @Override
+            public boolean isInRange(double[] cache1, int offset1, double[] cache2, int offset2, double threshold) {
+                return squaredAngle(cache1, offset1, cache2, offset2) <= threshold;
+            }
+
+            private double squaredAngle(double[] cache1, int offset1, double[] cache2, int offset2) {
+                double dPhi = cache1[offset1] - cache2[offset2];
+                double dLambda = cache1[offset1 + 1] - cache2[offset2 + 1];
+                return dPhi * dPhi + cache1[offset1 + 2] * cache2[offset2 + 2] * dLambda * dLambda;
+            }
+        };
+
+        // radius of the Haversine sphere in meters (3958.75 miles)
+        static final double EARTH_RADIUS = 3958.75 * 1609.344;
+    }
+}
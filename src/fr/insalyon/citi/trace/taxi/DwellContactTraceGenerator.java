@@ -0,0 +1,293 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Generates the contact trace of dwell segments instead of single coordinates
+ *
+ * The consecutive coordinates of a taxi at the very same position (parked or queuing taxis)
+ * are collapsed into one dwell segment with the timestamps of its coordinates, a moving taxi giving segments of one coordinate.
+ * The segments are swept in the order of their first coordinate through the same grid cells as GridContactTraceGenerator,
+ * and the distance of two segments is checked once for all their coordinates. The in-range pairs of segments are then
+ * expanded into the contacts of their coordinates within TIME_RANGE, with the same time window, bounding box
+ * and distance metric as the grid, so the contact trace is exactly the one of the point-wise implementations.
+ */
+public class DwellContactTraceGenerator {
+
+    // distance of two segments, checked once per order of their coordinates
+    private static final int UNKNOWN = 0;
+    private static final int IN = 1;
+    private static final int OUT = 2;
+
+    private double distanceRange;
+    private long timeRange;
+    private DistanceMetric metric;
+    private double threshold;
+    private double latitudeCell;
+
+    private int nbCoordinates;
+    private int size;
+    private int[] taxis;
+    private double[] latitudes;
+    private double[] longitudes;
+    private int[] firsts; // first timestamp of each segment, the last segment being followed by the number of coordinates
+    private long[] timestamps; // timestamps of the coordinates, grouped by segment in time order
+    private double[] cache; // distance metric values of the segments
+    private long nbEvaluated; // counters of the Metrics, added once per generation
+    private long nbPrefiltered;
+    private long nbEmitted;
+
+    /**
+     * Collapses the dwells of the taxi coordinates, with the current contact parameters
+     *
+     * @param taxiCoordinates the taxi coordinates in time order
+     */
+    public DwellContactTraceGenerator(CoordinateStore taxiCoordinates) {
+        this(taxiCoordinates, ContactParameters.current());
+    }
+
+    /**
+     * Collapses the dwells of the taxi coordinates (the episode gap of the parameters is left to the sink)
+     *
+     * @param taxiCoordinates the taxi coordinates in time order
+     * @param parameters the contact parameters
+     */
+    public DwellContactTraceGenerator(CoordinateStore taxiCoordinates, ContactParameters parameters) {
+        this.distanceRange = parameters.getDistanceRange();
+        this.timeRange = parameters.getTimeRange();
+        this.metric = parameters.getMetric();
+        this.threshold = metric.threshold(distanceRange);
+        this.latitudeCell = GridContactTraceGenerator.latitudeCell(distanceRange);
+        collapse(taxiCoordinates);
+    }
+
+    private void collapse(CoordinateStore taxiCoordinates) {
+        nbCoordinates = taxiCoordinates.size();
+        taxis = new int[nbCoordinates];
+        latitudes = new double[nbCoordinates];
+        longitudes = new double[nbCoordinates];
+        int[] segments = new int[nbCoordinates];
+        int[] lengths = new int[nbCoordinates];
+        HashMap<Integer, Integer> current = new HashMap<>(); // last segment of each taxi
+        for (int i = 0; i < nbCoordinates; i++) {
+            int taxi = taxiCoordinates.getTaxiNumber(i);
+            double latitude = taxiCoordinates.getTaxiLatitude(i);
+            double longitude = taxiCoordinates.getTaxiLongitude(i);
+            Integer segment = current.get(taxi);
+            if (segment == null
+                    || Double.doubleToLongBits(latitudes[segment]) != Double.doubleToLongBits(latitude)
+                    || Double.doubleToLongBits(longitudes[segment]) != Double.doubleToLongBits(longitude)) {
+                segment = size++;
+                taxis[segment] = taxi;
+                latitudes[segment] = latitude;
+                longitudes[segment] = longitude;
+                current.put(taxi, segment);
+            }
+            segments[i] = segment;
+            lengths[segment]++;
+        }
+        taxis = Arrays.copyOf(taxis, size);
+        latitudes = Arrays.copyOf(latitudes, size);
+        longitudes = Arrays.copyOf(longitudes, size);
+        firsts = new int[size + 1];
+        for (int segment = 0; segment < size; segment++) firsts[segment + 1] = firsts[segment] + lengths[segment];
+        timestamps = new long[nbCoordinates];
+        System.arraycopy(firsts, 0, lengths, 0, size); // next free timestamp of each segment
+        for (int i = 0; i < nbCoordinates; i++) timestamps[lengths[segments[i]]++] = taxiCoordinates.getTaxiTimestamp(i);
+        cache = new double[size * DistanceMetric.CACHE_SIZE];
+        for (int segment = 0; segment < size; segment++) {
+            metric.prepare(latitudes[segment], longitudes[segment], cache, segment * DistanceMetric.CACHE_SIZE);
+        }
+    }
+
+    /**
+     * Generates the contact trace of all the coordinates
+     *
+     * @param sink where to add the detected contacts (without any time order)
+     */
+    public void generate(ContactSink sink) {
+        double maxLatitude = 0;
+        for (double latitude : latitudes) maxLatitude = Math.max(maxLatitude, Math.abs(latitude));
+        double longitudeCell = GridContactTraceGenerator.longitudeCell(distanceRange, maxLatitude);
+        HashMap<Long, Cell> grid = new HashMap<>();
+        for (int part = 10, follower = 0; part > 0; part--) {
+            for (int end = Trace.progress(size, part); follower < end; follower++) {
+                long start = timestamps[firsts[follower]];
+                long latitudeIndex = (long) Math.floor(latitudes[follower] / latitudeCell);
+                long longitudeIndex = (long) Math.floor(longitudes[follower] / longitudeCell);
+                for (long i = latitudeIndex - 1; i <= latitudeIndex + 1; i++) {
+                    for (long j = longitudeIndex - 1; j <= longitudeIndex + 1; j++) {
+                        Long key = cellKey(i, j);
+                        Cell cell = grid.get(key);
+                        if (cell == null) continue;
+                        for (int k = 0; k < cell.length; ) {
+                            int entry = cell.segments[k];
+                            if (timestamps[firsts[entry + 1] - 1] + timeRange < start) {
+                                cell.segments[k] = cell.segments[--cell.length]; // ended before the time window
+                            } else {
+                                if (taxis[entry] != taxis[follower]) compare(entry, follower, sink);
+                                k++;
+                            }
+                        }
+                        if (cell.length == 0) grid.remove(key);
+                    }
+                }
+                Long key = cellKey(latitudeIndex, longitudeIndex);
+                Cell cell = grid.get(key);
+                if (cell == null) {
+                    cell = new Cell();
+                    grid.put(key, cell);
+                }
+                cell.add(follower);
+            }
+        }
+        Metrics.countSlab(0, nbCoordinates, nbEvaluated, nbPrefiltered, nbEmitted);
+        nbEvaluated = 0;
+        nbPrefiltered = 0;
+        nbEmitted = 0;
+        if (Trace.VERBOSE) System.out.println("done.");
+    }
+
+    /**
+     * Generates the sorted contact trace of all the coordinates
+     *
+     * @return the contacts
+     */
+    public ContactBuffer generate() {
+        ContactBuffer contacts = new ContactBuffer();
+        Metrics.Timer timer = Metrics.start(Metrics.Phase.GENERATE);
+        generate(contacts);
+        timer.stop();
+        timer = Metrics.start(Metrics.Phase.DEDUPE);
+        contacts.sort();
+        timer.stop();
+        return contacts;
+    }
+
+    /**
+     * Expands a pair of segments overlapping in time into the contacts of their coordinates,
+     * each coordinate being the follower of the previous ones (in the order of the CoordinateStore)
+     *
+     * @param segment1 the segment starting first
+     * @param segment2 the other segment
+     * @param sink where to add the contacts
+     */
+    private void compare(int segment1, int segment2, ContactSink sink) {
+        // the distance only depends on the order of the coordinates, so it is checked at most once each way, when needed
+        int inRange12 = UNKNOWN;
+        int inRange21 = UNKNOWN;
+        int taxi1 = taxis[segment1];
+        int taxi2 = taxis[segment2];
+        int from = firsts[segment2];
+        int to = firsts[segment2 + 1];
+        for (int i = firsts[segment1]; i < firsts[segment1 + 1] && (inRange12 != OUT || inRange21 != OUT); i++) {
+            long timestamp1 = timestamps[i];
+            while (from < to && timestamps[from] < timestamp1 - timeRange) from++;
+            for (int j = from; j < to && timestamps[j] <= timestamp1 + timeRange; j++) {
+                long timestamp2 = timestamps[j];
+                if (timestamp2 > timestamp1 || (timestamp2 == timestamp1 && taxi2 > taxi1)) {
+                    if (inRange12 == OUT || !GridContactTraceGenerator.isFollowing(timestamp1 + timeRange, timestamp2, taxi2)) continue;
+                    if (inRange12 == UNKNOWN) inRange12 = isInRange(segment1, segment2) ? IN : OUT;
+                    if (inRange12 == IN) {
+                        nbEmitted++;
+                        sink.add(taxi1, taxi2, timestamp1 * 1000, timestamp2 * 1000);
+                    }
+                } else {
+                    if (inRange21 == OUT || !GridContactTraceGenerator.isFollowing(timestamp2 + timeRange, timestamp1, taxi1)) continue;
+                    if (inRange21 == UNKNOWN) inRange21 = isInRange(segment2, segment1) ? IN : OUT;
+                    if (inRange21 == IN) {
+                        nbEmitted++;
+                        sink.add(taxi2, taxi1, timestamp2 * 1000, timestamp1 * 1000);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the distance of two segments as the grid checks a previous coordinate against a following one
+     *
+     * @param entry the segment of the previous coordinates
+     * @param follower the segment of the following coordinates
+     * @return a boolean
+     */
+    private boolean isInRange(int entry, int follower) {
+        nbEvaluated++;
+        if (Math.abs(latitudes[entry] - latitudes[follower]) > latitudeCell
+                || Math.abs(longitudes[entry] - longitudes[follower])
+                > DistanceMetric.longitudeLimit(distanceRange, latitudes[follower])) {
+            nbPrefiltered++;
+            return false;
+        }
+        return metric.isInRange(cache, entry * DistanceMetric.CACHE_SIZE, cache, follower * DistanceMetric.CACHE_SIZE, threshold);
+    }
+
+    /**
+     * Gets the number of coordinates
+     *
+     * @return the number of coordinates
+     */
+    public int getNbCoordinates() {
+        return nbCoordinates;
+    }
+
+    /**
+     * Gets the number of segments (one per dwell, or per moving coordinate)
+     *
+     * @return the number of segments
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the number of dwells, i.e. the segments of more than one coordinate
+     *
+     * @return the number of dwells
+     */
+    public int getNbDwells() {
+        int nbDwells = 0;
+        for (int segment = 0; segment < size; segment++) {
+            if (firsts[segment + 1] - firsts[segment] > 1) nbDwells++;
+        }
+        return nbDwells;
+    }
+
+    private static Long cellKey(long latitudeIndex, long longitudeIndex) {
+        return (latitudeIndex << 32) ^ (longitudeIndex & 0xffffffffL);
+    }
+
+    /**
+     * Segments of a cell whose time window is not over
+     */
+    private static class Cell {
+        int[] segments = new int[4];
+        int length = 0;
+
+        void add(int segment) {
+            if (length == segments.length) segments = Arrays.copyOf(segments, 2 * length);
+            segments[length++] = segment;
+        }
+    }
+}
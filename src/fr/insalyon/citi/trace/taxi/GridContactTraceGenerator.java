@@ -0,0 +1,447 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Generates the contact trace by sweeping the taxi coordinates in time order
+ * and bucketing the coordinates of the current time window into a uniform latitude/longitude grid
+ *
+ * A cell is at least DISTANCE_RANGE wide in both directions, so a coordinate is only compared
+ * to the coordinates of its own cell and of the 8 neighbouring cells.
+ * The candidates are then filtered by a degree-space bounding box, and the distance is checked
+ * with the distance metric on the cached values of the coordinates (prepared once when inserted),
+ * the contact trace is therefore exactly the same as the one of the exhaustive implementations.
+ *
+ * Note: the grid does not wrap around the 180th meridian
+ */
+public class GridContactTraceGenerator {
+
+    // lower bound of the earth radius in meters (the WGS-84 meridional radius never goes below 6335 km),
+    // so that the cells stay large enough whatever the distance metric is
+    private static final double EARTH_MIN_RADIUS = 6300000;
+
+    // highest latitude taken into account to size the longitude cells
+    private static final double MAX_LATITUDE = 89;
+
+    private CoordinateStore taxiCoordinates;
+    private double distanceRange;
+    private long timeRange;
+    private double maxLatitude;
+    private double latitudeCell;
+    private double longitudeCell;
+
+    private HashMap<Long, Cell> grid;
+    private int[] next; // chains of the cells, indexed by coordinate index modulo the array length
+    private double[] cache; // distance metric values of the coordinates, indexed as the chains
+    private DistanceMetric metric;
+    private double threshold;
+    private double[] query;
+    private boolean batch; // evaluates the candidates by blocks with BatchDistanceKernel
+    private int[] blockEntries;
+    private double[][] blockValues;
+    private int blockLength;
+    private int oldest; // first coordinate still in the time window
+    private int evicted; // first coordinate possibly referenced by a chain
+    private int nbInserted;
+    private long nbEvaluated; // counters of the Metrics, added once per generation
+    private long nbPrefiltered;
+    private long nbEmitted;
+
+    /**
+     * Prepares an empty grid for the given coordinates
+     *
+     * @param taxiCoordinates the taxi coordinates in time order
+     */
+    public GridContactTraceGenerator(CoordinateStore taxiCoordinates) {
+        this(taxiCoordinates, 0);
+    }
+
+    /**
+     * Prepares an empty grid for the given coordinates, starting at a given index
+     *
+     * @param taxiCoordinates the taxi coordinates in time order
+     * @param from the index of the first coordinate to follow
+     */
+    public GridContactTraceGenerator(CoordinateStore taxiCoordinates, int from) {
+        this(taxiCoordinates, from, ContactParameters.current());
+    }
+
+    /**
+     * Prepares an empty grid for the given coordinates and contact parameters, starting at a given index
+     * (the episode gap of the parameters is left to the sink)
+     *
+     * @param taxiCoordinates the taxi coordinates in time order
+     * @param from the index of the first coordinate to follow
+     * @param parameters the contact parameters
+     */
+    public GridContactTraceGenerator(CoordinateStore taxiCoordinates, int from, ContactParameters parameters) {
+        this.taxiCoordinates = taxiCoordinates;
+        this.distanceRange = parameters.getDistanceRange();
+        this.timeRange = parameters.getTimeRange();
+        this.maxLatitude = 0;
+        this.latitudeCell = latitudeCell(distanceRange);
+        this.longitudeCell = longitudeCell(distanceRange, maxLatitude);
+        this.grid = new HashMap<>();
+        this.next = new int[1024];
+        this.metric = parameters.getMetric();
+        this.threshold = metric.threshold(distanceRange);
+        this.cache = new double[next.length * DistanceMetric.CACHE_SIZE];
+        this.query = new double[DistanceMetric.CACHE_SIZE];
+        this.batch = BatchDistanceKernel.supports(metric);
+        this.blockEntries = new int[BatchDistanceKernel.BLOCK_SIZE];
+        this.blockValues = new double[DistanceMetric.CACHE_SIZE][BatchDistanceKernel.BLOCK_SIZE];
+        this.blockLength = 0;
+        this.oldest = from;
+        this.evicted = from;
+        this.nbInserted = 0;
+    }
+
+    /**
+     * Computes the latitude height (in degrees) of a cell:
+     * two coordinates whose latitudes differ by more than this height are farther than the distance
+     *
+     * @param distance the distance range in meters
+     * @return the cell height in degrees
+     */
+    public static double latitudeCell(double distance) {
+        return Math.toDegrees(distance / EARTH_MIN_RADIUS);
+    }
+
+    /**
+     * Computes the longitude width (in degrees) of a cell:
+     * two coordinates under the given latitude whose longitudes differ by more than this width
+     * are farther than the distance
+     *
+     * @param distance the distance range in meters
+     * @param maxLatitude the highest absolute latitude of the coordinates in degrees
+     * @return the cell width in degrees
+     */
+    public static double longitudeCell(double distance, double maxLatitude) {
+        double cosLatitude = Math.cos(Math.toRadians(Math.min(maxLatitude, MAX_LATITUDE)));
+        double sinHalfWidth = distance / (2 * EARTH_MIN_RADIUS * cosLatitude);
+        if (sinHalfWidth >= 1) return 360;
+        return Math.toDegrees(2 * Math.asin(sinHalfWidth));
+    }
+
+    /**
+     * Generates the contact trace of all the coordinates
+     *
+     * @param sink where to add the detected contacts (in the time order of the following coordinates)
+     */
+    public void generate(ContactSink sink) {
+        int size = taxiCoordinates.size();
+        for (int part = 10, follower = 0; part > 0; part--) {
+            for (int end = Trace.progress(size, part); follower < end; follower++) {
+                follow(follower, sink);
+            }
+        }
+        countMetrics(0, size);
+        if (Trace.VERBOSE) System.out.println("done.");
+    }
+
+    /**
+     * Compares a coordinate to the previous coordinates of its time window, then inserts it in the grid
+     *
+     * The coordinates have to be followed one after the other in index order.
+     * Each cell chains its coordinates from the oldest to the most recent one,
+     * so the coordinates leaving the time window are dropped from the head of the chain.
+     *
+     * @param follower the index of the coordinate
+     * @param sink where to add the detected contacts
+     */
+    public void follow(int follower, ContactSink sink) {
+        compare(follower, sink);
+        insert(follower);
+    }
+
+    /**
+     * Inserts a coordinate in the grid without comparing it to the previous coordinates
+     * (e.g. the coordinates of the time window preceding a sampled range)
+     *
+     * @param index the index of the coordinate, following the ones already inserted
+     */
+    public void prefill(int index) {
+        double latitude = taxiCoordinates.getTaxiLatitude(index);
+        if (Math.abs(latitude) > maxLatitude) resize(Math.abs(latitude));
+        insert(index);
+    }
+
+    /**
+     * Generates the contacts of a range of coordinates with their following coordinates
+     *
+     * The coordinates of the range are followed, then the coordinates of the halo
+     * (i.e. within TIME_RANGE seconds after the range) are only compared to them.
+     *
+     * @param from the index of the first coordinate of the range (given to the constructor)
+     * @param to the index following the last coordinate of the range
+     * @param end the index following the last coordinate of the halo
+     * @param sink where to add the detected contacts
+     */
+    public void generate(int from, int to, int end, ContactSink sink) {
+        for (int follower = from; follower < end; follower++) {
+            compare(follower, sink);
+            if (follower < to) insert(follower);
+        }
+        countMetrics(from, to);
+    }
+
+    /**
+     * Adds the counters of the coordinates followed since the last call to the Metrics
+     * (and records the slab JFR event)
+     *
+     * @param from the index of the first coordinate followed
+     * @param to the index following the last coordinate followed
+     */
+    public void countMetrics(int from, int to) {
+        Metrics.countSlab(from, to, nbEvaluated, nbPrefiltered, nbEmitted);
+        nbEvaluated = 0;
+        nbPrefiltered = 0;
+        nbEmitted = 0;
+    }
+
+    /**
+     * Compares a coordinate to the previous coordinates of its time window
+     *
+     * @param follower the index of the coordinate
+     * @param sink where to add the detected contacts
+     */
+    private void compare(int follower, ContactSink sink) {
+        int followerNumber = taxiCoordinates.getTaxiNumber(follower);
+        long followerTimestamp = taxiCoordinates.getTaxiTimestamp(follower);
+        double followerLatitude = taxiCoordinates.getTaxiLatitude(follower);
+        double followerLongitude = taxiCoordinates.getTaxiLongitude(follower);
+        while (oldest - follower < 0 && taxiCoordinates.getTaxiTimestamp(oldest) + timeRange < followerTimestamp) {
+            oldest++;
+        }
+        if (Math.abs(followerLatitude) > maxLatitude) resize(Math.abs(followerLatitude));
+        long latitudeIndex = (long) Math.floor(followerLatitude / latitudeCell);
+        long longitudeIndex = (long) Math.floor(followerLongitude / longitudeCell);
+        double longitudeLimit = DistanceMetric.longitudeLimit(distanceRange, followerLatitude);
+        metric.prepare(followerLatitude, followerLongitude, query, 0);
+        int mask = next.length - 1;
+        for (long i = latitudeIndex - 1; i <= latitudeIndex + 1; i++) {
+            for (long j = longitudeIndex - 1; j <= longitudeIndex + 1; j++) {
+                Cell cell = grid.get(cellKey(i, j));
+                if (cell == null) continue;
+                while (!cell.empty && cell.head - oldest < 0) {
+                    if (cell.head == cell.tail) cell.empty = true;
+                    else cell.head = next[cell.head & mask];
+                }
+                if (cell.empty) continue;
+                for (int entry = cell.head; ; entry = next[entry & mask]) {
+                    if (taxiCoordinates.getTaxiNumber(entry) != followerNumber
+                            && isFollowing(taxiCoordinates.getTaxiTimestamp(entry) + timeRange, followerTimestamp, followerNumber)) {
+                        nbEvaluated++;
+                        if (Math.abs(taxiCoordinates.getTaxiLatitude(entry) - followerLatitude) > latitudeCell
+                                || Math.abs(taxiCoordinates.getTaxiLongitude(entry) - followerLongitude) > longitudeLimit) {
+                            nbPrefiltered++;
+                        } else if (batch) {
+                            for (int k = 0; k < DistanceMetric.CACHE_SIZE; k++)
+                                blockValues[k][blockLength] = cache[(entry & mask) * DistanceMetric.CACHE_SIZE + k];
+                            blockEntries[blockLength++] = entry;
+                            if (blockLength == BatchDistanceKernel.BLOCK_SIZE) compareBlock(follower, sink);
+                        } else if (metric.isInRange(cache, (entry & mask) * DistanceMetric.CACHE_SIZE, query, 0, threshold)) {
+                            addContact(entry, follower, sink);
+                        }
+                    }
+                    if (entry == cell.tail) break;
+                }
+            }
+        }
+        if (blockLength > 0) compareBlock(follower, sink);
+    }
+
+    /**
+     * Compares a coordinate to the block of candidates gathered from the cells
+     *
+     * @param follower the index of the coordinate
+     * @param sink where to add the detected contacts
+     */
+    private void compareBlock(int follower, ContactSink sink) {
+        long inRange = BatchDistanceKernel.inRange(metric, query,
+                blockValues[0], blockValues[1], blockValues[2], blockLength, threshold);
+        while (inRange != 0) {
+            addContact(blockEntries[Long.numberOfTrailingZeros(inRange)], follower, sink);
+            inRange &= inRange - 1;
+        }
+        blockLength = 0;
+    }
+
+    private void addContact(int entry, int follower, ContactSink sink) {
+        nbEmitted++;
+        emit(entry, follower, sink);
+    }
+
+    /**
+     * Adds the contact of two coordinates in range to the sink (overridden by a sweep to dispatch it to its runs)
+     *
+     * @param entry the index of the previous coordinate
+     * @param follower the index of the following coordinate
+     * @param sink where to add the contact
+     */
+    void emit(int entry, int follower, ContactSink sink) {
+        sink.add(taxiCoordinates.getTaxiNumber(entry),
+                taxiCoordinates.getTaxiNumber(follower),
+                taxiCoordinates.getTaxiTimestamp(entry) * 1000,
+                taxiCoordinates.getTaxiTimestamp(follower) * 1000);
+    }
+
+    /**
+     * Inserts a coordinate in the grid, so that it is compared to the following coordinates
+     *
+     * @param index of the coordinate
+     */
+    private void insert(int index) {
+        insert(index,
+                (long) Math.floor(taxiCoordinates.getTaxiLatitude(index) / latitudeCell),
+                (long) Math.floor(taxiCoordinates.getTaxiLongitude(index) / longitudeCell));
+        if (++nbInserted > grid.size() * 4) {
+            evict();
+            nbInserted = 0;
+        }
+    }
+
+    /**
+     * Gets the first coordinate still needed by the grid:
+     * the previous coordinates are out of the time window of the next followers
+     *
+     * @return the index of the coordinate
+     */
+    public int getOldest() {
+        return oldest;
+    }
+
+    /**
+     * Checks that a coordinate belongs to the time window of a previous coordinate,
+     * with the same bounds as Trace.windowEnd
+     *
+     * @param windowEnd the end of the time window of the previous coordinate
+     * @param followerTimestamp the timestamp of the coordinate to check
+     * @param followerNumber the taxi id of the coordinate to check
+     * @return a boolean
+     */
+    static boolean isFollowing(long windowEnd, long followerTimestamp, int followerNumber) {
+        return followerTimestamp < windowEnd
+                || (followerTimestamp == windowEnd && followerNumber <= Trace.LAST_TAXI_NUMBER);
+    }
+
+    private void insert(int index, long latitudeIndex, long longitudeIndex) {
+        if (index - evicted + 1 > next.length) growChains(index);
+        metric.prepare(taxiCoordinates.getTaxiLatitude(index), taxiCoordinates.getTaxiLongitude(index),
+                cache, (index & (next.length - 1)) * DistanceMetric.CACHE_SIZE);
+        Long key = cellKey(latitudeIndex, longitudeIndex);
+        Cell cell = grid.get(key);
+        if (cell == null) {
+            cell = new Cell();
+            grid.put(key, cell);
+        }
+        if (cell.empty) {
+            cell.head = index;
+            cell.empty = false;
+        } else {
+            next[cell.tail & (next.length - 1)] = index;
+        }
+        cell.tail = index;
+    }
+
+    /**
+     * Enlarges the chains (and the cache) so that all the coordinates from the last eviction to the given index fit
+     */
+    private void growChains(int index) {
+        int capacity = next.length;
+        while (capacity < 2 * (index - evicted + 1)) capacity *= 2;
+        int[] chains = new int[capacity];
+        double[] values = new double[capacity * DistanceMetric.CACHE_SIZE];
+        for (int i = evicted; i != index; i++) {
+            chains[i & (capacity - 1)] = next[i & (next.length - 1)];
+            System.arraycopy(cache, (i & (next.length - 1)) * DistanceMetric.CACHE_SIZE,
+                    values, (i & (capacity - 1)) * DistanceMetric.CACHE_SIZE, DistanceMetric.CACHE_SIZE);
+        }
+        next = chains;
+        cache = values;
+    }
+
+    /**
+     * Removes the expired coordinates and the empty cells from the grid,
+     * to keep it proportional to the current time window
+     */
+    private void evict() {
+        int mask = next.length - 1;
+        Iterator<Cell> cells = grid.values().iterator();
+        while (cells.hasNext()) {
+            Cell cell = cells.next();
+            while (!cell.empty && cell.head - oldest < 0) {
+                if (cell.head == cell.tail) cell.empty = true;
+                else cell.head = next[cell.head & mask];
+            }
+            if (cell.empty) cells.remove();
+        }
+        evicted = oldest;
+    }
+
+    /**
+     * Widens the longitude cells for a higher latitude and re-inserts the coordinates of the time window
+     *
+     * @param latitude the new highest absolute latitude
+     */
+    private void resize(double latitude) {
+        evict();
+        int mask = next.length - 1;
+        int[] indexes = new int[16];
+        int length = 0;
+        for (Cell cell : grid.values()) {
+            for (int entry = cell.head; ; entry = next[entry & mask]) {
+                if (length == indexes.length) indexes = Arrays.copyOf(indexes, length * 2);
+                indexes[length++] = entry - evicted;
+                if (entry == cell.tail) break;
+            }
+        }
+        // sorted by their offset from the first one, the indexes of a stream wrapping around
+        Arrays.sort(indexes, 0, length);
+        for (int i = 0; i < length; i++) indexes[i] += evicted;
+        // rounded up to limit the number of resizes
+        maxLatitude = Math.ceil(latitude);
+        longitudeCell = longitudeCell(distanceRange, maxLatitude);
+        grid.clear();
+        for (int i = 0; i < length; i++) {
+            insert(indexes[i],
+                    (long) Math.floor(taxiCoordinates.getTaxiLatitude(indexes[i]) / latitudeCell),
+                    (long) Math.floor(taxiCoordinates.getTaxiLongitude(indexes[i]) / longitudeCell));
+        }
+    }
+
+    private static Long cellKey(long latitudeIndex, long longitudeIndex) {
+        return (latitudeIndex << 32) ^ (longitudeIndex & 0xffffffffL);
+    }
+
+    /**
+     * Oldest and most recent coordinates of a cell
+     */
+    private static class Cell {
+        int head;
+        int tail;
+        boolean empty = true;
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.text.ParseException;
+import java.util.List;
+
+/**
+ * Generates the contact trace of new taxi files following the ones of a previous generation,
+ * from the checkpoint the previous generation left (see ContactTraceCheckpoint)
+ *
+ * The new coordinates have to be later than the last timestamp of the checkpoint. They are generated
+ * together with the checkpoint coordinates (its last TIME_RANGE seconds), and only the contacts ending
+ * after the checkpoint are kept: the contacts crossing the boundary are found once, and the work is
+ * proportional to the new files only. With episodes, the open episodes of the checkpoint are restored
+ * before the new contacts are aggregated, and the episodes still open at the end are kept for the next
+ * generation instead of being written.
+ *
+ * append() writes the new contacts then replaces the checkpoint, which records the length of the contact trace:
+ * a generation interrupted in between leaves the previous checkpoint, and its next run cuts the contact trace
+ * back to the recorded length before appending the same contacts again.
+ */
+public class IncrementalContactTraceGenerator {
+
+    private List<File> files;
+    private File checkpointFile;
+    private ContactTraceCheckpoint checkpoint;
+    private long traceLength;
+    private long contactLength;
+
+    /**
+     * @param files the new taxi files
+     * @param checkpointFile the checkpoint of the previous generation (none yet for a first generation)
+     */
+    public IncrementalContactTraceGenerator(List<File> files, File checkpointFile) {
+        this.files = files;
+        this.checkpointFile = checkpointFile;
+    }
+
+    /**
+     * Generates the contacts of the new taxi files, appends them to a contact trace, then saves the new checkpoint
+     *
+     * The contact trace is first cut back to its length at the previous checkpoint
+     * (to an empty contact trace for a first generation), dropping the contacts of an interrupted generation.
+     *
+     * @param file the contact trace to extend
+     * @param format the contact trace format (the one of the existing contact trace)
+     * @param compressed true to gzip the contact trace
+     * @throws IOException if the checkpoint or the contact trace cannot be read or written,
+     *                     or the checkpoint was made with other contact parameters
+     * @throws ParseException if a file cannot be parsed or has coordinates before the checkpoint
+     */
+    public void append(File file, ContactWriter.Format format, boolean compressed) throws IOException, ParseException {
+        checkpoint = readCheckpoint();
+        long outputLength = checkpoint.getOutputLength();
+        if (outputLength >= 0 && file.length() > outputLength) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(outputLength);
+            }
+        }
+        try (ContactWriter writer = new ContactWriter(file, format, compressed, true)) {
+            generate(writer);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        checkpoint.setOutputLength(file.length());
+        saveCheckpoint();
+    }
+
+    /**
+     * Generates the contacts of the new taxi files (the new checkpoint is then saved by saveCheckpoint)
+     *
+     * @param sink where to add the new contacts
+     * @throws IOException if the checkpoint cannot be read or was made with other contact parameters
+     * @throws ParseException if a file cannot be parsed or has coordinates before the checkpoint
+     */
+    public void generate(final ContactSink sink) throws IOException, ParseException {
+        if (checkpoint == null) checkpoint = readCheckpoint();
+        ColumnarCoordinateStore added = TraceReader.read(files, Runtime.getRuntime().availableProcessors());
+        if (Trace.VERBOSE) System.out.println("done.");
+        traceLength = added.size();
+        if (added.size() == 0) return;
+        final long lastTimestamp = checkpoint.getLastTimestamp();
+        if (added.getTaxiTimestamp(0) <= lastTimestamp)
+            throw new ParseException("coordinates at or before the checkpoint (" + lastTimestamp + ")", 0);
+        ColumnarCoordinateStore window = checkpoint.getWindow();
+        ColumnarCoordinateStore taxiCoordinates = new ColumnarCoordinateStore(window.size() + added.size());
+        taxiCoordinates.addAll(window);
+        taxiCoordinates.addAll(added);
+        ContactEpisodeAggregator aggregator = null;
+        if (Trace.EPISODE_GAP >= 0) {
+            aggregator = new ContactEpisodeAggregator(sink, Trace.EPISODE_GAP * 1000, Trace.TIME_RANGE * 1000);
+            ContactBuffer open = checkpoint.getEpisodes();
+            for (int i = 0; i < open.size(); i++) {
+                aggregator.add(open.getTaxi1(i), open.getTaxi2(i), open.getStart(i), open.getStop(i));
+            }
+        }
+        final ContactSink next = aggregator != null ? aggregator : sink;
+        // only the contacts ending after the checkpoint, i.e. with a new coordinate
+        ContactSink newContacts = new ContactSink() {
+            @Override
+            public void add(int taxi1, int taxi2, long start, long stop) {
+                if (Math.max(start, stop) / 1000 <= lastTimestamp) return;
+                contactLength++;
+                next.add(taxi1, taxi2, start, stop);
+            }
+        };
+        ContactBuffer episodes = new ContactBuffer(0);
+        if (aggregator != null) {
+            Metrics.Timer timer = Metrics.start(Metrics.Phase.GENERATE);
+            new GridContactTraceGenerator(taxiCoordinates).generate(newContacts);
+            timer.stop();
+            aggregator.copyOpenEpisodes(episodes);
+        } else {
+            ContactBuffer contacts = new Trace(taxiCoordinates).getTaxiContacts();
+            for (int i = 0; i < contacts.size(); i++) {
+                newContacts.add(contacts.getTaxi1(i), contacts.getTaxi2(i), contacts.getStart(i), contacts.getStop(i));
+            }
+        }
+        long newLastTimestamp = added.getTaxiTimestamp(added.size() - 1);
+        int from = taxiCoordinates.ceiling(newLastTimestamp + 1 - Trace.TIME_RANGE, Integer.MIN_VALUE);
+        ColumnarCoordinateStore newWindow = new ColumnarCoordinateStore(taxiCoordinates.size() - from);
+        for (int i = from; i < taxiCoordinates.size(); i++) {
+            newWindow.add(taxiCoordinates.getTaxiNumber(i), taxiCoordinates.getTaxiTimestamp(i),
+                    taxiCoordinates.getTaxiLongitude(i), taxiCoordinates.getTaxiLatitude(i),
+                    taxiCoordinates.getTaxiSpeed(i), taxiCoordinates.getTaxiDirection(i), taxiCoordinates.getTaxiStatus(i));
+        }
+        checkpoint = new ContactTraceCheckpoint(newLastTimestamp, newWindow, episodes);
+    }
+
+    private ContactTraceCheckpoint readCheckpoint() throws IOException {
+        ContactTraceCheckpoint previous = checkpointFile.exists()
+                ? ContactTraceCheckpoint.read(checkpointFile) : new ContactTraceCheckpoint();
+        previous.checkParameters(checkpointFile);
+        return previous;
+    }
+
+    /**
+     * Saves the new checkpoint, replacing the previous one
+     * (to call once the new contacts are saved, whose length the checkpoint does not record: see append)
+     *
+     * @throws IOException
+     */
+    public void saveCheckpoint() throws IOException {
+        if (checkpoint.getLastTimestamp() != Long.MIN_VALUE) checkpoint.write(checkpointFile);
+    }
+
+    /**
+     * Gets the number of new coordinates
+     *
+     * @return the trace length
+     */
+    public long getTraceLength() {
+        return traceLength;
+    }
+
+    /**
+     * Gets the number of new contacts (before their aggregation into episodes)
+     *
+     * @return the contact trace length
+     */
+    public long getContactLength() {
+        return contactLength;
+    }
+
+    /**
+     * Gets the number of coordinates kept in the checkpoint for the next generation
+     *
+     * @return the window length
+     */
+    public int getWindowLength() {
+        return checkpoint.getWindow().size();
+    }
+}
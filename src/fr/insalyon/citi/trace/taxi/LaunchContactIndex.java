@@ -0,0 +1,98 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import java.io.File;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+
+/**
+ * Launches the building of a contact index, or a query on a contact index
+ */
+public class LaunchContactIndex {
+
+    public static void main(String args[]) throws Exception {
+        File contactTrace = null;
+        int bucketStep = ContactIndex.DEFAULT_BUCKET_STEP;
+        Integer taxi = null;
+        Integer other = null;
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        long bucketLength = 0;
+        int nbOptions = 0;
+        for (; nbOptions < args.length && args[nbOptions].startsWith("--"); nbOptions++) {
+            if (args[nbOptions].startsWith("--build=")) contactTrace = new File(args[nbOptions].substring(8));
+            else if (args[nbOptions].startsWith("--bucket-step=")) bucketStep = Integer.parseInt(args[nbOptions].substring(14));
+            else if (args[nbOptions].startsWith("--of=")) taxi = Integer.parseInt(args[nbOptions].substring(5));
+            else if (args[nbOptions].startsWith("--between=")) other = Integer.parseInt(args[nbOptions].substring(10));
+            else if (args[nbOptions].startsWith("--from=")) from = parseTime(args[nbOptions].substring(7));
+            else if (args[nbOptions].startsWith("--to=")) to = parseTime(args[nbOptions].substring(5));
+            else if (args[nbOptions].startsWith("--counts=")) bucketLength = Long.parseLong(args[nbOptions].substring(9)) * 1000;
+            else break;
+        }
+        if (args.length - nbOptions != 1 || (other != null && taxi == null)) {
+            System.out.println("usage: java --classpath <your-class-dir> fr.insalyon.citi.trace.taxi.LaunchContactIndex [--build=<contact-trace-file> [--bucket-step=<seconds>]] [--of=<taxi> [--between=<taxi>]] [--from=<date|ms>] [--to=<date|ms>] [--counts=<bucket-seconds>] <contact-index-file>");
+            return;
+        }
+        File file = new File(args[nbOptions]);
+        if (contactTrace != null) {
+            System.out.println("----------------------");
+            System.out.println("Contact Index building");
+            System.out.println("----------------------");
+            long start = System.currentTimeMillis();
+            ContactIndex.build(contactTrace, file, bucketStep);
+            long stop = System.currentTimeMillis();
+            System.out.println("Trace - indexing: " + (stop - start) + "ms");
+        }
+        long start = System.nanoTime();
+        ContactIndex index = new ContactIndex(file);
+        long stop = System.nanoTime();
+        System.out.println("Trace - opening: " + (stop - start) / 1000 + "us (" + index.size() + " contacts, "
+                + index.getTaxis().length + " taxis)");
+        if (taxi == null && bucketLength == 0) return;
+        System.out.println("-------------------");
+        System.out.println("Contact Index query");
+        System.out.println("-------------------");
+        if (bucketLength > 0) {
+            if (from == Long.MIN_VALUE) from = index.getFirstBucket();
+            if (to == Long.MAX_VALUE) to = index.getLastBucket();
+            start = System.nanoTime();
+            long[] counts = taxi == null ? index.countPerBucket(from, to, bucketLength)
+                    : index.countPerBucket(taxi, from, to, bucketLength);
+            stop = System.nanoTime();
+            for (int i = 0; i < counts.length; i++) System.out.println((from + i * bucketLength) + " " + counts[i]);
+        } else {
+            start = System.nanoTime();
+            ContactBuffer contacts = other == null ? index.contactsOf(taxi, from, to) : index.contactsBetween(taxi, other);
+            stop = System.nanoTime();
+            for (int i = 0; i < contacts.size(); i++) System.out.println(contacts.getContact(i));
+        }
+        System.out.println("Trace - query: " + (stop - start) / 1000 + "us");
+    }
+
+    /**
+     * Parses a time given as a yyyy-MM-dd HH:mm:ss date (in the default time zone, as the taxi traces) or in ms
+     */
+    private static long parseTime(String time) throws ParseException {
+        if (time.matches("-?\\d+")) return Long.parseLong(time);
+        return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").parse(time).getTime();
+    }
+}
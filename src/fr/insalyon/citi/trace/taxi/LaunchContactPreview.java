@@ -0,0 +1,163 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Launches an approximate preview of the contact counts per hour and per taxi (see ContactPreview),
+ * optionally validated against the exact contact trace
+ */
+public class LaunchContactPreview {
+
+    public static void main(String args[]) throws Exception {
+        int windowLength = ContactPreview.DEFAULT_WINDOW_LENGTH;
+        double windowRate = 0.1;
+        double taxiRate = 1;
+        int nbMoreWindows = 0;
+        long seed = 1;
+        int nbTopTaxis = 10;
+        boolean validate = false;
+        int nbOptions = 0;
+        for (; nbOptions < args.length && args[nbOptions].startsWith("--"); nbOptions++) {
+            if (args[nbOptions].startsWith("--window=")) windowLength = Integer.parseInt(args[nbOptions].substring(9));
+            else if (args[nbOptions].startsWith("--window-rate=")) windowRate = Double.parseDouble(args[nbOptions].substring(14));
+            else if (args[nbOptions].startsWith("--taxi-rate=")) taxiRate = Double.parseDouble(args[nbOptions].substring(12));
+            else if (args[nbOptions].startsWith("--refine=")) nbMoreWindows = Integer.parseInt(args[nbOptions].substring(9));
+            else if (args[nbOptions].startsWith("--seed=")) seed = Long.parseLong(args[nbOptions].substring(7));
+            else if (args[nbOptions].startsWith("--top=")) nbTopTaxis = Integer.parseInt(args[nbOptions].substring(6));
+            else if (args[nbOptions].equals("--validate")) validate = true;
+            else if (args[nbOptions].startsWith("--distance-range=")) Trace.DISTANCE_RANGE = Double.parseDouble(args[nbOptions].substring(17));
+            else if (args[nbOptions].startsWith("--time-range=")) Trace.TIME_RANGE = Long.parseLong(args[nbOptions].substring(13));
+            else if (args[nbOptions].startsWith("--metric="))
+                Trace.DISTANCE_METRIC = DistanceMetric.Standard.valueOf(args[nbOptions].substring(9).toUpperCase());
+            else break;
+        }
+        if (args.length - nbOptions != 1) {
+            System.out.println("usage: java --classpath <your-class-dir> fr.insalyon.citi.trace.taxi.LaunchContactPreview [--window=<seconds>] [--window-rate=<rate>] [--taxi-rate=<rate>] [--refine=<windows>] [--seed=<n>] [--top=<n>] [--validate] [--metric=haversine|vincenty|geometric|chord|equirectangular] [--distance-range=<meters>] [--time-range=<seconds>] <taxi-trace-source-dir|binary-trace-file>");
+            return;
+        }
+        File source = new File(args[nbOptions]);
+        System.out.println("----------------------");
+        System.out.println("Mobility Trace loading");
+        System.out.println("----------------------");
+        long start = System.currentTimeMillis();
+        Trace trace = source.isFile() ? Trace.fromBinaryFile(source) : Trace.fromDirectory(source);
+        long stop = System.currentTimeMillis();
+        System.out.println("Trace - loading: " + (stop - start) + "ms");
+        System.out.println("---------------------");
+        System.out.println("Contact Trace preview");
+        System.out.println("---------------------");
+        start = System.currentTimeMillis();
+        ContactPreview preview = new ContactPreview(trace.getTaxiCoordinates(), windowLength, taxiRate, seed);
+        preview.sample(windowRate);
+        preview.refine(nbMoreWindows);
+        stop = System.currentTimeMillis();
+        System.out.println("Trace - sampling: " + (stop - start) + "ms (" + preview.getNbSampledWindows() + "/"
+                + preview.getNbHours() * preview.getNbWindows() + " windows, " + preview.getNbFollowed() + "/"
+                + trace.getTaxiCoordinates().size() + " records followed)");
+        System.out.println("Trace - contacts: " + interval(preview.getTotal(), preview.getTotalHalfWidth())
+                + " (estimated error " + percent(preview.getRelativeError()) + ")");
+        long[] exactHours = null;
+        HashMap<Integer, long[]> exactTaxis = null;
+        if (validate) {
+            start = System.currentTimeMillis();
+            ContactBuffer contacts = trace.getTaxiContacts();
+            stop = System.currentTimeMillis();
+            System.out.println("Trace - exact: " + (stop - start) + "ms, " + contacts.size() + " contacts (error "
+                    + percent(Math.abs(preview.getTotal() - contacts.size()) / contacts.size()) + ")");
+            exactHours = new long[preview.getNbHours()];
+            exactTaxis = new HashMap<>();
+            for (int i = 0; i < contacts.size(); i++) {
+                exactHours[(int) ((Math.floorDiv(contacts.getStop(i), 1000) - preview.getHourStart(0)) / 3600)]++;
+                count(exactTaxis, contacts.getTaxi1(i));
+                count(exactTaxis, contacts.getTaxi2(i));
+            }
+        }
+        System.out.println("-----------------");
+        System.out.println("Contacts per hour");
+        System.out.println("-----------------");
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        int nbCovered = 0;
+        for (int hour = 0; hour < preview.getNbHours(); hour++) {
+            String line = dateFormat.format(new Date(preview.getHourStart(hour) * 1000)) + " "
+                    + interval(preview.getEstimate(hour), preview.getHalfWidth(hour))
+                    + " (" + preview.getNbSampledWindows(hour) + "/" + preview.getNbWindows() + " windows)";
+            if (exactHours != null) {
+                line += " exact " + exactHours[hour];
+                if (Math.abs(preview.getEstimate(hour) - exactHours[hour]) <= preview.getHalfWidth(hour)) nbCovered++;
+            }
+            System.out.println(line);
+        }
+        if (exactHours != null) System.out.println("Trace - hours covered: " + nbCovered + "/" + preview.getNbHours());
+        System.out.println("-----------------");
+        System.out.println("Contacts per taxi");
+        System.out.println("-----------------");
+        final ContactPreview estimates = preview;
+        List<Integer> taxis = new ArrayList<>(preview.getTaxis());
+        Collections.sort(taxis, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer taxi1, Integer taxi2) {
+                return Double.compare(estimates.getTaxiEstimate(taxi2), estimates.getTaxiEstimate(taxi1));
+            }
+        });
+        for (int i = 0; i < Math.min(nbTopTaxis, taxis.size()); i++) {
+            int taxi = taxis.get(i);
+            String line = taxi + " " + interval(preview.getTaxiEstimate(taxi), preview.getTaxiHalfWidth(taxi));
+            if (exactTaxis != null) line += " exact " + (exactTaxis.containsKey(taxi) ? exactTaxis.get(taxi)[0] : 0);
+            System.out.println(line);
+        }
+        if (exactTaxis != null) {
+            // the taxis without any sampled contact are estimated at 0, within the rule of three bound
+            nbCovered = 0;
+            double error = 0;
+            for (Integer taxi : exactTaxis.keySet()) {
+                double estimate = preview.getTaxiEstimate(taxi);
+                long exact = exactTaxis.get(taxi)[0];
+                if (Math.abs(estimate - exact) <= preview.getTaxiHalfWidth(taxi)) nbCovered++;
+                error += Math.abs(estimate - exact);
+            }
+            System.out.println("Trace - taxis covered: " + nbCovered + "/" + exactTaxis.size()
+                    + ", mean absolute error: " + String.format("%.2f", error / Math.max(1, exactTaxis.size())) + " contacts");
+        }
+    }
+
+    private static void count(HashMap<Integer, long[]> counts, int taxi) {
+        long[] count = counts.get(taxi);
+        if (count == null) counts.put(taxi, new long[]{1});
+        else count[0]++;
+    }
+
+    private static String interval(double estimate, double halfWidth) {
+        return String.format("%.1f +/- %.1f", estimate, halfWidth);
+    }
+
+    private static String percent(double ratio) {
+        return String.format("%.1f%%", 100 * ratio);
+    }
+}
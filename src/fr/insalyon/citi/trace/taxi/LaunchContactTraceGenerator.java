@@ -21,24 +21,170 @@
 package fr.insalyon.citi.trace.taxi;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Launches the contact trace generator
  */
 public class LaunchContactTraceGenerator {
 
+    private static final String USAGE = "usage: java --classpath <your-class-dir> fr.insalyon.citi.trace.taxi.LaunchContactTraceGenerator [--streaming|--pipelined|--compressed|--dwells|--out-of-core[=<spill-dir>]|--incremental=<checkpoint-file>|--shards=<n> [--work-dir=<dir>] [--worker-command=<command>]|--cache=<cache-dir> [--cache-size=<MB>]] [--binary] [--gzip] [--metric=haversine|vincenty|geometric|chord|equirectangular] [--index=<contact-index-file>] [--metrics=console|csv:<file>|jmx] [--distance-range=<meters>[,<meters>...]] [--time-range=<seconds>[,<seconds>...]] [--episode-gap=<seconds>] <taxi-trace-source-dir|binary-trace-file> <contact-trace-dest-file>";
+
     public static void main(String args[]) throws Exception {
-        if (args.length != 2) {
-            System.out.println("usage: java --classpath <your-class-dir> fr.insalyon.citi.trace.taxi.LaunchContactTraceGenerator <taxi-trace-source-dir> <contact-trace-dest-file>");
+        boolean streaming = false;
+        boolean pipelined = false;
+        boolean compressedTrajectories = false;
+        boolean dwells = false;
+        File spillDir = null;
+        File checkpointFile = null;
+        int nbShards = 0;
+        File workDir = null;
+        List<String> workerCommand = null;
+        int[] shard = null;
+        int nbThreads = Runtime.getRuntime().availableProcessors();
+        ContactWriter.Format format = ContactWriter.Format.TEXT;
+        boolean compressed = false;
+        MetricsReporter reporter = null;
+        File indexFile = null;
+        File cacheDir = null;
+        long cacheSize = TraceCache.DEFAULT_MAX_SIZE;
+        double[] distanceRanges = null;
+        long[] timeRanges = null;
+        int nbOptions = 0;
+        for (; nbOptions < args.length && args[nbOptions].startsWith("--"); nbOptions++) {
+            if (args[nbOptions].equals("--streaming")) streaming = true;
+            else if (args[nbOptions].equals("--pipelined")) pipelined = true;
+            else if (args[nbOptions].equals("--compressed")) compressedTrajectories = true;
+            else if (args[nbOptions].equals("--dwells")) dwells = true;
+            else if (args[nbOptions].equals("--out-of-core")) spillDir = new File(System.getProperty("java.io.tmpdir"));
+            else if (args[nbOptions].startsWith("--out-of-core=")) spillDir = new File(args[nbOptions].substring(14));
+            else if (args[nbOptions].startsWith("--incremental=")) checkpointFile = new File(args[nbOptions].substring(14));
+            else if (args[nbOptions].startsWith("--shards=")) nbShards = Integer.parseInt(args[nbOptions].substring(9));
+            else if (args[nbOptions].startsWith("--work-dir=")) workDir = new File(args[nbOptions].substring(11));
+            else if (args[nbOptions].startsWith("--worker-command="))
+                workerCommand = Arrays.asList(args[nbOptions].substring(17).trim().split("\\s+"));
+            else if (args[nbOptions].startsWith("--worker=")) {
+                String[] range = args[nbOptions].substring(9).split(",");
+                shard = new int[]{Integer.parseInt(range[0]), Integer.parseInt(range[1])};
+            } else if (args[nbOptions].startsWith("--threads=")) nbThreads = Integer.parseInt(args[nbOptions].substring(10));
+            else if (args[nbOptions].startsWith("--distance-range=")) {
+                String[] values = args[nbOptions].substring(17).split(",");
+                distanceRanges = new double[values.length];
+                for (int i = 0; i < values.length; i++) distanceRanges[i] = Double.parseDouble(values[i]);
+                Trace.DISTANCE_RANGE = distanceRanges[0];
+            } else if (args[nbOptions].startsWith("--time-range=")) {
+                String[] values = args[nbOptions].substring(13).split(",");
+                timeRanges = new long[values.length];
+                for (int i = 0; i < values.length; i++) timeRanges[i] = Long.parseLong(values[i]);
+                Trace.TIME_RANGE = timeRanges[0];
+            } else if (args[nbOptions].startsWith("--episode-gap=")) Trace.EPISODE_GAP = Long.parseLong(args[nbOptions].substring(14));
+            else if (args[nbOptions].equals("--binary")) format = ContactWriter.Format.BINARY;
+            else if (args[nbOptions].equals("--gzip")) compressed = true;
+            else if (args[nbOptions].startsWith("--index=")) indexFile = new File(args[nbOptions].substring(8));
+            else if (args[nbOptions].startsWith("--cache=")) cacheDir = new File(args[nbOptions].substring(8));
+            else if (args[nbOptions].startsWith("--cache-size=")) cacheSize = Long.parseLong(args[nbOptions].substring(13)) << 20;
+            else if (args[nbOptions].startsWith("--metric="))
+                Trace.DISTANCE_METRIC = DistanceMetric.Standard.valueOf(args[nbOptions].substring(9).toUpperCase());
+            else if (args[nbOptions].startsWith("--metrics=")) {
+                reporter = MetricsReporter.forName(args[nbOptions].substring(10));
+                Trace.METRICS = true;
+            } else break;
+        }
+        if (args.length - nbOptions != 2) {
+            System.out.println(USAGE);
+            return;
+        }
+        File source = new File(args[nbOptions]);
+        File destination = new File(args[nbOptions + 1]);
+        List<ContactParameters> runs = ContactParameters.sweep(
+                distanceRanges != null ? distanceRanges : new double[]{Trace.DISTANCE_RANGE},
+                timeRanges != null ? timeRanges : new long[]{Trace.TIME_RANGE});
+        // the generation modes cannot be combined
+        List<String> modes = new ArrayList<>();
+        if (shard != null) modes.add("--worker");
+        if (runs.size() > 1) modes.add("several --distance-range/--time-range values");
+        if (nbShards > 0) modes.add("--shards");
+        if (streaming) modes.add("--streaming");
+        if (pipelined) modes.add("--pipelined");
+        if (compressedTrajectories) modes.add("--compressed");
+        if (dwells) modes.add("--dwells");
+        if (checkpointFile != null) modes.add("--incremental");
+        if (spillDir != null) modes.add("--out-of-core");
+        if (cacheDir != null) modes.add("--cache");
+        if (modes.size() > 1) {
+            System.out.println("conflicting options: " + String.join(", ", modes));
+            System.out.println(USAGE);
             return;
         }
+        // the workers of the shards only find point contacts
+        if (Trace.EPISODE_GAP >= 0 && (nbShards > 0 || shard != null)) {
+            System.out.println("conflicting options: --episode-gap, " + modes.get(0));
+            System.out.println(USAGE);
+            return;
+        }
+        if (shard != null) {
+            work(source, destination, shard[0], shard[1], nbThreads);
+        } else if (runs.size() > 1) {
+            sweep(source, destination, runs, format, compressed);
+        } else if (nbShards > 0) {
+            shard(source, destination, nbShards,
+                    workDir != null ? workDir : new File(destination.getPath() + ".shards"), workerCommand, format, compressed);
+        } else if (streaming) {
+            stream(source, destination, format, compressed);
+        } else if (pipelined) {
+            pipeline(source, destination, format, compressed, nbThreads);
+        } else if (compressedTrajectories) {
+            compress(source, destination, format, compressed);
+        } else if (dwells) {
+            dwell(source, destination, format, compressed);
+        } else if (checkpointFile != null) {
+            append(source, destination, checkpointFile, format, compressed);
+        } else if (spillDir != null) {
+            spill(source, destination, spillDir, format, compressed);
+        } else if (cacheDir != null) {
+            cache(source, destination, new TraceCache(cacheDir, cacheSize), format, compressed);
+        } else {
+            run(source, destination, format, compressed);
+        }
+        if (indexFile != null && shard == null) {
+            if (runs.size() > 1) {
+                for (ContactParameters run : runs) {
+                    index(SweepContactTraceGenerator.file(destination, run), SweepContactTraceGenerator.file(indexFile, run));
+                }
+            } else {
+                index(destination, indexFile);
+            }
+        }
+        if (reporter != null) {
+            System.out.println("-------");
+            System.out.println("Metrics");
+            System.out.println("-------");
+            reporter.report();
+        }
+    }
+
+    /**
+     * Loads the taxi trace, then generates and saves the contact trace
+     *
+     * @param source the taxi trace source directory or binary file
+     * @param destination the contact trace destination file
+     * @param format the contact trace format
+     * @param compressed true to gzip the contact trace
+     */
+    private static void run(File source, File destination, ContactWriter.Format format, boolean compressed) throws Exception {
         System.out.println("----------------------");
         System.out.println("Mobility Trace loading");
         System.out.println("----------------------");
         long start = System.currentTimeMillis();
-        Trace trace = Trace.fromDirectory(new File(args[0]));
+        Trace trace = source.isFile() ? Trace.fromBinaryFile(source) : Trace.fromDirectory(source);
         long stop = System.currentTimeMillis();
         System.out.println("Trace - loading: " + (stop - start) + "ms");
+        CoordinateStore taxiCoordinates = trace.getTaxiCoordinates();
+        System.out.println("Trace - memory: " + taxiCoordinates.getMemorySize() + " bytes ("
+                + taxiCoordinates.getMemorySize() / Math.max(1, taxiCoordinates.size()) + " bytes/record)");
+        printMetric(taxiCoordinates);
         System.out.println("-------------");
         System.out.println("Trace display");
         System.out.println("-------------");
@@ -58,8 +204,360 @@ public class LaunchContactTraceGenerator {
         System.out.println("Contact Trace saving");
         System.out.println("--------------------");
         start = System.currentTimeMillis();
-        trace.dumpContactTrace(new File(args[1]));
+        trace.dumpContactTrace(destination, format, compressed);
+        stop = System.currentTimeMillis();
+        System.out.println("Trace - saving: " + (stop - start) + "ms");
+    }
+
+    /**
+     * Saves the cached contact trace, or loads the taxi trace (parsing only the files missing from the cache),
+     * then generates, caches and saves the contact trace
+     *
+     * @param source the taxi trace source directory or binary file
+     * @param destination the contact trace destination file
+     * @param cache the cache of the parsed trace files and of the contact traces
+     * @param format the contact trace format
+     * @param compressed true to gzip the contact trace
+     */
+    private static void cache(File source, File destination, TraceCache cache,
+                              ContactWriter.Format format, boolean compressed) throws Exception {
+        ContactParameters parameters = ContactParameters.current();
+        long start = System.currentTimeMillis();
+        ContactBuffer contacts = cache.getContacts(source, parameters);
+        long stop = System.currentTimeMillis();
+        if (contacts != null) {
+            System.out.println("-------------------");
+            System.out.println("Contact Trace cache");
+            System.out.println("-------------------");
+            System.out.println("Trace - cached: " + (stop - start) + "ms, " + contacts.size() + " contacts");
+        } else {
+            System.out.println("----------------------");
+            System.out.println("Mobility Trace loading");
+            System.out.println("----------------------");
+            start = System.currentTimeMillis();
+            Trace trace = cache.load(source);
+            stop = System.currentTimeMillis();
+            System.out.println("Trace - loading: " + (stop - start) + "ms (" + cache.getNbHits() + " files cached, "
+                    + cache.getNbMisses() + " files parsed)");
+            System.out.println("------------------------");
+            System.out.println("Contact Trace generation");
+            System.out.println("------------------------");
+            start = System.currentTimeMillis();
+            contacts = trace.getTaxiContacts();
+            stop = System.currentTimeMillis();
+            System.out.println("Trace - generate: " + (stop - start) + "ms");
+            System.out.println("Trace - current: " + trace);
+            cache.putContacts(source, parameters, contacts);
+        }
+        System.out.println("Trace - cache: " + cache.getSize() + " bytes");
+        System.out.println("--------------------");
+        System.out.println("Contact Trace saving");
+        System.out.println("--------------------");
+        start = System.currentTimeMillis();
+        ContactWriter.write(contacts, destination, format, compressed);
         stop = System.currentTimeMillis();
         System.out.println("Trace - saving: " + (stop - start) + "ms");
     }
-}
\ No newline at end of file
+
+    /**
+     * Loads the taxi trace once, then generates and saves the contact traces of several contact parameters
+     *
+     * @param source the taxi trace source directory or binary file
+     * @param destination the contact trace destination file (one file per run, suffixed with its ranges)
+     * @param runs the contact parameters of the runs
+     * @param format the contact trace format
+     * @param compressed true to gzip the contact traces
+     */
+    private static void sweep(File source, File destination, List<ContactParameters> runs,
+                              ContactWriter.Format format, boolean compressed) throws Exception {
+        System.out.println("----------------------");
+        System.out.println("Mobility Trace loading");
+        System.out.println("----------------------");
+        long start = System.currentTimeMillis();
+        Trace trace = source.isFile() ? Trace.fromBinaryFile(source) : Trace.fromDirectory(source);
+        long stop = System.currentTimeMillis();
+        System.out.println("Trace - loading: " + (stop - start) + "ms");
+        printMetric(trace.getTaxiCoordinates());
+        System.out.println("--------------------------------");
+        System.out.println("Contact Trace sweep generation");
+        System.out.println("--------------------------------");
+        start = System.currentTimeMillis();
+        ContactBuffer[] contacts = new SweepContactTraceGenerator(trace.getTaxiCoordinates(), runs)
+                .generate(destination, format, compressed);
+        stop = System.currentTimeMillis();
+        for (int i = 0; i < runs.size(); i++) {
+            System.out.println("Trace - run " + runs.get(i).getName() + ": " + contacts[i].size() + " contacts ("
+                    + SweepContactTraceGenerator.file(destination, runs.get(i)) + ")");
+        }
+        System.out.println("Trace - sweep: " + (stop - start) + "ms, " + runs.size() + " runs");
+    }
+
+    /**
+     * Displays the distance metric and its highest error against Vincenty over the latitudes of the trace
+     *
+     * @param taxiCoordinates the taxi trace
+     */
+    private static void printMetric(CoordinateStore taxiCoordinates) {
+        double minLatitude = 90;
+        double maxLatitude = -90;
+        for (int i = 0; i < taxiCoordinates.size(); i++) {
+            minLatitude = Math.min(minLatitude, taxiCoordinates.getTaxiLatitude(i));
+            maxLatitude = Math.max(maxLatitude, taxiCoordinates.getTaxiLatitude(i));
+        }
+        if (minLatitude > maxLatitude) return;
+        System.out.println("Trace - distance metric: " + Trace.DISTANCE_METRIC + " (max error against Vincenty: "
+                + String.format("%.3f", DistanceMetric.maxError(Trace.DISTANCE_METRIC, Trace.DISTANCE_RANGE, minLatitude, maxLatitude))
+                + " m at " + Trace.DISTANCE_RANGE + " m"
+                + (BatchDistanceKernel.supports(Trace.DISTANCE_METRIC) ? ", vectorized: " + BatchDistanceKernel.VECTORIZED : "") + ")");
+    }
+
+    /**
+     * Generates the contact trace while streaming the taxi files, without loading the trace
+     *
+     * @param source the taxi trace source directory
+     * @param destination the contact trace destination file
+     * @param format the contact trace format
+     * @param compressed true to gzip the contact trace
+     */
+    private static void stream(File source, File destination, ContactWriter.Format format, boolean compressed) throws Exception {
+        System.out.println("---------------------------------------");
+        System.out.println("Contact Trace streaming generation");
+        System.out.println("---------------------------------------");
+        long start = System.currentTimeMillis();
+        StreamingContactTraceGenerator generator = Trace.streamContactTrace(source, destination, format, compressed);
+        long stop = System.currentTimeMillis();
+        System.out.println("Trace - streaming: " + (stop - start) + "ms");
+        System.out.println("Trace - current: Trace{traceLength=" + generator.getTraceLength()
+                + ", contactLength=" + generator.getContactLength()
+                + ", maxWindowLength=" + generator.getMaxWindowLength() + "}");
+    }
+
+    /**
+     * Generates the contact trace with pipelined reading, generation and writing stages
+     *
+     * @param source the taxi trace source directory
+     * @param destination the contact trace destination file
+     * @param format the contact trace format
+     * @param compressed true to gzip the contact trace
+     * @param nbReaders the number of threads reading the files
+     */
+    private static void pipeline(File source, File destination, ContactWriter.Format format, boolean compressed,
+                                 int nbReaders) throws Exception {
+        System.out.println("----------------------------------");
+        System.out.println("Contact Trace pipelined generation");
+        System.out.println("----------------------------------");
+        long start = System.currentTimeMillis();
+        PipelinedContactTraceGenerator generator = Trace.pipelineContactTrace(source, destination, format, compressed, nbReaders);
+        long stop = System.currentTimeMillis();
+        System.out.println("Trace - pipelined: " + (stop - start) + "ms");
+        System.out.println("Trace - stages: read " + generator.getReadNanos() / 1000000 + "ms (" + nbReaders + " threads, waited "
+                + generator.getReadWaitNanos() / 1000000 + "ms), write " + generator.getWriteNanos() / 1000000 + "ms (waited "
+                + generator.getWriteWaitNanos() / 1000000 + "ms)");
+        System.out.println("Trace - current: Trace{traceLength=" + generator.getTraceLength()
+                + ", contactLength=" + generator.getContactLength() + "}");
+    }
+
+    /**
+     * Loads the taxi trace, compresses it into per-taxi blocks, then generates and saves the contact trace
+     * from the compressed blocks
+     *
+     * @param source the taxi trace source directory or binary file
+     * @param destination the contact trace destination file
+     * @param format the contact trace format
+     * @param compressed true to gzip the contact trace
+     */
+    private static void compress(File source, File destination, ContactWriter.Format format, boolean compressed) throws Exception {
+        System.out.println("----------------------");
+        System.out.println("Mobility Trace loading");
+        System.out.println("----------------------");
+        long start = System.currentTimeMillis();
+        Trace trace = source.isFile() ? Trace.fromBinaryFile(source) : Trace.fromDirectory(source);
+        long stop = System.currentTimeMillis();
+        System.out.println("Trace - loading: " + (stop - start) + "ms");
+        CoordinateStore taxiCoordinates = trace.getTaxiCoordinates();
+        System.out.println("Trace - memory: " + taxiCoordinates.getMemorySize() + " bytes ("
+                + taxiCoordinates.getMemorySize() / Math.max(1, taxiCoordinates.size()) + " bytes/record)");
+        start = System.currentTimeMillis();
+        CompressedTrajectoryStore store = new CompressedTrajectoryStore(taxiCoordinates);
+        stop = System.currentTimeMillis();
+        System.out.println("Trace - compressing: " + (stop - start) + "ms");
+        System.out.println("Trace - compressed: " + store.getEncodedSize() + " bytes ("
+                + String.format("%.2f", (double) store.getEncodedSize() / Math.max(1, store.size())) + " bytes/record, "
+                + store.getNbBlocks() + " blocks), memory: " + store.getMemorySize() + " bytes");
+        trace = null;
+        taxiCoordinates = null;
+        System.out.println("------------------------");
+        System.out.println("Contact Trace generation");
+        System.out.println("------------------------");
+        start = System.currentTimeMillis();
+        ContactBuffer contacts = new ContactBuffer();
+        ContactEpisodeAggregator episodes = Trace.EPISODE_GAP >= 0
+                ? new ContactEpisodeAggregator(contacts, Trace.EPISODE_GAP * 1000, Trace.TIME_RANGE * 1000) : null;
+        int nbDecoded = store.generate(Long.MIN_VALUE, Long.MAX_VALUE, episodes != null ? episodes : contacts);
+        if (episodes != null) episodes.close();
+        contacts.sort();
+        stop = System.currentTimeMillis();
+        System.out.println("Trace - generate: " + (stop - start) + "ms (" + nbDecoded + " blocks decoded)");
+        System.out.println("Trace - current: Trace{traceLength=" + store.size() + ", contactLength=" + contacts.size() + "}");
+        System.out.println("--------------------");
+        System.out.println("Contact Trace saving");
+        System.out.println("--------------------");
+        start = System.currentTimeMillis();
+        ContactWriter.write(contacts, destination, format, compressed);
+        stop = System.currentTimeMillis();
+        System.out.println("Trace - saving: " + (stop - start) + "ms");
+    }
+
+    /**
+     * Loads the taxi trace, collapses the dwells of the taxis, then generates and saves the contact trace
+     * from the dwell segments
+     *
+     * @param source the taxi trace source directory or binary file
+     * @param destination the contact trace destination file
+     * @param format the contact trace format
+     * @param compressed true to gzip the contact trace
+     */
+    private static void dwell(File source, File destination, ContactWriter.Format format, boolean compressed) throws Exception {
+        System.out.println("----------------------");
+        System.out.println("Mobility Trace loading");
+        System.out.println("----------------------");
+        long start = System.currentTimeMillis();
+        Trace trace = source.isFile() ? Trace.fromBinaryFile(source) : Trace.fromDirectory(source);
+        long stop = System.currentTimeMillis();
+        System.out.println("Trace - loading: " + (stop - start) + "ms");
+        start = System.currentTimeMillis();
+        DwellContactTraceGenerator generator = new DwellContactTraceGenerator(trace.getTaxiCoordinates());
+        stop = System.currentTimeMillis();
+        System.out.println("Trace - collapsing: " + (stop - start) + "ms");
+        System.out.println("Trace - segments: " + generator.size() + " for " + generator.getNbCoordinates()
+                + " records (" + generator.getNbDwells() + " dwells)");
+        System.out.println("------------------------");
+        System.out.println("Contact Trace generation");
+        System.out.println("------------------------");
+        start = System.currentTimeMillis();
+        ContactBuffer contacts;
+        if (Trace.EPISODE_GAP >= 0) {
+            // the contacts of the segments come in no time order, the episodes are only given at the end
+            contacts = new ContactBuffer();
+            ContactEpisodeAggregator episodes = new ContactEpisodeAggregator(contacts, Trace.EPISODE_GAP * 1000, Long.MAX_VALUE);
+            generator.generate(episodes);
+            episodes.close();
+            contacts.sort();
+        } else contacts = generator.generate();
+        stop = System.currentTimeMillis();
+        System.out.println("Trace - generate: " + (stop - start) + "ms");
+        System.out.println("Trace - current: Trace{traceLength=" + generator.getNbCoordinates() + ", contactLength=" + contacts.size() + "}");
+        System.out.println("--------------------");
+        System.out.println("Contact Trace saving");
+        System.out.println("--------------------");
+        start = System.currentTimeMillis();
+        ContactWriter.write(contacts, destination, format, compressed);
+        stop = System.currentTimeMillis();
+        System.out.println("Trace - saving: " + (stop - start) + "ms");
+    }
+
+    /**
+     * Generates the contact trace of a trace larger than the heap, by spilling time chunks to a local directory
+     *
+     * @param source the taxi trace source directory
+     * @param destination the contact trace destination file
+     * @param spillDir the local directory where to spill the chunks
+     * @param format the contact trace format
+     * @param compressed true to gzip the contact trace
+     */
+    private static void spill(File source, File destination, File spillDir,
+                              ContactWriter.Format format, boolean compressed) throws Exception {
+        System.out.println("------------------------------------");
+        System.out.println("Contact Trace out-of-core generation");
+        System.out.println("------------------------------------");
+        long start = System.currentTimeMillis();
+        OutOfCoreContactTraceGenerator generator = Trace.spillContactTrace(source, destination, spillDir, format, compressed);
+        long stop = System.currentTimeMillis();
+        System.out.println("Trace - out-of-core: " + (stop - start) + "ms");
+        System.out.println("Trace - current: Trace{traceLength=" + generator.getTraceLength()
+                + ", contactLength=" + generator.getContactLength()
+                + ", nbChunks=" + generator.getNbChunks()
+                + ", chunkLength=" + generator.getChunkLength() + "}");
+    }
+
+    /**
+     * Appends the contacts of new taxi files to the contact trace, from the checkpoint of the previous files
+     *
+     * @param source the directory of the new taxi files
+     * @param destination the contact trace to extend
+     * @param checkpointFile the checkpoint file, replaced by the new one
+     * @param format the contact trace format
+     * @param compressed true to gzip the contact trace
+     */
+    private static void append(File source, File destination, File checkpointFile,
+                               ContactWriter.Format format, boolean compressed) throws Exception {
+        System.out.println("------------------------------------");
+        System.out.println("Contact Trace incremental generation");
+        System.out.println("------------------------------------");
+        long start = System.currentTimeMillis();
+        IncrementalContactTraceGenerator generator = Trace.appendContactTrace(source, destination, checkpointFile, format, compressed);
+        long stop = System.currentTimeMillis();
+        System.out.println("Trace - incremental: " + (stop - start) + "ms");
+        System.out.println("Trace - current: Trace{traceLength=" + generator.getTraceLength()
+                + ", contactLength=" + generator.getContactLength()
+                + ", windowLength=" + generator.getWindowLength() + "}");
+    }
+
+    /**
+     * Generates the contact trace with worker processes on shards of the trace, then merges their contacts
+     *
+     * @param source the binary trace file or the taxi trace directory
+     * @param destination the contact trace destination file
+     * @param nbShards the number of workers
+     * @param workDir the directory shared with the workers
+     * @param workerCommand the command launching a worker, null for a local JVM
+     * @param format the contact trace format
+     * @param compressed true to gzip the contact trace
+     */
+    private static void shard(File source, File destination, int nbShards, File workDir, List<String> workerCommand,
+                              ContactWriter.Format format, boolean compressed) throws Exception {
+        System.out.println("--------------------------------");
+        System.out.println("Contact Trace sharded generation");
+        System.out.println("--------------------------------");
+        long start = System.currentTimeMillis();
+        ShardedContactTraceGenerator generator = new ShardedContactTraceGenerator(source, workDir, nbShards, workerCommand);
+        generator.generate(destination, format, compressed);
+        long stop = System.currentTimeMillis();
+        System.out.println("Trace - sharded: " + (stop - start) + "ms");
+        System.out.println("Trace - current: Trace{traceLength=" + generator.getTraceLength()
+                + ", contactLength=" + generator.getContactLength()
+                + ", nbShards=" + nbShards + "}");
+    }
+
+    /**
+     * Generates the contacts of a shard of a binary trace (worker process of a sharded generation)
+     *
+     * @param source the binary trace file
+     * @param destination the shard contact file
+     * @param from the index of the first coordinate of the shard
+     * @param to the index following the last coordinate of the shard
+     * @param nbThreads the number of threads
+     */
+    private static void work(File source, File destination, int from, int to, int nbThreads) throws Exception {
+        long start = System.currentTimeMillis();
+        int contactLength = ShardedContactTraceGenerator.generateShard(source, from, to, destination, nbThreads);
+        long stop = System.currentTimeMillis();
+        System.out.println("Trace - shard [" + from + ", " + to + "): " + (stop - start) + "ms, " + contactLength + " contacts");
+    }
+
+    /**
+     * Builds the contact index of the saved contact trace
+     *
+     * @param destination the contact trace file
+     * @param indexFile the contact index file
+     */
+    private static void index(File destination, File indexFile) throws Exception {
+        System.out.println("----------------------");
+        System.out.println("Contact Index building");
+        System.out.println("----------------------");
+        long start = System.currentTimeMillis();
+        ContactIndex.build(destination, indexFile, ContactIndex.DEFAULT_BUCKET_STEP);
+        long stop = System.currentTimeMillis();
+        System.out.println("Trace - indexing: " + (stop - start) + "ms");
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Locale;
+
+/**
+ * Launches the scaling harness: generates synthetic traces of several fleet sizes, then runs the
+ * load/generate/save phases of LaunchContactTraceGenerator on each one with several numbers of threads,
+ * and reports the phase durations, the throughputs, the peak heap and the generation speedup as CSV
+ */
+public class LaunchScalingHarness {
+
+    public static final String CSV_HEADER = "fleet,duration,threads,records,contacts,load_ms,generate_ms,save_ms,"
+            + "load_records_per_s,generate_records_per_s,save_contacts_per_s,peak_heap_bytes,generate_speedup";
+
+    public static void main(String args[]) throws Exception {
+        int[] fleets = {100, 1000, 10000};
+        int duration = 3600;
+        int interval = 30;
+        long seed = 1;
+        int[] threads = defaultThreads();
+        int nbOptions = 0;
+        for (; nbOptions < args.length && args[nbOptions].startsWith("--"); nbOptions++) {
+            String option = args[nbOptions];
+            String value = option.substring(option.indexOf('=') + 1);
+            if (option.startsWith("--fleets=")) fleets = parseInts(value);
+            else if (option.startsWith("--duration=")) duration = Integer.parseInt(value);
+            else if (option.startsWith("--interval=")) interval = Integer.parseInt(value);
+            else if (option.startsWith("--threads=")) threads = parseInts(value);
+            else if (option.startsWith("--seed=")) seed = Long.parseLong(value);
+            else break;
+        }
+        if (args.length - nbOptions != 2) {
+            System.out.println("usage: java --classpath <your-class-dir> fr.insalyon.citi.trace.taxi.LaunchScalingHarness [--fleets=<taxis>,...] [--duration=<seconds>] [--interval=<seconds>] [--threads=<threads>,...] [--seed=<seed>] <work-dir> <result-csv-file>");
+            return;
+        }
+        File workDir = new File(args[nbOptions]);
+        Trace.VERBOSE = false;
+        try (PrintWriter csv = new PrintWriter(new FileWriter(args[nbOptions + 1]))) {
+            csv.println(CSV_HEADER);
+            System.out.println(CSV_HEADER);
+            for (int fleet : fleets) {
+                File traceDir = new File(workDir, "fleet-" + fleet + "-" + duration + "s-" + interval + "s-" + seed);
+                if (!traceDir.isDirectory()) {
+                    new SyntheticTraceGenerator().setFleetSize(fleet).setDuration(duration)
+                            .setInterval(interval).setSeed(seed).write(traceDir);
+                }
+                // untimed first run, so that the measures do not include the JIT warmup
+                measure(traceDir, threads[0], workDir);
+                long referenceGenerate = -1;
+                for (int nbThreads : threads) {
+                    long[] measures = measure(traceDir, nbThreads, workDir);
+                    long records = measures[0];
+                    long contacts = measures[1];
+                    long load = measures[2];
+                    long generate = measures[3];
+                    long save = measures[4];
+                    if (referenceGenerate < 0) referenceGenerate = generate;
+                    String line = fleet + "," + duration + "," + nbThreads + "," + records + "," + contacts + ","
+                            + load + "," + generate + "," + save + ","
+                            + perSecond(records, load) + "," + perSecond(records, generate) + "," + perSecond(contacts, save) + ","
+                            + measures[5] + "," + String.format(Locale.ROOT, "%.2f", (double) referenceGenerate / Math.max(1, generate));
+                    csv.println(line);
+                    csv.flush();
+                    System.out.println(line);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the load/generate/save phases on a trace
+     *
+     * @return the records, the contacts, the load, generate and save durations in ms, and the peak heap in bytes
+     */
+    private static long[] measure(File traceDir, int nbThreads, File workDir) throws Exception {
+        System.gc();
+        resetPeakHeap();
+        long start = System.currentTimeMillis();
+        Trace trace = Trace.fromDirectory(traceDir, nbThreads);
+        long load = System.currentTimeMillis() - start;
+        start = System.currentTimeMillis();
+        trace.generateMultiThread(nbThreads);
+        long generate = System.currentTimeMillis() - start;
+        start = System.currentTimeMillis();
+        trace.dumpContactTrace(new File(workDir, "contacts.txt"));
+        long save = System.currentTimeMillis() - start;
+        return new long[]{trace.getTaxiCoordinates().size(), trace.getTaxiContacts().size(), load, generate, save, getPeakHeap()};
+    }
+
+    /**
+     * Gives the powers of two up to the number of processors, and the number of processors
+     */
+    private static int[] defaultThreads() {
+        int nbProcessors = Runtime.getRuntime().availableProcessors();
+        int length = 32 - Integer.numberOfLeadingZeros(nbProcessors);
+        if (Integer.bitCount(nbProcessors) != 1) length++;
+        int[] threads = new int[length];
+        for (int i = 0; i < length; i++) threads[i] = Math.min(1 << i, nbProcessors);
+        return threads;
+    }
+
+    private static int[] parseInts(String value) {
+        String[] values = value.split(",");
+        int[] ints = new int[values.length];
+        for (int i = 0; i < values.length; i++) ints[i] = Integer.parseInt(values[i].trim());
+        return ints;
+    }
+
+    private static long perSecond(long count, long millis) {
+        return count * 1000 / Math.max(1, millis);
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+        }
+    }
+
+    /**
+     * Sums the peak usages of the heap pools since the last reset (an upper bound of the peak heap)
+     */
+    private static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import java.io.File;
+
+/**
+ * Launches the synthetic taxi trace generator
+ */
+public class LaunchSyntheticTraceGenerator {
+
+    public static void main(String args[]) throws Exception {
+        SyntheticTraceGenerator generator = new SyntheticTraceGenerator();
+        int nbOptions = 0;
+        for (; nbOptions < args.length && args[nbOptions].startsWith("--"); nbOptions++) {
+            String option = args[nbOptions];
+            String value = option.substring(option.indexOf('=') + 1);
+            if (option.startsWith("--fleet=")) generator.setFleetSize(Integer.parseInt(value));
+            else if (option.startsWith("--duration=")) generator.setDuration(Integer.parseInt(value));
+            else if (option.startsWith("--interval=")) generator.setInterval(Integer.parseInt(value));
+            else if (option.startsWith("--seed=")) generator.setSeed(Long.parseLong(value));
+            else if (option.startsWith("--hotspots=")) {
+                String[] hotspots = value.split(",");
+                generator.setHotspots(Integer.parseInt(hotspots[0]), Double.parseDouble(hotspots[1]));
+            } else if (option.startsWith("--bbox=")) {
+                String[] bounds = value.split(",");
+                generator.setBoundingBox(Double.parseDouble(bounds[0]), Double.parseDouble(bounds[1]),
+                        Double.parseDouble(bounds[2]), Double.parseDouble(bounds[3]));
+            } else break;
+        }
+        if (args.length - nbOptions != 1) {
+            System.out.println("usage: java --classpath <your-class-dir> fr.insalyon.citi.trace.taxi.LaunchSyntheticTraceGenerator [--fleet=<taxis>] [--duration=<seconds>] [--interval=<seconds>] [--hotspots=<number>,<density>] [--bbox=<min-lon>,<min-lat>,<max-lon>,<max-lat>] [--seed=<seed>] <taxi-trace-dest-dir>");
+            return;
+        }
+        System.out.println("--------------------------");
+        System.out.println("Synthetic Trace generation");
+        System.out.println("--------------------------");
+        long start = System.currentTimeMillis();
+        generator.write(new File(args[nbOptions]));
+        long stop = System.currentTimeMillis();
+        System.out.println("Trace - synthetic: " + (stop - start) + "ms");
+    }
+}
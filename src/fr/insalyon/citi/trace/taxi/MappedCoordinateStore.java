@@ -0,0 +1,340 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads the taxi coordinates directly from a memory-mapped binary trace file
+ *
+ * The binary trace format (little endian) is made of:
+ * - a 64 bytes header: magic number, version, record size, record number,
+ *   first and last timestamps, time index step (seconds) and length
+ * - a time index: for each step, the index of the first record at or after the step beginning
+ * - the fixed-width records in time order, aligned on 64 bytes:
+ *   timestamp (long, seconds), longitude (double), latitude (double), taxi number (int),
+ *   speed/direction/status (int, packed as in ColumnarCoordinateStore)
+ *
+ * The file is mapped by segments of at most 1 GB, nothing is parsed nor allocated per record.
+ */
+public class MappedCoordinateStore implements CoordinateStore {
+
+    public static final long MAGIC = 0x3143525449584154L; // "TAXITRC1"
+    public static final int VERSION = 1;
+    public static final int RECORD_SIZE = 32;
+    public static final int HEADER_SIZE = 64;
+    public static final int DEFAULT_INDEX_STEP = 60; // seconds
+
+    private static final int SEGMENT_SHIFT = 25; // records per segment: 2^25 * 32 bytes = 1 GB
+    private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+    private MappedByteBuffer[] segments;
+    private int size;
+    private long firstTimestamp;
+    private long lastTimestamp;
+    private int indexStep;
+    private int[] timeIndex;
+    private long fileSize;
+
+    /**
+     * Maps a binary trace file
+     *
+     * @param file the binary trace file
+     * @throws IOException if the file cannot be mapped or is not a binary trace
+     */
+    public MappedCoordinateStore(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            fileSize = channel.size();
+            if (fileSize < HEADER_SIZE) throw new IOException(file + ": not a binary trace");
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getLong(0) != MAGIC) throw new IOException(file + ": not a binary trace");
+            if (header.getInt(8) != VERSION || header.getInt(12) != RECORD_SIZE)
+                throw new IOException(file + ": unsupported binary trace version");
+            size = (int) header.getLong(16);
+            firstTimestamp = header.getLong(24);
+            lastTimestamp = header.getLong(32);
+            indexStep = header.getInt(40);
+            timeIndex = new int[header.getInt(44)];
+            channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, 4L * timeIndex.length)
+                    .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(timeIndex);
+            long dataOffset = dataOffset(timeIndex.length);
+            if (dataOffset + (long) size * RECORD_SIZE > fileSize) throw new IOException(file + ": truncated binary trace");
+            segments = new MappedByteBuffer[(size + SEGMENT_MASK) >>> SEGMENT_SHIFT];
+            for (int i = 0; i < segments.length; i++) {
+                long length = Math.min(size - ((long) i << SEGMENT_SHIFT), 1L << SEGMENT_SHIFT) * RECORD_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        dataOffset + ((long) i << SEGMENT_SHIFT) * RECORD_SIZE, length);
+                segments[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+    }
+
+    /**
+     * Writes the coordinates of a store into a binary trace file
+     *
+     * @param taxiCoordinates the coordinates in time order
+     * @param file the destination file
+     * @param indexStep the time index step in seconds
+     * @throws IOException
+     */
+    public static void write(CoordinateStore taxiCoordinates, File file, int indexStep) throws IOException {
+        int size = taxiCoordinates.size();
+        long firstTimestamp = size == 0 ? 0 : taxiCoordinates.getTaxiTimestamp(0);
+        long lastTimestamp = size == 0 ? 0 : taxiCoordinates.getTaxiTimestamp(size - 1);
+        int[] timeIndex = new int[(int) ((lastTimestamp - firstTimestamp) / indexStep) + 1];
+        int index = 0;
+        for (int step = 0; step < timeIndex.length; step++) {
+            while (index < size && taxiCoordinates.getTaxiTimestamp(index) < firstTimestamp + (long) step * indexStep) index++;
+            timeIndex[step] = index;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            channel.truncate(0);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            putHeader(buffer, channel, size, firstTimestamp, lastTimestamp, indexStep, timeIndex, timeIndex.length);
+            for (index = 0; index < size; index++) {
+                if (buffer.remaining() < RECORD_SIZE) flush(buffer, channel);
+                putRecord(buffer, taxiCoordinates, index);
+            }
+            flush(buffer, channel);
+        }
+    }
+
+    private static void putHeader(ByteBuffer buffer, FileChannel channel, int size, long firstTimestamp, long lastTimestamp,
+                                  int indexStep, int[] timeIndex, int indexLength) throws IOException {
+        buffer.putLong(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putLong(size)
+                .putLong(firstTimestamp).putLong(lastTimestamp).putInt(indexStep).putInt(indexLength);
+        while (buffer.position() < HEADER_SIZE) buffer.put((byte) 0);
+        for (int i = 0; i < indexLength; i++) {
+            if (buffer.remaining() < 4) flush(buffer, channel);
+            buffer.putInt(timeIndex[i]);
+        }
+        long padding = dataOffset(indexLength) - HEADER_SIZE - 4L * indexLength;
+        for (int i = 0; i < padding; i++) {
+            if (!buffer.hasRemaining()) flush(buffer, channel);
+            buffer.put((byte) 0);
+        }
+    }
+
+    private static void putRecord(ByteBuffer buffer, CoordinateStore taxiCoordinates, int index) {
+        buffer.putLong(taxiCoordinates.getTaxiTimestamp(index))
+                .putDouble(taxiCoordinates.getTaxiLongitude(index))
+                .putDouble(taxiCoordinates.getTaxiLatitude(index))
+                .putInt(taxiCoordinates.getTaxiNumber(index))
+                .putInt(ColumnarCoordinateStore.pack(taxiCoordinates.getTaxiSpeed(index),
+                        taxiCoordinates.getTaxiDirection(index),
+                        taxiCoordinates.getTaxiStatus(index)));
+    }
+
+    /**
+     * Writes a binary trace file coordinate by coordinate, without keeping them in memory
+     *
+     * The records are written into a temporary file next to the destination one, then copied after
+     * the header and the time index once these are known.
+     */
+    public static class Writer implements Closeable {
+        private File file;
+        private File records;
+        private RandomAccessFile raf;
+        private FileChannel channel;
+        private ByteBuffer buffer;
+        private int size;
+        private long firstTimestamp;
+        private long lastTimestamp;
+        private int indexStep;
+        private int[] timeIndex;
+        private int indexLength;
+
+        /**
+         * @param file the destination file
+         * @param indexStep the time index step in seconds
+         * @throws IOException
+         */
+        public Writer(File file, int indexStep) throws IOException {
+            this.file = file;
+            this.records = new File(file.getPath() + ".records");
+            this.raf = new RandomAccessFile(records, "rw");
+            this.channel = raf.getChannel();
+            this.channel.truncate(0);
+            this.buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+            this.size = 0;
+            this.indexStep = indexStep;
+            this.timeIndex = new int[64];
+            this.indexLength = 0;
+        }
+
+        /**
+         * Adds a coordinate after the previous ones
+         *
+         * @param taxiCoordinates the store of the coordinate
+         * @param index the coordinate index in the store
+         * @throws IOException
+         * @throws IllegalArgumentException if the coordinate is before the previous one
+         */
+        public void add(CoordinateStore taxiCoordinates, int index) throws IOException {
+            long timestamp = taxiCoordinates.getTaxiTimestamp(index);
+            if (size == 0) firstTimestamp = timestamp;
+            else if (timestamp < lastTimestamp) throw new IllegalArgumentException("coordinates not in time order");
+            if (size == Integer.MAX_VALUE) throw new IOException(file + ": too many coordinates");
+            while (firstTimestamp + (long) indexLength * indexStep <= timestamp) {
+                if (indexLength == timeIndex.length) timeIndex = Arrays.copyOf(timeIndex, 2 * indexLength);
+                timeIndex[indexLength++] = size;
+            }
+            lastTimestamp = timestamp;
+            if (buffer.remaining() < RECORD_SIZE) flush(buffer, channel);
+            putRecord(buffer, taxiCoordinates, index);
+            size++;
+        }
+
+        /**
+         * Writes the binary trace file and deletes the temporary one
+         *
+         * @throws IOException
+         */
+        @Override
+        public void close() throws IOException {
+            try (RandomAccessFile destination = new RandomAccessFile(file, "rw");
+                 FileChannel output = destination.getChannel()) {
+                flush(buffer, channel);
+                if (indexLength == 0) timeIndex[indexLength++] = 0;
+                output.truncate(0);
+                putHeader(buffer, output, size, firstTimestamp, lastTimestamp, indexStep, timeIndex, indexLength);
+                flush(buffer, output);
+                long length = channel.size();
+                for (long position = 0; position < length; )
+                    position += channel.transferTo(position, length - position, output);
+            } finally {
+                raf.close();
+                records.delete();
+            }
+        }
+    }
+
+    private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    private static long dataOffset(int indexLength) {
+        return (HEADER_SIZE + 4L * indexLength + 63) & ~63L;
+    }
+
+    private ByteBuffer segment(int index) {
+        return segments[index >>> SEGMENT_SHIFT];
+    }
+
+    private int offset(int index) {
+        return (index & SEGMENT_MASK) * RECORD_SIZE;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int getTaxiNumber(int index) {
+        return segment(index).getInt(offset(index) + 24);
+    }
+
+    @Override
+    public long getTaxiTimestamp(int index) {
+        return segment(index).getLong(offset(index));
+    }
+
+    @Override
+    public double getTaxiLongitude(int index) {
+        return segment(index).getDouble(offset(index) + 8);
+    }
+
+    @Override
+    public double getTaxiLatitude(int index) {
+        return segment(index).getDouble(offset(index) + 16);
+    }
+
+    @Override
+    public int getTaxiSpeed(int index) {
+        return ColumnarCoordinateStore.unpackSpeed(segment(index).getInt(offset(index) + 28));
+    }
+
+    @Override
+    public int getTaxiDirection(int index) {
+        return ColumnarCoordinateStore.unpackDirection(segment(index).getInt(offset(index) + 28));
+    }
+
+    @Override
+    public int getTaxiStatus(int index) {
+        return ColumnarCoordinateStore.unpackStatus(segment(index).getInt(offset(index) + 28));
+    }
+
+    /**
+     * Gets the size of the mapped file (shared with the other processes through the page cache)
+     *
+     * @return the size in bytes
+     */
+    @Override
+    public long getMemorySize() {
+        return fileSize;
+    }
+
+    /**
+     * Finds the first coordinate greater than or equal to a coordinate id,
+     * the binary search is restricted to the time index step of the timestamp
+     */
+    @Override
+    public int ceiling(long taxiTimestamp, int taxiNumber) {
+        return search(taxiTimestamp, taxiNumber, false);
+    }
+
+    /**
+     * Finds the first coordinate strictly greater than a coordinate id,
+     * the binary search is restricted to the time index step of the timestamp
+     */
+    @Override
+    public int higher(long taxiTimestamp, int taxiNumber) {
+        return search(taxiTimestamp, taxiNumber, true);
+    }
+
+    private int search(long taxiTimestamp, int taxiNumber, boolean strict) {
+        if (size == 0 || taxiTimestamp < firstTimestamp) return 0;
+        if (taxiTimestamp > lastTimestamp) return size;
+        int step = (int) ((taxiTimestamp - firstTimestamp) / indexStep);
+        int low = timeIndex[step];
+        int high = step + 1 < timeIndex.length ? timeIndex[step + 1] : size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compareTo(middle, taxiTimestamp, taxiNumber);
+            if (comparison < 0 || (strict && comparison == 0)) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Collects the phase durations, the counters and the fork/join gauges of the runs, when Trace.METRICS is set
+ *
+ * The generators count in plain local fields and add their totals once per slab (or per coordinate
+ * for the exhaustive implementation), so a disabled collection only costs a few increments and a test.
+ * The phases and the slabs are also recorded as JFR events (fr.insalyon.citi.trace.taxi.Phase and .Slab)
+ * when the flight recorder is started, whatever Trace.METRICS is
+ * (the event classes are not even loaded otherwise, as their initialization costs about 200ms).
+ * The collected values are displayed or exported by a MetricsReporter.
+ */
+public final class Metrics {
+
+    public enum Phase { LIST, PARSE, INDEX, GENERATE, DEDUPE, WRITE }
+
+    public enum Counter {
+        PAIRS_EVALUATED, // candidate pairs of different taxis within TIME_RANGE
+        PAIRS_PREFILTERED, // candidate pairs rejected by the bounding box, before any distance
+        CONTACTS_EMITTED, // contacts added to a sink, before the deduplication
+        DUPLICATE_CONTACTS, // contacts removed by the deduplication
+        FORK_JOIN_SLABS, // slabs processed by the fork/join tasks
+        CLAMPED_RECORDS // parsed coordinates whose speed, direction or status is clamped (see ColumnarCoordinateStore)
+    }
+
+    public enum Gauge {
+        FORK_JOIN_MAX_DEPTH, // deepest split of the slabs
+        FORK_JOIN_MAX_QUEUED_TASKS, // most tasks waiting in the pool queues
+        FORK_JOIN_MAX_ACTIVE_THREADS // most threads running or stealing tasks
+    }
+
+    private static final LongAdder[] PHASE_NANOS = adders(Phase.values().length);
+    private static final LongAdder[] PHASE_COUNTS = adders(Phase.values().length);
+    private static final LongAdder[] COUNTERS = adders(Counter.values().length);
+    private static final AtomicLongArray GAUGES = new AtomicLongArray(Gauge.values().length);
+
+    private Metrics() {
+    }
+
+    /**
+     * Starts timing a phase (to stop once the phase is over)
+     *
+     * @param phase the phase
+     * @return the timer
+     */
+    public static Timer start(Phase phase) {
+        return new Timer(phase);
+    }
+
+    /**
+     * Adds a value to a counter (nothing if the metrics are disabled)
+     *
+     * @param counter the counter
+     * @param value the value to add
+     */
+    public static void count(Counter counter, long value) {
+        if (Trace.METRICS && value != 0) COUNTERS[counter.ordinal()].add(value);
+    }
+
+    /**
+     * Raises a gauge to a value if it is higher (nothing if the metrics are disabled)
+     *
+     * @param gauge the gauge
+     * @param value the observed value
+     */
+    public static void observe(Gauge gauge, long value) {
+        if (!Trace.METRICS) return;
+        long current;
+        while ((current = GAUGES.get(gauge.ordinal())) < value) {
+            if (GAUGES.compareAndSet(gauge.ordinal(), current, value)) return;
+        }
+    }
+
+    /**
+     * Adds the counters of a slab, and records its JFR event
+     *
+     * @param from the index of the first coordinate of the slab
+     * @param to the index following the last coordinate of the slab (halo excluded)
+     * @param nbEvaluated the candidate pairs evaluated
+     * @param nbPrefiltered the candidate pairs rejected by the bounding box
+     * @param nbEmitted the contacts emitted
+     */
+    static void countSlab(int from, int to, long nbEvaluated, long nbPrefiltered, long nbEmitted) {
+        count(Counter.PAIRS_EVALUATED, nbEvaluated);
+        count(Counter.PAIRS_PREFILTERED, nbPrefiltered);
+        count(Counter.CONTACTS_EMITTED, nbEmitted);
+        if (!FlightRecorder.isInitialized()) return;
+        SlabEvent event = new SlabEvent();
+        if (event.shouldCommit()) {
+            event.from = from;
+            event.to = to;
+            event.pairsEvaluated = nbEvaluated;
+            event.pairsPrefiltered = nbPrefiltered;
+            event.contactsEmitted = nbEmitted;
+            event.commit();
+        }
+    }
+
+    public static long getPhaseNanos(Phase phase) {
+        return PHASE_NANOS[phase.ordinal()].sum();
+    }
+
+    public static long getPhaseCount(Phase phase) {
+        return PHASE_COUNTS[phase.ordinal()].sum();
+    }
+
+    public static long get(Counter counter) {
+        return COUNTERS[counter.ordinal()].sum();
+    }
+
+    public static long get(Gauge gauge) {
+        return GAUGES.get(gauge.ordinal());
+    }
+
+    /**
+     * Resets all the metrics (e.g. between two runs)
+     */
+    public static void reset() {
+        for (LongAdder adder : PHASE_NANOS) adder.reset();
+        for (LongAdder adder : PHASE_COUNTS) adder.reset();
+        for (LongAdder adder : COUNTERS) adder.reset();
+        for (int i = 0; i < GAUGES.length(); i++) GAUGES.set(i, 0);
+    }
+
+    private static LongAdder[] adders(int length) {
+        LongAdder[] adders = new LongAdder[length];
+        for (int i = 0; i < length; i++) adders[i] = new LongAdder();
+        return adders;
+    }
+
+    /**
+     * Running phase, to stop once (phases are coarse: a timer is only created a few times per run)
+     */
+    public static final class Timer {
+
+        private Phase phase;
+        private long start;
+        private PhaseEvent event;
+
+        private Timer(Phase phase) {
+            this.phase = phase;
+            this.start = Trace.METRICS ? System.nanoTime() : 0;
+            if (FlightRecorder.isInitialized()) {
+                this.event = new PhaseEvent();
+                event.begin();
+            }
+        }
+
+        /**
+         * Stops the timer, adds its duration to its phase and records its JFR event
+         */
+        public void stop() {
+            if (Trace.METRICS) {
+                PHASE_NANOS[phase.ordinal()].add(System.nanoTime() - start);
+                PHASE_COUNTS[phase.ordinal()].increment();
+            }
+            if (event != null && event.shouldCommit()) {
+                event.phase = phase.name();
+                event.commit();
+            }
+        }
+    }
+
+    @Name("fr.insalyon.citi.trace.taxi.Phase")
+    @Label("Trace Phase")
+    @Category("Taxi Trace")
+    static final class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+    }
+
+    @Name("fr.insalyon.citi.trace.taxi.Slab")
+    @Label("Contact Generation Slab")
+    @Category("Taxi Trace")
+    static final class SlabEvent extends Event {
+        @Label("First Coordinate")
+        int from;
+        @Label("Last Coordinate (excluded)")
+        int to;
+        @Label("Pairs Evaluated")
+        long pairsEvaluated;
+        @Label("Pairs Prefiltered")
+        long pairsPrefiltered;
+        @Label("Contacts Emitted")
+        long contactsEmitted;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Displays or exports the collected Metrics
+ */
+public interface MetricsReporter {
+
+    /**
+     * Reports the current metrics (e.g. at the end of a run)
+     *
+     * @throws IOException
+     */
+    void report() throws IOException;
+
+    /**
+     * Creates a reporter from its command line name
+     *
+     * @param name console, csv:&lt;file&gt; or jmx
+     * @return the reporter
+     * @throws JMException if the JMX reporter cannot be registered
+     */
+    static MetricsReporter forName(String name) throws JMException {
+        if (name.equals("console")) return new Console(System.out);
+        if (name.startsWith("csv:")) return new Csv(new File(name.substring(4)));
+        if (name.equals("jmx")) return new Jmx();
+        throw new IllegalArgumentException("unknown metrics reporter: " + name);
+    }
+
+    /**
+     * Names of the reported values, in the CSV column and JMX attribute order
+     */
+    static List<String> names() {
+        List<String> names = new ArrayList<>();
+        for (Metrics.Phase phase : Metrics.Phase.values()) names.add(phase.name().toLowerCase() + "_ms");
+        for (Metrics.Counter counter : Metrics.Counter.values()) names.add(counter.name().toLowerCase());
+        for (Metrics.Gauge gauge : Metrics.Gauge.values()) names.add(gauge.name().toLowerCase());
+        return names;
+    }
+
+    /**
+     * Current reported values, in the names order
+     */
+    static long[] values() {
+        long[] values = new long[names().size()];
+        int i = 0;
+        for (Metrics.Phase phase : Metrics.Phase.values()) values[i++] = Metrics.getPhaseNanos(phase) / 1000000;
+        for (Metrics.Counter counter : Metrics.Counter.values()) values[i++] = Metrics.get(counter);
+        for (Metrics.Gauge gauge : Metrics.Gauge.values()) values[i++] = Metrics.get(gauge);
+        return values;
+    }
+
+    /**
+     * Prints the metrics as "Metrics - name: value" lines, as the launchers print their timings
+     */
+    class Console implements MetricsReporter {
+
+        private PrintStream out;
+
+        public Console(PrintStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void report() {
+            List<String> names = names();
+            long[] values = values();
+            for (int i = 0; i < values.length; i++) out.println("Metrics - " + names.get(i) + ": " + values[i]);
+        }
+    }
+
+    /**
+     * Appends the metrics of each report as a row of a CSV file (with a header row if the file is new)
+     */
+    class Csv implements MetricsReporter {
+
+        private File file;
+
+        public Csv(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public void report() throws IOException {
+            boolean header = !file.exists() || file.length() == 0;
+            try (PrintWriter out = new PrintWriter(new FileWriter(file, true))) {
+                if (header) out.println(String.join(",", names()));
+                StringBuilder row = new StringBuilder();
+                for (long value : values()) {
+                    if (row.length() > 0) row.append(',');
+                    row.append(value);
+                }
+                out.println(row);
+            }
+        }
+    }
+
+    /**
+     * Exposes the live metrics as the read-only attributes of the
+     * fr.insalyon.citi.trace.taxi:type=Metrics MBean (e.g. in JConsole), registered on creation
+     */
+    class Jmx implements MetricsReporter, DynamicMBean {
+
+        public static final String OBJECT_NAME = "fr.insalyon.citi.trace.taxi:type=Metrics";
+
+        public Jmx() throws JMException {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(this, name);
+        }
+
+        /**
+         * Nothing to do: the attributes are read when queried
+         */
+        @Override
+        public void report() {
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            int index = names().indexOf(attribute);
+            if (index == -1) throw new AttributeNotFoundException(attribute);
+            return values()[index];
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            List<String> names = names();
+            long[] values = values();
+            for (String attribute : attributes) {
+                int index = names.indexOf(attribute);
+                if (index != -1) list.add(new Attribute(attribute, values[index]));
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<String> names = names();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[names.size()];
+            for (int i = 0; i < attributes.length; i++) {
+                attributes[i] = new MBeanAttributeInfo(names.get(i), "long", names.get(i), true, false, false);
+            }
+            return new MBeanInfo(getClass().getName(), "Taxi trace metrics", attributes, null, null, null);
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Generates the contact trace of a taxi trace larger than the heap, by spilling time-partitioned chunks to disk
+ *
+ * The taxi files are read into sorted runs of at most chunkLength coordinates, each run being saved as a
+ * binary trace (see MappedCoordinateStore). The runs are then merged into consecutive time chunks of about
+ * chunkLength coordinates, also saved as binary traces: a chunk ends between two timestamps and also holds
+ * the following TIME_RANGE seconds of coordinates (its halo), so that its contacts do not need any other chunk.
+ * Finally, the chunks are mapped one after the other and their contacts are generated by the fork/join slabs
+ * (or by the grid when aggregating episodes), the halo coordinates being only compared to the chunk ones.
+ *
+ * As with Trace.fromDirectory, when two coordinates have the same id only the last one
+ * (in file order, then in line order) is kept. The contacts are saved chunk after chunk, each chunk
+ * in (taxi1, taxi2, start, stop) order (in detection order with episodes).
+ */
+public class OutOfCoreContactTraceGenerator {
+
+    // heap needed per coordinate: a run with its sorting arrays, or a chunk with its contacts
+    public static final int BYTES_PER_RECORD = 128;
+    public static final int MIN_CHUNK_LENGTH = 1 << 16; // coordinates
+
+    private List<File> files;
+    private File spillDir;
+    private int chunkLength;
+    private int parallelism;
+    private long traceLength;
+    private long contactLength;
+    private int nbChunks;
+
+    /**
+     * @param files the taxi files (in any order of their coordinates)
+     * @param spillDir the local directory where to spill the runs and the chunks (created if missing)
+     */
+    public OutOfCoreContactTraceGenerator(List<File> files, File spillDir) {
+        this(files, spillDir, defaultChunkLength(), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param files the taxi files (in any order of their coordinates)
+     * @param spillDir the local directory where to spill the runs and the chunks (created if missing)
+     * @param chunkLength the number of coordinates of a run or of a chunk (halo excluded)
+     * @param parallelism the number of generating threads
+     */
+    public OutOfCoreContactTraceGenerator(List<File> files, File spillDir, int chunkLength, int parallelism) {
+        this.files = files;
+        this.spillDir = spillDir;
+        this.chunkLength = chunkLength;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Computes the chunk length fitting in a quarter of the maximal heap
+     *
+     * @return the number of coordinates of a chunk
+     */
+    public static int defaultChunkLength() {
+        long length = Runtime.getRuntime().maxMemory() / 4 / BYTES_PER_RECORD;
+        return (int) Math.max(MIN_CHUNK_LENGTH, Math.min(length, Integer.MAX_VALUE / 2));
+    }
+
+    /**
+     * Spills the runs and the chunks, then generates the contact trace chunk after chunk
+     * (the spilled files are removed once used)
+     *
+     * @param sink where to add the detected contacts
+     * @throws IOException
+     * @throws ParseException
+     */
+    public void generate(ContactSink sink) throws IOException, ParseException {
+        if (!spillDir.isDirectory() && !spillDir.mkdirs()) throw new IOException(spillDir + ": cannot create the spill directory");
+        File dir = Files.createTempDirectory(spillDir.toPath(), "taxi-chunks").toFile();
+        try {
+            List<File> runs = spillRuns(dir);
+            List<Chunk> chunks = spillChunks(runs, dir);
+            nbChunks = chunks.size();
+            ContactEpisodeAggregator aggregator = Trace.EPISODE_GAP >= 0
+                    ? new ContactEpisodeAggregator(sink, Trace.EPISODE_GAP * 1000, Trace.TIME_RANGE * 1000) : null;
+            for (int part = 10, i = 0; part > 0; part--) {
+                for (int end = Trace.progress(nbChunks, part); i < end; i++) {
+                    Chunk chunk = chunks.get(i);
+                    if (aggregator != null) generateEpisodes(chunk, aggregator);
+                    else generate(chunk, sink);
+                    chunk.file.delete();
+                }
+            }
+            if (aggregator != null) aggregator.close();
+            if (Trace.VERBOSE) System.out.println("done.");
+        } finally {
+            File[] spilled = dir.listFiles();
+            if (spilled != null) for (File file : spilled) file.delete();
+            dir.delete();
+        }
+    }
+
+    /**
+     * Reads the taxi files in file order into sorted runs of at least chunkLength coordinates
+     * (a file is never split between two runs)
+     *
+     * @param dir where to save the runs
+     * @return the run files, in file order
+     */
+    private List<File> spillRuns(File dir) throws IOException, ParseException {
+        List<File> runs = new ArrayList<>();
+        TraceReader reader = new TraceReader();
+        ColumnarCoordinateStore run = new ColumnarCoordinateStore();
+        for (int i = 0; i < files.size(); i++) {
+            Metrics.Timer timer = Metrics.start(Metrics.Phase.PARSE);
+            reader.readFile(files.get(i), run);
+            timer.stop();
+            if (run.size() >= chunkLength || i == files.size() - 1) {
+                timer = Metrics.start(Metrics.Phase.INDEX);
+                run.sort();
+                File file = new File(dir, "run-" + runs.size() + ".bin");
+                MappedCoordinateStore.write(run, file, MappedCoordinateStore.DEFAULT_INDEX_STEP);
+                runs.add(file);
+                run = new ColumnarCoordinateStore();
+                timer.stop();
+            }
+        }
+        return runs;
+    }
+
+    /**
+     * Merges the runs into time chunks with their halo
+     * (when several runs have the same coordinate id, the one of the last run is kept)
+     *
+     * @param runs the run files, in file order
+     * @param dir where to save the chunks
+     * @return the chunks, in time order
+     */
+    private List<Chunk> spillChunks(List<File> runs, File dir) throws IOException {
+        Metrics.Timer timer = Metrics.start(Metrics.Phase.INDEX);
+        final MappedCoordinateStore[] stores = new MappedCoordinateStore[runs.size()];
+        final int[] positions = new int[runs.size()];
+        PriorityQueue<Integer> cursors = new PriorityQueue<>(Math.max(1, runs.size()), new Comparator<Integer>() {
+            @Override
+            public int compare(Integer run1, Integer run2) {
+                int comparison = stores[run1].compareTo(positions[run1],
+                        stores[run2].getTaxiTimestamp(positions[run2]), stores[run2].getTaxiNumber(positions[run2]));
+                return comparison != 0 ? comparison : Integer.compare(run1, run2);
+            }
+        });
+        for (int i = 0; i < runs.size(); i++) {
+            stores[i] = new MappedCoordinateStore(runs.get(i));
+            if (stores[i].size() > 0) cursors.add(i);
+        }
+        ChunkSpiller spiller = new ChunkSpiller(dir);
+        int pendingRun = -1;
+        int pendingPosition = 0;
+        while (!cursors.isEmpty()) {
+            int run = cursors.poll();
+            int position = positions[run];
+            if (++positions[run] < stores[run].size()) cursors.add(run);
+            if (pendingRun != -1 && stores[pendingRun].compareTo(pendingPosition,
+                    stores[run].getTaxiTimestamp(position), stores[run].getTaxiNumber(position)) != 0) {
+                spiller.add(stores[pendingRun], pendingPosition);
+            }
+            // a coordinate of a later run overrides the pending one with the same id
+            pendingRun = run;
+            pendingPosition = position;
+        }
+        if (pendingRun != -1) spiller.add(stores[pendingRun], pendingPosition);
+        List<Chunk> chunks = spiller.close();
+        for (File run : runs) run.delete();
+        timer.stop();
+        return chunks;
+    }
+
+    /**
+     * Generates the contacts of the coordinates of a chunk with the fork/join slabs, then saves them in order
+     */
+    private void generate(Chunk chunk, ContactSink sink) throws IOException {
+        Trace trace = new Trace(new MappedCoordinateStore(chunk.file));
+        ContactBuffer contacts = trace.generateRange(0, chunk.ownLength, parallelism);
+        Metrics.Timer timer = Metrics.start(Metrics.Phase.WRITE);
+        for (int i = 0; i < contacts.size(); i++) {
+            sink.add(contacts.getTaxi1(i), contacts.getTaxi2(i), contacts.getStart(i), contacts.getStop(i));
+        }
+        timer.stop();
+        contactLength += contacts.size();
+    }
+
+    /**
+     * Generates the contacts of the coordinates of a chunk with the grid, in the time order needed by the episodes
+     * (the halo contacts of a chunk are at most TIME_RANGE later than the first contacts of the next one)
+     */
+    private void generateEpisodes(Chunk chunk, final ContactSink aggregator) throws IOException {
+        CoordinateStore store = new MappedCoordinateStore(chunk.file);
+        Metrics.Timer timer = Metrics.start(Metrics.Phase.GENERATE);
+        new GridContactTraceGenerator(store).generate(0, chunk.ownLength, store.size(), new ContactSink() {
+            @Override
+            public void add(int taxi1, int taxi2, long start, long stop) {
+                contactLength++;
+                aggregator.add(taxi1, taxi2, start, stop);
+            }
+        });
+        timer.stop();
+    }
+
+    /**
+     * Gets the number of coordinates spilled (without the duplicated ids nor the halos)
+     *
+     * @return the trace length
+     */
+    public long getTraceLength() {
+        return traceLength;
+    }
+
+    /**
+     * Gets the number of contacts detected (before their aggregation into episodes)
+     *
+     * @return the contact trace length
+     */
+    public long getContactLength() {
+        return contactLength;
+    }
+
+    /**
+     * Gets the number of chunks the trace was split into
+     *
+     * @return the chunk number
+     */
+    public int getNbChunks() {
+        return nbChunks;
+    }
+
+    public int getChunkLength() {
+        return chunkLength;
+    }
+
+    /**
+     * Spilled chunk: its coordinates are followed by the ones of its halo
+     */
+    private static class Chunk {
+        File file;
+        int ownLength;
+
+        Chunk(File file, int ownLength) {
+            this.file = file;
+            this.ownLength = ownLength;
+        }
+    }
+
+    /**
+     * Cuts the merged coordinates into chunks: once a chunk is long enough, it ends before the next timestamp,
+     * the following coordinates are added to both the next chunk and to its halo until TIME_RANGE seconds later
+     */
+    private class ChunkSpiller {
+        File dir;
+        List<Chunk> chunks = new ArrayList<>();
+        ColumnarCoordinateStore current = new ColumnarCoordinateStore();
+        ColumnarCoordinateStore next = null;
+        int ownLength;
+        long haloEnd; // last timestamp of the halo of the current chunk
+
+        ChunkSpiller(File dir) {
+            this.dir = dir;
+        }
+
+        void add(CoordinateStore store, int index) throws IOException {
+            long timestamp = store.getTaxiTimestamp(index);
+            if (next != null && timestamp > haloEnd) {
+                spill(current, ownLength);
+                current = next;
+                next = null;
+            }
+            if (next == null && current.size() >= chunkLength
+                    && timestamp > current.getTaxiTimestamp(current.size() - 1)) {
+                ownLength = current.size();
+                haloEnd = timestamp - 1 + Trace.TIME_RANGE;
+                next = new ColumnarCoordinateStore();
+            }
+            if (next != null) append(next, store, index);
+            if (next == null || timestamp <= haloEnd) append(current, store, index);
+            traceLength++;
+        }
+
+        List<Chunk> close() throws IOException {
+            if (next != null) {
+                spill(current, ownLength);
+                current = next;
+            }
+            if (current.size() > 0) spill(current, current.size());
+            return chunks;
+        }
+
+        private void append(ColumnarCoordinateStore chunk, CoordinateStore store, int index) {
+            chunk.add(store.getTaxiNumber(index), store.getTaxiTimestamp(index),
+                    store.getTaxiLongitude(index), store.getTaxiLatitude(index),
+                    store.getTaxiSpeed(index), store.getTaxiDirection(index), store.getTaxiStatus(index));
+        }
+
+        private void spill(ColumnarCoordinateStore chunk, int length) throws IOException {
+            File file = new File(dir, "chunk-" + chunks.size() + ".bin");
+            MappedCoordinateStore.write(chunk, file, MappedCoordinateStore.DEFAULT_INDEX_STEP);
+            chunks.add(new Chunk(file, length));
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Generates the contact trace with pipelined reading, generation and writing stages
+ *
+ * The reader threads read and parse the taxi files one chunk ahead of the time ordered merge
+ * (see StreamingContactTraceGenerator), the generation thread follows each merged coordinate
+ * as soon as all the files have reached its timestamp, and a writer thread gives the contacts to the sink
+ * through a bounded queue (see AsyncContactSink). The stages only wait for each other when a file chunk
+ * is not read yet or when the queue is full, so the wall-clock time tends to the time of the slowest stage.
+ */
+public class PipelinedContactTraceGenerator {
+
+    private List<File> files;
+    private int nbReaders;
+    private int queueLength;
+    private StreamingContactTraceGenerator generator;
+    private long writeNanos;
+    private long writeWaitNanos;
+
+    /**
+     * @param files the taxi files, each one in time order
+     * @param nbReaders the number of threads reading the files
+     * @param queueLength the highest number of contact batches waiting for the writer thread
+     */
+    public PipelinedContactTraceGenerator(List<File> files, int nbReaders, int queueLength) {
+        this.files = files;
+        this.nbReaders = nbReaders;
+        this.queueLength = queueLength;
+    }
+
+    /**
+     * Reads the files and generates the contact trace
+     *
+     * @param sink where to add the detected contacts, called from the writer thread only
+     * @throws IOException
+     * @throws ParseException if a file cannot be parsed or is not in time order
+     */
+    public void generate(ContactSink sink) throws IOException, ParseException {
+        ExecutorService readers = Executors.newFixedThreadPool(nbReaders);
+        generator = new StreamingContactTraceGenerator(files, readers);
+        AsyncContactSink writer = new AsyncContactSink(sink, queueLength);
+        try {
+            generator.generate(writer);
+        } finally {
+            readers.shutdownNow();
+            writer.close();
+            writeNanos = writer.getWriteNanos();
+            writeWaitNanos = writer.getWaitNanos();
+        }
+    }
+
+    /**
+     * Gets the number of coordinates read
+     *
+     * @return the trace length
+     */
+    public long getTraceLength() {
+        return generator == null ? 0 : generator.getTraceLength();
+    }
+
+    /**
+     * Gets the number of contacts detected
+     *
+     * @return the contact trace length
+     */
+    public long getContactLength() {
+        return generator == null ? 0 : generator.getContactLength();
+    }
+
+    /**
+     * Gets the time spent by the reader threads (summed over the threads)
+     *
+     * @return the time in nanoseconds
+     */
+    public long getReadNanos() {
+        return generator == null ? 0 : generator.getReadNanos();
+    }
+
+    /**
+     * Gets the time the generation thread waited for the reader threads
+     *
+     * @return the time in nanoseconds
+     */
+    public long getReadWaitNanos() {
+        return generator == null ? 0 : generator.getWaitNanos();
+    }
+
+    /**
+     * Gets the time spent by the writer thread in the sink
+     *
+     * @return the time in nanoseconds
+     */
+    public long getWriteNanos() {
+        return writeNanos;
+    }
+
+    /**
+     * Gets the time the generation thread waited for the writer thread (backpressure)
+     *
+     * @return the time in nanoseconds
+     */
+    public long getWriteWaitNanos() {
+        return writeWaitNanos;
+    }
+}
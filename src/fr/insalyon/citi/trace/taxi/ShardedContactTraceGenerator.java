@@ -0,0 +1,262 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Generates the contact trace with several worker processes, each one generating a shard of the trace
+ *
+ * The coordinator splits the binary trace (see MappedCoordinateStore, a taxi trace directory is streamed into one first,
+ * each file being in time order) into shards of the same number of coordinates. Each worker maps the binary trace and generates the contacts
+ * of its shard coordinates with their following ones (up to TIME_RANGE seconds after the shard, its halo)
+ * into a sorted binary contact file. The coordinator then merges the shard files without duplicates,
+ * so the contact trace is the same as the one of a single process.
+ *
+ * The workers are local JVMs by default; a worker command (e.g. a remote shell or a batch submission
+ * to nodes sharing the work directory) can be given instead, the worker arguments being appended to it.
+ */
+public class ShardedContactTraceGenerator {
+
+    private File source;
+    private File workDir;
+    private int nbShards;
+    private List<String> workerCommand;
+    private long traceLength;
+    private long contactLength;
+
+    /**
+     * @param source the binary trace file, or the taxi trace directory (each file in time order)
+     * @param workDir the directory shared with the workers (binary trace, shard contact files and worker logs)
+     * @param nbShards the number of shards, i.e. of worker processes
+     * @param workerCommand the command launching a worker, null for a local JVM with the current class path
+     */
+    public ShardedContactTraceGenerator(File source, File workDir, int nbShards, List<String> workerCommand) {
+        this.source = source;
+        this.workDir = workDir;
+        this.nbShards = nbShards;
+        this.workerCommand = workerCommand != null ? workerCommand : localWorkerCommand(nbShards);
+    }
+
+    /**
+     * Builds the command of a local worker JVM, sharing the processors with the other workers
+     *
+     * @param nbShards the number of workers
+     * @return the command
+     */
+    public static List<String> localWorkerCommand(int nbShards) {
+        List<String> command = new ArrayList<>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        if (BatchDistanceKernel.VECTORIZED) command.addAll(Arrays.asList("--add-modules", "jdk.incubator.vector"));
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), LaunchContactTraceGenerator.class.getName(),
+                "--threads=" + Math.max(1, Runtime.getRuntime().availableProcessors() / nbShards)));
+        return command;
+    }
+
+    /**
+     * Launches the workers on the shards, waits for them, then merges their contacts
+     *
+     * @param file the destination file
+     * @param format the contact trace format
+     * @param compressed true to gzip the contact trace
+     * @throws IOException if a worker fails
+     * @throws ParseException
+     */
+    public void generate(File file, ContactWriter.Format format, boolean compressed) throws IOException, ParseException {
+        if (Trace.EPISODE_GAP >= 0)
+            throw new UnsupportedOperationException("the contact episodes cannot be aggregated across shards");
+        workDir.mkdirs();
+        File trace = source;
+        if (source.isDirectory()) {
+            trace = new File(workDir, "trace.bin");
+            new StreamingContactTraceGenerator(TraceReader.listFiles(source))
+                    .write(trace, MappedCoordinateStore.DEFAULT_INDEX_STEP);
+        }
+        traceLength = new MappedCoordinateStore(trace).size();
+        Metrics.Timer timer = Metrics.start(Metrics.Phase.GENERATE);
+        List<Process> workers = new ArrayList<>();
+        File[] shards = new File[nbShards];
+        File[] logs = new File[nbShards];
+        try {
+            for (int i = 0; i < nbShards; i++) {
+                shards[i] = new File(workDir, "shard-" + i + ".bin");
+                logs[i] = new File(workDir, "shard-" + i + ".log");
+                List<String> command = new ArrayList<>(workerCommand);
+                command.addAll(Arrays.asList("--worker=" + traceLength * i / nbShards + "," + traceLength * (i + 1) / nbShards,
+                        "--distance-range=" + Trace.DISTANCE_RANGE, "--time-range=" + Trace.TIME_RANGE,
+                        "--metric=" + Trace.DISTANCE_METRIC, trace.getPath(), shards[i].getPath()));
+                workers.add(new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(logs[i]).start());
+            }
+            for (int i = 0; i < nbShards; i++) {
+                int status = workers.get(i).waitFor();
+                if (status != 0) throw new IOException("worker " + i + " failed (exit status " + status + "), see " + logs[i]);
+                if (Trace.VERBOSE) System.out.print((nbShards - i) + "...");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            for (Process worker : workers) worker.destroy();
+            timer.stop();
+        }
+        merge(shards, file, format, compressed);
+        for (int i = 0; i < nbShards; i++) {
+            shards[i].delete();
+            logs[i].delete();
+        }
+        if (trace != source) trace.delete();
+        workDir.delete(); // only if nothing else is left in it
+        if (Trace.VERBOSE) System.out.println("done.");
+    }
+
+    /**
+     * Generates the contacts of a shard (in a worker process) into a sorted binary contact file
+     *
+     * @param trace the binary trace file
+     * @param from the index of the first coordinate of the shard
+     * @param to the index following the last coordinate of the shard
+     * @param file the shard contact file
+     * @param parallelism the number of threads
+     * @return the number of contacts of the shard
+     * @throws IOException
+     */
+    public static int generateShard(File trace, int from, int to, File file, int parallelism) throws IOException {
+        ContactBuffer contacts = Trace.fromBinaryFile(trace).generateRange(from, to, parallelism);
+        ContactWriter.write(contacts, file, ContactWriter.Format.BINARY, false);
+        return contacts.size();
+    }
+
+    /**
+     * Merges the sorted shard contact files, without duplicates
+     */
+    private void merge(File[] shards, File file, ContactWriter.Format format, boolean compressed) throws IOException {
+        Metrics.Timer timer = Metrics.start(Metrics.Phase.WRITE);
+        ShardReader[] readers = new ShardReader[shards.length];
+        try (ContactWriter writer = new ContactWriter(file, format, compressed)) {
+            for (int i = 0; i < shards.length; i++) readers[i] = new ShardReader(shards[i]);
+            long[] last = null;
+            while (true) {
+                ShardReader lowest = null;
+                for (ShardReader reader : readers) {
+                    if (reader.current != null && (lowest == null || compare(reader.current, lowest.current) < 0)) lowest = reader;
+                }
+                if (lowest == null) break;
+                if (last == null || compare(lowest.current, last) != 0) {
+                    writer.write((int) lowest.current[0], (int) lowest.current[1], lowest.current[2], lowest.current[3]);
+                    last = lowest.current.clone();
+                    contactLength++;
+                } else {
+                    Metrics.count(Metrics.Counter.DUPLICATE_CONTACTS, 1);
+                }
+                lowest.next();
+            }
+        } finally {
+            for (ShardReader reader : readers) if (reader != null) reader.close();
+            timer.stop();
+        }
+    }
+
+    /**
+     * Orders two contacts as Contact.compareTo
+     */
+    private static int compare(long[] contact1, long[] contact2) {
+        for (int k = 0; k < 4; k++) {
+            if (contact1[k] != contact2[k]) return contact1[k] < contact2[k] ? -1 : 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Gets the number of coordinates of the trace
+     *
+     * @return the trace length
+     */
+    public long getTraceLength() {
+        return traceLength;
+    }
+
+    /**
+     * Gets the number of contacts after the merge
+     *
+     * @return the contact trace length
+     */
+    public long getContactLength() {
+        return contactLength;
+    }
+
+    /**
+     * Sequential reader of a binary contact file (taxi1, taxi2, start, stop)
+     */
+    private static class ShardReader {
+        FileChannel channel;
+        ByteBuffer buffer;
+        long[] current;
+
+        File file;
+
+        ShardReader(File file) throws IOException {
+            this.file = file;
+            channel = new FileInputStream(file).getChannel();
+            buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.flip();
+            current = new long[4];
+            if (!fill(ContactWriter.HEADER_SIZE) || buffer.getLong() != ContactWriter.MAGIC)
+                throw new IOException(file + ": not a binary contact trace");
+            if (buffer.getInt() != ContactWriter.VERSION || buffer.getInt() != ContactWriter.RECORD_SIZE)
+                throw new IOException(file + ": unsupported binary contact trace version");
+            next();
+        }
+
+        void next() throws IOException {
+            if (!fill(ContactWriter.RECORD_SIZE)) {
+                if (buffer.hasRemaining()) throw new IOException(file + ": truncated binary contact trace");
+                current = null;
+                return;
+            }
+            current[0] = buffer.getInt();
+            current[1] = buffer.getInt();
+            current[2] = buffer.getLong();
+            current[3] = buffer.getLong();
+        }
+
+        private boolean fill(int length) throws IOException {
+            if (buffer.remaining() >= length) return true;
+            buffer.compact();
+            int read = 0;
+            while (buffer.position() < length && read != -1) read = channel.read(buffer);
+            buffer.flip();
+            return buffer.remaining() >= length;
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Generates the contact trace while streaming the taxi files, without loading the whole trace
+ *
+ * Each taxi file has to be in time order: the files are merged into a single time ordered stream
+ * (k-way merge), only the last TIME_RANGE seconds of coordinates are kept in a sliding window,
+ * and each coordinate is compared to the window through a GridContactTraceGenerator.
+ * A file is read by chunks of a few lines and is not kept open between two chunks,
+ * so the memory is proportional to the fleet size and to the window, not to the trace length.
+ *
+ * Given an executor, the files are read and parsed by its threads, one chunk ahead of the merge for each file
+ * (which bounds the chunks in memory to two per file), so the reading overlaps the generation.
+ */
+public class StreamingContactTraceGenerator {
+
+    public static final int CHUNK_SIZE = 4096; // bytes read from a file at once
+
+    // parsers of the executor threads (a TraceReader is not thread safe)
+    private static final ThreadLocal<TraceReader> READERS = new ThreadLocal<TraceReader>() {
+        @Override
+        protected TraceReader initialValue() {
+            return new TraceReader();
+        }
+    };
+
+    private List<File> files;
+    private ExecutorService readers; // null to read the files in the generation thread
+    private WindowCoordinateStore window;
+    private long traceLength;
+    private long contactLength;
+    private LongAdder readNanos;
+    private long waitNanos;
+
+    /**
+     * @param files the taxi files, each one in time order
+     */
+    public StreamingContactTraceGenerator(List<File> files) {
+        this(files, null);
+    }
+
+    /**
+     * @param files the taxi files, each one in time order
+     * @param readers the executor reading the chunks ahead of the merge, null to read them in the generation thread
+     */
+    public StreamingContactTraceGenerator(List<File> files, ExecutorService readers) {
+        this.files = files;
+        this.readers = readers;
+        this.window = new WindowCoordinateStore();
+        this.traceLength = 0;
+        this.contactLength = 0;
+        this.readNanos = new LongAdder();
+        this.waitNanos = 0;
+    }
+
+    /**
+     * Streams the files and generates the contact trace
+     *
+     * As with Trace.fromDirectory, when two coordinates have the same id only the last one
+     * (in file order, then in line order) is kept.
+     *
+     * @param sink where to add the detected contacts, as soon as they are detected
+     * @throws IOException
+     * @throws ParseException if a file cannot be parsed or is not in time order
+     */
+    public void generate(final ContactSink sink) throws IOException, ParseException {
+        ContactSink countingSink = new ContactSink() {
+            @Override
+            public void add(int taxi1, int taxi2, long start, long stop) {
+                contactLength++;
+                sink.add(taxi1, taxi2, start, stop);
+            }
+        };
+        final GridContactTraceGenerator grid = new GridContactTraceGenerator(window);
+        merge(new Follower() {
+            @Override
+            public void follow(int index) {
+                grid.follow(index, countingSink);
+                window.release(grid.getOldest());
+                traceLength++;
+            }
+        });
+        grid.countMetrics(0, (int) traceLength);
+    }
+
+    /**
+     * Streams the files into a binary trace file (see MappedCoordinateStore), without generating the contacts
+     *
+     * As with generate, when two coordinates have the same id only the last one is kept.
+     *
+     * @param file the destination file
+     * @param indexStep the time index step in seconds
+     * @throws IOException
+     * @throws ParseException if a file cannot be parsed or is not in time order
+     */
+    public void write(File file, int indexStep) throws IOException, ParseException {
+        try (final MappedCoordinateStore.Writer writer = new MappedCoordinateStore.Writer(file, indexStep)) {
+            merge(new Follower() {
+                @Override
+                public void follow(int index) throws IOException {
+                    writer.add(window, index);
+                    window.release(index + 1);
+                    traceLength++;
+                }
+            });
+        }
+    }
+
+    /**
+     * Merges the files into the window, each coordinate being followed once its duplicates are known
+     */
+    private void merge(Follower follower) throws IOException, ParseException {
+        TraceReader reader = new TraceReader();
+        PriorityQueue<Cursor> cursors = new PriorityQueue<>(Math.max(1, files.size()), new Comparator<Cursor>() {
+            @Override
+            public int compare(Cursor cursor1, Cursor cursor2) {
+                long timestamp1 = cursor1.chunk.getTaxiTimestamp(cursor1.position);
+                long timestamp2 = cursor2.chunk.getTaxiTimestamp(cursor2.position);
+                if (timestamp1 != timestamp2) return timestamp1 < timestamp2 ? -1 : 1;
+                int number1 = cursor1.chunk.getTaxiNumber(cursor1.position);
+                int number2 = cursor2.chunk.getTaxiNumber(cursor2.position);
+                if (number1 != number2) return number1 < number2 ? -1 : 1;
+                return Integer.compare(cursor1.fileIndex, cursor2.fileIndex);
+            }
+        });
+        List<Cursor> opened = new ArrayList<>(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            Cursor cursor = new Cursor(files.get(i), i);
+            cursor.prefetch();
+            opened.add(cursor);
+        }
+        for (Cursor cursor : opened) {
+            if (cursor.refill(reader)) cursors.add(cursor);
+        }
+        int step = Math.max(1, files.size() / 10);
+        int nbClosed = 0;
+        int pending = 0;
+        boolean hasPending = false; // any int is a window index, the indexes wrapping around
+        while (!cursors.isEmpty()) {
+            Cursor cursor = cursors.poll();
+            ColumnarCoordinateStore chunk = cursor.chunk;
+            int position = cursor.position;
+            if (hasPending
+                    && window.getTaxiTimestamp(pending) == chunk.getTaxiTimestamp(position)
+                    && window.getTaxiNumber(pending) == chunk.getTaxiNumber(position)) {
+                window.set(pending, chunk.getTaxiNumber(position), chunk.getTaxiTimestamp(position),
+                        chunk.getTaxiLongitude(position), chunk.getTaxiLatitude(position),
+                        chunk.getTaxiSpeed(position), chunk.getTaxiDirection(position), chunk.getTaxiStatus(position));
+            } else {
+                if (hasPending) follower.follow(pending);
+                hasPending = true;
+                pending = window.add(chunk.getTaxiNumber(position), chunk.getTaxiTimestamp(position),
+                        chunk.getTaxiLongitude(position), chunk.getTaxiLatitude(position),
+                        chunk.getTaxiSpeed(position), chunk.getTaxiDirection(position), chunk.getTaxiStatus(position));
+            }
+            if (cursor.advance(reader)) {
+                cursors.add(cursor);
+            } else {
+                nbClosed++;
+                if (Trace.VERBOSE && ((files.size() - nbClosed) % step == 0))
+                    System.out.print((files.size() - nbClosed) * 10 / files.size() + "...");
+            }
+        }
+        if (hasPending) follower.follow(pending);
+        if (Trace.VERBOSE) System.out.println("done.");
+    }
+
+    private interface Follower {
+        void follow(int index) throws IOException;
+    }
+
+    /**
+     * Gets the number of coordinates streamed
+     *
+     * @return the trace length
+     */
+    public long getTraceLength() {
+        return traceLength;
+    }
+
+    /**
+     * Gets the number of contacts detected
+     *
+     * @return the contact trace length
+     */
+    public long getContactLength() {
+        return contactLength;
+    }
+
+    /**
+     * Gets the time spent by the executor threads reading and parsing the files
+     *
+     * @return the reading time in nanoseconds (0 without executor)
+     */
+    public long getReadNanos() {
+        return readNanos.sum();
+    }
+
+    /**
+     * Gets the time the generation waited for the executor threads
+     *
+     * @return the waiting time in nanoseconds (0 without executor)
+     */
+    public long getWaitNanos() {
+        return waitNanos;
+    }
+
+    /**
+     * Gets the highest number of coordinates kept in the sliding window
+     *
+     * @return the window length
+     */
+    public int getMaxWindowLength() {
+        return window.getMaxLength();
+    }
+
+    /**
+     * Current chunk of a taxi file, and the next chunk read ahead by the executor
+     */
+    private class Cursor {
+        File file;
+        int fileIndex;
+        long offset;
+        ColumnarCoordinateStore chunk;
+        int position;
+        ColumnarCoordinateStore spare; // filled by the executor
+        Future<Long> next; // offset following the spare chunk, null if not read ahead
+
+        Cursor(File file, int fileIndex) {
+            this.file = file;
+            this.fileIndex = fileIndex;
+            this.offset = 0;
+            this.chunk = new ColumnarCoordinateStore(64);
+            this.position = 0;
+        }
+
+        /**
+         * Reads the next chunk of the file ahead, with the executor
+         */
+        void prefetch() {
+            if (readers == null || offset == -1) return;
+            if (spare == null) spare = new ColumnarCoordinateStore(64);
+            final ColumnarCoordinateStore coordinates = spare;
+            final long chunkOffset = offset;
+            next = readers.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws IOException, ParseException {
+                    long start = System.nanoTime();
+                    coordinates.clear();
+                    long following = READERS.get().readChunk(file, chunkOffset, CHUNK_SIZE, coordinates);
+                    readNanos.add(System.nanoTime() - start);
+                    return following;
+                }
+            });
+        }
+
+        /**
+         * Reads the next chunk of the file (or takes the one read ahead)
+         *
+         * @return false if the end of the file is reached
+         */
+        boolean refill(TraceReader reader) throws IOException, ParseException {
+            long timestamp = chunk.size() == 0 ? Long.MIN_VALUE : chunk.getTaxiTimestamp(chunk.size() - 1);
+            int number = chunk.size() == 0 ? Integer.MIN_VALUE : chunk.getTaxiNumber(chunk.size() - 1);
+            do {
+                chunk.clear();
+                position = 0;
+                if (offset == -1) return false;
+                if (next == null) {
+                    offset = reader.readChunk(file, offset, CHUNK_SIZE, chunk);
+                } else {
+                    offset = take();
+                    ColumnarCoordinateStore read = spare;
+                    spare = chunk;
+                    chunk = read;
+                    prefetch();
+                }
+            } while (chunk.size() == 0);
+            for (int i = 0; i < chunk.size(); i++) {
+                if (chunk.compareTo(i, timestamp, number) < 0)
+                    throw new ParseException(file + ": coordinates not in time order", i);
+                timestamp = chunk.getTaxiTimestamp(i);
+                number = chunk.getTaxiNumber(i);
+            }
+            return true;
+        }
+
+        private long take() throws IOException, ParseException {
+            long start = System.nanoTime();
+            try {
+                return next.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(file + ": reading interrupted", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                if (e.getCause() instanceof ParseException) throw (ParseException) e.getCause();
+                throw new IOException(file + ": cannot be read", e.getCause());
+            } finally {
+                next = null;
+                waitNanos += System.nanoTime() - start;
+            }
+        }
+
+        /**
+         * Moves to the next coordinate of the file
+         *
+         * @return false if the end of the file is reached
+         */
+        boolean advance(TraceReader reader) throws IOException, ParseException {
+            if (++position < chunk.size()) return true;
+            return refill(reader);
+        }
+    }
+}
@@ -20,41 +20,71 @@
 
 package fr.insalyon.citi.trace.taxi;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.RecursiveAction;
 
 /**
  * Includes the task code to execute in each thread to analyze a sub-part of the taxi trace
+ *
+ * The task covers a time slab of the trace, i.e. a contiguous range of coordinates, and generates
+ * the contacts between the coordinates of the slab and their following coordinates (up to TIME_RANGE
+ * seconds after the slab, the halo). A large slab is recursively split in two halves of the same
+ * number of coordinates, so the slabs are shorter in dense periods than in quiet ones.
+ * A small slab is processed sequentially with a GridContactTraceGenerator.
  */
 public class SubContactTraceGeneratorTask extends RecursiveAction {
 
-    private Map.Entry<CoordinateId, Coordinate> entry;
-    private Map<CoordinateId, Coordinate> subMap;
-    private ConcurrentHashMap<Contact, Integer> taxiContacts;
+    public static final int MIN_SLAB_LENGTH = 1024; // coordinates
+    public static final int HALO_RATIO = 4; // a slab is at least 4 times longer than its halo
+
+    private Trace trace;
+    private int from;
+    private int to;
+    private int slabLength;
+    private ContactCollector collector;
+    private int depth; // number of splits from the whole trace
 
-    public SubContactTraceGeneratorTask(Map.Entry<CoordinateId, Coordinate> entry, Map<CoordinateId, Coordinate> subMap, ConcurrentHashMap<Contact, Integer> taxiContacts) {
-        this.entry = entry;
-        this.subMap = subMap;
-        this.taxiContacts = taxiContacts;
+    /**
+     * @param trace the taxi trace
+     * @param from the index of the first coordinate of the slab
+     * @param to the index following the last coordinate of the slab
+     * @param slabLength the length under which a slab is not split anymore
+     * @param collector where to add the detected contacts (in a buffer per thread)
+     */
+    public SubContactTraceGeneratorTask(Trace trace, int from, int to, int slabLength, ContactCollector collector) {
+        this(trace, from, to, slabLength, collector, 0);
+    }
+
+    private SubContactTraceGeneratorTask(Trace trace, int from, int to, int slabLength, ContactCollector collector, int depth) {
+        this.trace = trace;
+        this.from = from;
+        this.to = to;
+        this.slabLength = Math.max(slabLength, MIN_SLAB_LENGTH);
+        this.collector = collector;
+        this.depth = depth;
     }
 
     /**
-     * Computes the GPS distance between two taxi coordinates to determine if a contact exists
-     *
-     * Parameters are similar to generateSubTrace from Trace class, except their are given
-     * through the class constructor
+     * Splits the slab in two halves, or computes the GPS distances between the coordinates
+     * of the slab and their following ones to determine if contacts exist
      */
     @Override
     protected void compute() {
-        for (Map.Entry<CoordinateId, Coordinate> follower : subMap.entrySet()) {
-            if (entry.getValue().getTaxiNumber() != follower.getValue().getTaxiNumber()
-                    && entry.getValue().distance(follower.getValue()) <= Trace.DISTANCE_RANGE) {
-                taxiContacts.put(new Contact(entry.getValue().getTaxiNumber(),
-                        follower.getValue().getTaxiNumber(),
-                        entry.getValue().getTaxiTimestamp().getTime(),
-                        follower.getValue().getTaxiTimestamp().getTime()), new Integer(0));
+        if (to - from <= 0) return;
+        int end = trace.windowEnd(to - 1);
+        if (to - from > slabLength && to - from > HALO_RATIO * 2 * (end - to)) {
+            int middle = (from + to) >>> 1;
+            invokeAll(new SubContactTraceGeneratorTask(trace, from, middle, slabLength, collector, depth + 1),
+                    new SubContactTraceGeneratorTask(trace, middle, to, slabLength, collector, depth + 1));
+            return;
+        }
+        if (Trace.METRICS) {
+            Metrics.count(Metrics.Counter.FORK_JOIN_SLABS, 1);
+            Metrics.observe(Metrics.Gauge.FORK_JOIN_MAX_DEPTH, depth);
+            if (getPool() != null) {
+                Metrics.observe(Metrics.Gauge.FORK_JOIN_MAX_QUEUED_TASKS, getPool().getQueuedTaskCount());
+                Metrics.observe(Metrics.Gauge.FORK_JOIN_MAX_ACTIVE_THREADS, getPool().getActiveThreadCount());
             }
         }
+        new GridContactTraceGenerator(trace.getTaxiCoordinates(), from).generate(from, to, end, collector.getBuffer());
     }
 }
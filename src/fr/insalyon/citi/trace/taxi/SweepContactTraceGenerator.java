@@ -0,0 +1,163 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generates the contact traces of several contact parameters in a single sweep of the taxi coordinates
+ *
+ * The runs of a same distance metric share one grid sweep with their largest distance and time ranges:
+ * each contact found is then dispatched to the runs whose ranges it fits, with the same distance check
+ * (on the prepared coordinates) and the same time window bounds as the grid, so every run gets exactly
+ * the contact trace of its own generation.
+ */
+public class SweepContactTraceGenerator {
+
+    private CoordinateStore taxiCoordinates;
+    private List<ContactParameters> runs;
+
+    /**
+     * @param taxiCoordinates the taxi coordinates in time order
+     * @param runs the contact parameters of the runs
+     */
+    public SweepContactTraceGenerator(CoordinateStore taxiCoordinates, List<ContactParameters> runs) {
+        this.taxiCoordinates = taxiCoordinates;
+        this.runs = runs;
+    }
+
+    /**
+     * Generates the contact traces of all the runs
+     *
+     * @return the sorted and deduplicated contacts (or contact episodes) of each run, in the order of the runs
+     */
+    public ContactBuffer[] generate() {
+        ContactBuffer[] contacts = new ContactBuffer[runs.size()];
+        ContactSink[] sinks = new ContactSink[runs.size()];
+        long maxTimeRange = 0;
+        for (ContactParameters run : runs) maxTimeRange = Math.max(maxTimeRange, run.getTimeRange());
+        for (int i = 0; i < sinks.length; i++) {
+            contacts[i] = new ContactBuffer();
+            sinks[i] = runs.get(i).getEpisodeGap() >= 0
+                    ? new ContactEpisodeAggregator(contacts[i], runs.get(i).getEpisodeGap() * 1000, maxTimeRange * 1000)
+                    : contacts[i];
+        }
+        Metrics.Timer timer = Metrics.start(Metrics.Phase.GENERATE);
+        generate(sinks);
+        timer.stop();
+        timer = Metrics.start(Metrics.Phase.DEDUPE);
+        for (int i = 0; i < sinks.length; i++) {
+            if (sinks[i] instanceof ContactEpisodeAggregator) ((ContactEpisodeAggregator) sinks[i]).close();
+            contacts[i].sort();
+        }
+        timer.stop();
+        return contacts;
+    }
+
+    /**
+     * Generates the contacts of all the runs, one sweep per distance metric
+     *
+     * @param sinks where to add the contacts of each run, in the order of the runs
+     *              (in the time order of the following coordinates of each sweep)
+     */
+    public void generate(ContactSink[] sinks) {
+        List<DistanceMetric> metrics = new ArrayList<>();
+        for (ContactParameters run : runs) {
+            if (!metrics.contains(run.getMetric())) metrics.add(run.getMetric());
+        }
+        for (DistanceMetric metric : metrics) {
+            List<Integer> group = new ArrayList<>();
+            double maxDistanceRange = 0;
+            long maxTimeRange = 0;
+            for (int i = 0; i < runs.size(); i++) {
+                if (runs.get(i).getMetric() != metric) continue;
+                group.add(i);
+                maxDistanceRange = Math.max(maxDistanceRange, runs.get(i).getDistanceRange());
+                maxTimeRange = Math.max(maxTimeRange, runs.get(i).getTimeRange());
+            }
+            sweep(metric, group, sinks, new ContactParameters(maxDistanceRange, maxTimeRange, metric, -1));
+        }
+    }
+
+    private void sweep(final DistanceMetric metric, List<Integer> group, ContactSink[] sinks, ContactParameters widest) {
+        final int length = group.size();
+        final double[] thresholds = new double[length];
+        final long[] timeRanges = new long[length];
+        final ContactSink[] groupSinks = new ContactSink[length];
+        for (int k = 0; k < length; k++) {
+            ContactParameters run = runs.get(group.get(k));
+            thresholds[k] = metric.threshold(run.getDistanceRange());
+            timeRanges[k] = run.getTimeRange();
+            groupSinks[k] = sinks[group.get(k)];
+        }
+        final double[] values = new double[2 * DistanceMetric.CACHE_SIZE];
+        GridContactTraceGenerator grid = new GridContactTraceGenerator(taxiCoordinates, 0, widest) {
+            @Override
+            void emit(int entry, int follower, ContactSink sink) {
+                int entryNumber = taxiCoordinates.getTaxiNumber(entry);
+                int followerNumber = taxiCoordinates.getTaxiNumber(follower);
+                long entryTimestamp = taxiCoordinates.getTaxiTimestamp(entry);
+                long followerTimestamp = taxiCoordinates.getTaxiTimestamp(follower);
+                metric.prepare(taxiCoordinates.getTaxiLatitude(entry), taxiCoordinates.getTaxiLongitude(entry), values, 0);
+                metric.prepare(taxiCoordinates.getTaxiLatitude(follower), taxiCoordinates.getTaxiLongitude(follower),
+                        values, DistanceMetric.CACHE_SIZE);
+                for (int k = 0; k < length; k++) {
+                    if (isFollowing(entryTimestamp + timeRanges[k], followerTimestamp, followerNumber)
+                            && metric.isInRange(values, 0, values, DistanceMetric.CACHE_SIZE, thresholds[k])) {
+                        groupSinks[k].add(entryNumber, followerNumber, entryTimestamp * 1000, followerTimestamp * 1000);
+                    }
+                }
+            }
+        };
+        grid.generate(null); // the contacts are dispatched by emit, not given to a sink
+    }
+
+    /**
+     * Gets the contact trace file of a run, named after the destination file and the ranges of the run
+     *
+     * @param destination the destination file of the sweep
+     * @param run the contact parameters of the run
+     * @return the file, e.g. contacts-250m-30s
+     */
+    public static File file(File destination, ContactParameters run) {
+        return new File(destination.getPath() + "-" + run.getName());
+    }
+
+    /**
+     * Generates and saves the contact traces of all the runs
+     *
+     * @param destination the destination file of the sweep (see file(destination, run))
+     * @param format the contact trace format
+     * @param compressed true to gzip the contact traces
+     * @return the contacts of each run
+     * @throws IOException
+     */
+    public ContactBuffer[] generate(File destination, ContactWriter.Format format, boolean compressed) throws IOException {
+        ContactBuffer[] contacts = generate();
+        for (int i = 0; i < contacts.length; i++) {
+            ContactWriter.write(contacts[i], file(destination, runs.get(i)), format, compressed);
+        }
+        return contacts;
+    }
+}
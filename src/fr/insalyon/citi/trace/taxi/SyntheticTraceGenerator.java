@@ -0,0 +1,294 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates a deterministic synthetic taxi trace
+ *
+ * Each taxi drives from destination to destination at a random speed, and waits a few minutes
+ * when it reaches a destination. A destination is drawn around one of the hotspots
+ * (with the hotspot density probability) or uniformly in the city bounding box.
+ * A coordinate is recorded every sampling interval (give or take a third of it).
+ * A taxi only depends on the seed and on its id, so a smaller fleet is a subset of a larger one.
+ *
+ * The trace is written as Taxi_<id> files, in time order, in the format read by Trace.fromFile.
+ */
+public class SyntheticTraceGenerator {
+
+    public static final int FIRST_TAXI_NUMBER = 10000;
+
+    private static final double METERS_PER_DEGREE = 111195;
+    private static final double HOTSPOT_RADIUS = 500; // meters
+
+    private int fleetSize = 1000;
+    private int duration = 86400; // seconds
+    private int interval = 30; // seconds
+    private double minLongitude = 121.3;
+    private double minLatitude = 31.1;
+    private double maxLongitude = 121.6;
+    private double maxLatitude = 31.35;
+    private int nbHotspots = 20;
+    private double hotspotDensity = 0.5;
+    private long seed = 1;
+    private long start = startOf(2007, Calendar.FEBRUARY, 18); // seconds
+
+    public SyntheticTraceGenerator setFleetSize(int fleetSize) {
+        this.fleetSize = fleetSize;
+        return this;
+    }
+
+    /**
+     * @param duration the trace duration in seconds
+     */
+    public SyntheticTraceGenerator setDuration(int duration) {
+        this.duration = duration;
+        return this;
+    }
+
+    /**
+     * @param interval the mean time between two coordinates of a taxi in seconds
+     */
+    public SyntheticTraceGenerator setInterval(int interval) {
+        this.interval = interval;
+        return this;
+    }
+
+    /**
+     * @param minLongitude the west bound of the city in degrees
+     * @param minLatitude the south bound of the city in degrees
+     * @param maxLongitude the east bound of the city in degrees
+     * @param maxLatitude the north bound of the city in degrees
+     */
+    public SyntheticTraceGenerator setBoundingBox(double minLongitude, double minLatitude, double maxLongitude, double maxLatitude) {
+        this.minLongitude = minLongitude;
+        this.minLatitude = minLatitude;
+        this.maxLongitude = maxLongitude;
+        this.maxLatitude = maxLatitude;
+        return this;
+    }
+
+    /**
+     * @param nbHotspots the number of hotspots (stations, airports...)
+     * @param hotspotDensity the probability that a destination is around a hotspot (from 0 to 1)
+     */
+    public SyntheticTraceGenerator setHotspots(int nbHotspots, double hotspotDensity) {
+        this.nbHotspots = nbHotspots;
+        this.hotspotDensity = hotspotDensity;
+        return this;
+    }
+
+    public SyntheticTraceGenerator setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * @param start the timestamp of the trace beginning in seconds since the epoch
+     */
+    public SyntheticTraceGenerator setStart(long start) {
+        this.start = start;
+        return this;
+    }
+
+    /**
+     * Generates the trace in memory
+     *
+     * @return the coordinates in time order
+     */
+    public ColumnarCoordinateStore generate() {
+        double[] hotspots = hotspots();
+        ColumnarCoordinateStore taxiCoordinates = new ColumnarCoordinateStore((int) ((long) fleetSize * (duration / interval + 1)));
+        for (int taxi = 0; taxi < fleetSize; taxi++) generateTaxi(taxi, hotspots, taxiCoordinates);
+        taxiCoordinates.sort();
+        return taxiCoordinates;
+    }
+
+    /**
+     * Writes the trace as one Taxi_<id> file per taxi
+     *
+     * @param dir the destination directory (created if needed)
+     * @throws IOException
+     */
+    public void write(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException(dir + ": cannot create the directory");
+        double[] hotspots = hotspots();
+        ColumnarCoordinateStore taxiCoordinates = new ColumnarCoordinateStore(duration / interval + 1);
+        TimestampFormat format = new TimestampFormat();
+        int step = Math.max(1, fleetSize / 10);
+        for (int taxi = 0; taxi < fleetSize; taxi++) {
+            if (Trace.VERBOSE && ((fleetSize - taxi) % step == 0))
+                System.out.print((fleetSize - taxi) * 10 / fleetSize + "...");
+            taxiCoordinates.clear();
+            generateTaxi(taxi, hotspots, taxiCoordinates);
+            File file = new File(dir, "Taxi_" + (FIRST_TAXI_NUMBER + taxi));
+            try (BufferedWriter out = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+                StringBuilder line = new StringBuilder(64);
+                for (int i = 0; i < taxiCoordinates.size(); i++) {
+                    line.setLength(0);
+                    line.append(taxiCoordinates.getTaxiNumber(i)).append(',')
+                            .append(format.format(taxiCoordinates.getTaxiTimestamp(i))).append(',');
+                    appendMicros(line, Math.round(taxiCoordinates.getTaxiLongitude(i) * 1e6)).append(',');
+                    appendMicros(line, Math.round(taxiCoordinates.getTaxiLatitude(i) * 1e6)).append(',');
+                    appendPadded(line, taxiCoordinates.getTaxiSpeed(i)).append(',');
+                    appendPadded(line, taxiCoordinates.getTaxiDirection(i)).append(',')
+                            .append(taxiCoordinates.getTaxiStatus(i)).append('\n');
+                    out.append(line);
+                }
+            }
+        }
+        if (Trace.VERBOSE) System.out.println("done.");
+    }
+
+    /**
+     * Draws the hotspot centres (longitude, latitude pairs)
+     */
+    private double[] hotspots() {
+        Random random = new Random(seed);
+        double[] hotspots = new double[2 * nbHotspots];
+        for (int i = 0; i < nbHotspots; i++) {
+            hotspots[2 * i] = minLongitude + random.nextDouble() * (maxLongitude - minLongitude);
+            hotspots[2 * i + 1] = minLatitude + random.nextDouble() * (maxLatitude - minLatitude);
+        }
+        return hotspots;
+    }
+
+    /**
+     * Appends the coordinates of a taxi, in time order
+     */
+    private void generateTaxi(int taxi, double[] hotspots, ColumnarCoordinateStore taxiCoordinates) {
+        Random random = new Random(seed * 1000003 + taxi);
+        double longitude = minLongitude + random.nextDouble() * (maxLongitude - minLongitude);
+        double latitude = minLatitude + random.nextDouble() * (maxLatitude - minLatitude);
+        double[] destination = new double[2];
+        long dwellEnd = start;
+        boolean hired = random.nextBoolean();
+        int speed = 0;
+        int direction = 0;
+        drawDestination(random, hotspots, destination);
+        long previous = start;
+        for (long timestamp = start + random.nextInt(interval); timestamp < start + duration;
+             timestamp += interval - interval / 3 + random.nextInt(2 * (interval / 3) + 1)) {
+            if (timestamp < dwellEnd) {
+                speed = 0;
+            } else {
+                speed = 20 + random.nextInt(41); // km/h
+                double dx = (destination[0] - longitude) * METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+                double dy = (destination[1] - latitude) * METERS_PER_DEGREE;
+                double remaining = Math.sqrt(dx * dx + dy * dy);
+                double meters = speed / 3.6 * (timestamp - Math.max(previous, dwellEnd));
+                direction = (int) ((Math.toDegrees(Math.atan2(dx, dy)) + 360) % 360);
+                if (meters >= remaining) {
+                    longitude = destination[0];
+                    latitude = destination[1];
+                    dwellEnd = timestamp + 60 + random.nextInt(600);
+                    hired = !hired;
+                    drawDestination(random, hotspots, destination);
+                } else {
+                    longitude += dx / remaining * meters / (METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude)));
+                    latitude += dy / remaining * meters / METERS_PER_DEGREE;
+                }
+            }
+            previous = timestamp;
+            // rounded as in the original trace files
+            taxiCoordinates.add(FIRST_TAXI_NUMBER + taxi, timestamp,
+                    Math.round(longitude * 1e6) / 1e6, Math.round(latitude * 1e6) / 1e6,
+                    speed, direction, hired ? 1 : 0);
+        }
+    }
+
+    private void drawDestination(Random random, double[] hotspots, double[] destination) {
+        if (nbHotspots > 0 && random.nextDouble() < hotspotDensity) {
+            int hotspot = random.nextInt(nbHotspots);
+            double angle = random.nextDouble() * 2 * Math.PI;
+            double radius = HOTSPOT_RADIUS * Math.sqrt(random.nextDouble()) / METERS_PER_DEGREE;
+            destination[0] = hotspots[2 * hotspot] + radius * Math.cos(angle) / Math.cos(Math.toRadians(hotspots[2 * hotspot + 1]));
+            destination[1] = hotspots[2 * hotspot + 1] + radius * Math.sin(angle);
+        } else {
+            destination[0] = minLongitude + random.nextDouble() * (maxLongitude - minLongitude);
+            destination[1] = minLatitude + random.nextDouble() * (maxLatitude - minLatitude);
+        }
+    }
+
+    /**
+     * Appends millionths of degree as a decimal number with 6 decimals (e.g. 121.429600)
+     */
+    private static StringBuilder appendMicros(StringBuilder line, long micros) {
+        if (micros < 0) {
+            line.append('-');
+            micros = -micros;
+        }
+        line.append(micros / 1000000).append('.');
+        String decimals = Long.toString(micros % 1000000);
+        for (int i = decimals.length(); i < 6; i++) line.append('0');
+        return line.append(decimals);
+    }
+
+    /**
+     * Appends a number right-aligned on 3 characters (e.g. "  0")
+     */
+    private static StringBuilder appendPadded(StringBuilder line, int value) {
+        if (value < 100) line.append(' ');
+        if (value < 10) line.append(' ');
+        return line.append(value);
+    }
+
+    private static long startOf(int year, int month, int day) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(year, month, day);
+        return calendar.getTimeInMillis() / 1000;
+    }
+
+    /**
+     * Formats the timestamps as yyyy-MM-dd HH:mm:ss in the default time zone,
+     * with a cache of the current hour (the coordinates of a taxi are in time order)
+     */
+    private static class TimestampFormat {
+        private Calendar calendar = Calendar.getInstance();
+        private long hourStart = Long.MIN_VALUE;
+        private long hourEnd = Long.MIN_VALUE;
+        private String hour;
+
+        String format(long timestamp) {
+            if (timestamp < hourStart || timestamp >= hourEnd) {
+                calendar.setTimeInMillis(timestamp * 1000);
+                calendar.set(Calendar.MINUTE, 0);
+                calendar.set(Calendar.SECOND, 0);
+                calendar.set(Calendar.MILLISECOND, 0);
+                hourStart = calendar.getTimeInMillis() / 1000;
+                hourEnd = hourStart + 3600;
+                hour = String.format(Locale.ROOT, "%04d-%02d-%02d %02d:", calendar.get(Calendar.YEAR),
+                        calendar.get(Calendar.MONTH) + 1, calendar.get(Calendar.DAY_OF_MONTH),
+                        calendar.get(Calendar.HOUR_OF_DAY));
+            }
+            long seconds = timestamp - hourStart;
+            return hour + (seconds / 60 < 10 ? "0" : "") + seconds / 60 + ":" + (seconds % 60 < 10 ? "0" : "") + seconds % 60;
+        }
+    }
+}
@@ -21,14 +21,9 @@
 package fr.insalyon.citi.trace.taxi;
 
 import java.io.*;
-import java.text.DateFormat;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.LinkedList;
-import java.util.Map;
+import java.util.List;
 import java.util.TreeMap;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.RecursiveAction;
 
@@ -38,47 +33,80 @@ import java.util.concurrent.RecursiveAction;
 public class Trace extends RecursiveAction {
 
     public static boolean VERBOSE = true; // to display a process bar
+    public static boolean METRICS = false; // to collect the Metrics (displayed or exported by a MetricsReporter)
 
     public static double DISTANCE_RANGE = 250; // meters
     public static long TIME_RANGE = 30; // seconds
+    public static DistanceMetric DISTANCE_METRIC = DistanceMetric.Standard.HAVERSINE;
 
-    private TreeMap<CoordinateId, Coordinate> taxiCoordinates;
-    private ConcurrentHashMap<Contact, Integer> taxiContacts;
+    public static long EPISODE_GAP = -1; // seconds, aggregates the contacts into episodes if positive or null
 
-    public Trace(TreeMap<CoordinateId, Coordinate> taxiCoordinates) {
+    // highest taxi id included at the end of a time window (same bound as the former CoordinateId sub-maps)
+    static final int LAST_TAXI_NUMBER = 999999;
+
+    private CoordinateStore taxiCoordinates;
+    private ContactBuffer taxiContacts;
+
+    public Trace(CoordinateStore taxiCoordinates) {
         this.taxiCoordinates = taxiCoordinates;
         this.taxiContacts = null;
     }
 
+    public Trace(TreeMap<CoordinateId, Coordinate> taxiCoordinates) {
+        ColumnarCoordinateStore store = new ColumnarCoordinateStore(taxiCoordinates.size());
+        for (Coordinate coordinate : taxiCoordinates.values()) {
+            store.add(coordinate.getTaxiNumber(),
+                    coordinate.getTaxiTimestamp().getTime() / 1000,
+                    coordinate.getTaxiLongitude(),
+                    coordinate.getTaxiLatitude(),
+                    coordinate.getTaxiSpeed(),
+                    coordinate.getTaxiDirection(),
+                    coordinate.getTaxiStatus());
+        }
+        store.sort();
+        this.taxiCoordinates = store;
+        this.taxiContacts = null;
+    }
+
+    /**
+     * Gets the taxi trace
+     *
+     * @return the taxi coordinates in time order
+     */
+    public CoordinateStore getTaxiCoordinates() {
+        return taxiCoordinates;
+    }
+
     /**
      * Gets the contact trace (and generates it if needed)
      *
-     * @return the contact trace
+     * @return the contact trace, sorted and without duplicates
      */
-    public ConcurrentHashMap<Contact, Integer> getTaxiContacts() {
+    public ContactBuffer getTaxiContacts() {
         if (taxiContacts == null) generate();
         return taxiContacts;
     }
 
     /**
-     * Saves the contact trace (and generates it if needed)
+     * Saves the contact trace in the text format (and generates it if needed)
      *
      * @param file the destination file
      */
     public void dumpContactTrace(File file) {
+        dumpContactTrace(file, ContactWriter.Format.TEXT, false);
+    }
+
+    /**
+     * Saves the contact trace in (taxi1, taxi2, start, stop) order (and generates it if needed)
+     *
+     * @param file the destination file
+     * @param format the contact trace format (see ContactWriter)
+     * @param compressed true to gzip the contact trace
+     */
+    public void dumpContactTrace(File file, ContactWriter.Format format, boolean compressed) {
         if (taxiContacts == null) generate();
         try {
-            PrintStream out = new PrintStream(
-                    new FileOutputStream(file));
-            int nbIter = 0;
-            for (Map.Entry<Contact, Integer> contact : taxiContacts.entrySet()) {
-                if (VERBOSE && ((taxiContacts.entrySet().size() - nbIter) % (taxiContacts.entrySet().size() / 10) == 0))
-                    System.out.print((taxiContacts.entrySet().size() - nbIter) * 10 / taxiContacts.entrySet().size() + "...");
-                out.println(contact.getKey().toString());
-                nbIter++;
-            }
-            out.close();
-            if (VERBOSE) System.out.println("done.");
+            ContactWriter.write(taxiContacts, file, format, compressed);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -86,6 +114,7 @@ public class Trace extends RecursiveAction {
 
     /**
      * Recursively reads the taxi trace from a directory
+     * (the files are parsed in parallel, one reading thread per processor)
      *
      * @param dir the input directory
      * @return Trace the taxi trace read
@@ -93,18 +122,23 @@ public class Trace extends RecursiveAction {
      * @throws ParseException
      */
     public static Trace fromDirectory(File dir) throws IOException, ParseException {
-        TreeMap<CoordinateId, Coordinate> taxiCoordinates = new TreeMap<>();
-        int nbIter = 0;
-        for (File entry : dir.listFiles()) {
-            if (VERBOSE && ((dir.listFiles().length - nbIter) % (dir.listFiles().length / 10) == 0))
-                System.out.print((dir.listFiles().length - nbIter) * 10 / dir.listFiles().length + "...");
-            if (entry.isDirectory()) {
-                taxiCoordinates.putAll(fromDirectory(entry).taxiCoordinates);
-            } else {
-                taxiCoordinates.putAll(fromFile(entry).taxiCoordinates);
-            }
-            nbIter++;
-        }
+        return fromDirectory(dir, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Recursively reads the taxi trace from a directory with a given number of reading threads
+     *
+     * @param dir the input directory
+     * @param nbThreads the number of reading threads
+     * @return Trace the taxi trace read
+     * @throws IOException
+     * @throws ParseException
+     */
+    public static Trace fromDirectory(File dir, int nbThreads) throws IOException, ParseException {
+        Metrics.Timer timer = Metrics.start(Metrics.Phase.LIST);
+        List<File> files = TraceReader.listFiles(dir);
+        timer.stop();
+        ColumnarCoordinateStore taxiCoordinates = TraceReader.read(files, nbThreads);
         if (VERBOSE) System.out.println("done.");
         return (new Trace(taxiCoordinates));
     }
@@ -121,114 +155,361 @@ public class Trace extends RecursiveAction {
      * @throws ParseException
      */
     public static Trace fromFile(File file) throws IOException, ParseException {
-        TreeMap<CoordinateId, Coordinate> taxiCoordinates = new TreeMap<>();
-        DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            String line = reader.readLine();
-            while (line != null) {
-                String[] tokens = line.split(",");
-                int taxiNumber = Integer.parseInt(tokens[0].trim());
-                Date taxiTimestamp = df.parse(tokens[1].trim());
-                double taxiLongitude = Double.parseDouble(tokens[2].trim());
-                double taxiLatitude = Double.parseDouble(tokens[3].trim());
-                int taxiSpeed = Integer.parseInt(tokens[4].trim());
-                int taxiDirection = Integer.parseInt(tokens[5].trim());
-                int taxiStatus = Integer.parseInt(tokens[6].trim());
-                Coordinate coordinate = new Coordinate(taxiNumber, taxiTimestamp, taxiLongitude, taxiLatitude, taxiSpeed, taxiDirection, taxiStatus);
-                CoordinateId coordinateId = new CoordinateId(taxiNumber, taxiTimestamp.getTime());
-                taxiCoordinates.put(coordinateId, coordinate);
-                line = reader.readLine();
+        ColumnarCoordinateStore taxiCoordinates = new ColumnarCoordinateStore();
+        Metrics.Timer timer = Metrics.start(Metrics.Phase.PARSE);
+        new TraceReader().readFile(file, taxiCoordinates);
+        timer.stop();
+        timer = Metrics.start(Metrics.Phase.INDEX);
+        taxiCoordinates.sort();
+        timer.stop();
+        return (new Trace(taxiCoordinates));
+    }
+
+    /**
+     * Opens a binary taxi trace (see MappedCoordinateStore) without loading it:
+     * the contact generation reads the coordinates directly from the mapped file
+     *
+     * @param file the binary trace file
+     * @return Trace the mapped taxi trace
+     * @throws IOException
+     */
+    public static Trace fromBinaryFile(File file) throws IOException {
+        return (new Trace(new MappedCoordinateStore(file)));
+    }
+
+    /**
+     * Generates the contact trace of a directory while streaming its files (see StreamingContactTraceGenerator):
+     * the trace is never loaded and the contacts are saved as soon as they are detected
+     *
+     * @param dir the input directory (each file has to be in time order)
+     * @param file the destination file
+     * @return the generator, giving the trace and window lengths
+     * @throws IOException
+     * @throws ParseException
+     */
+    public static StreamingContactTraceGenerator streamContactTrace(File dir, File file) throws IOException, ParseException {
+        return streamContactTrace(dir, file, ContactWriter.Format.TEXT, false);
+    }
+
+    /**
+     * Generates the contact trace of a directory while streaming its files (see StreamingContactTraceGenerator),
+     * the contacts are saved in detection order
+     * (the reading and the writing are interleaved with the generation, and timed with it)
+     *
+     * @param dir the input directory (each file has to be in time order)
+     * @param file the destination file
+     * @param format the contact trace format (see ContactWriter)
+     * @param compressed true to gzip the contact trace
+     * @return the generator, giving the trace and window lengths
+     * @throws IOException
+     * @throws ParseException
+     */
+    public static StreamingContactTraceGenerator streamContactTrace(File dir, File file,
+                                                                    ContactWriter.Format format, boolean compressed) throws IOException, ParseException {
+        Metrics.Timer timer = Metrics.start(Metrics.Phase.LIST);
+        StreamingContactTraceGenerator generator = new StreamingContactTraceGenerator(TraceReader.listFiles(dir));
+        timer.stop();
+        timer = Metrics.start(Metrics.Phase.GENERATE);
+        try (ContactWriter writer = new ContactWriter(file, format, compressed)) {
+            if (EPISODE_GAP >= 0) {
+                ContactEpisodeAggregator aggregator = episodeAggregator(writer);
+                generator.generate(aggregator);
+                aggregator.close();
+            } else {
+                generator.generate(writer);
             }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            timer.stop();
         }
-        return (new Trace(taxiCoordinates));
+        return generator;
+    }
+
+    /**
+     * Generates the contact trace of a directory with pipelined stages (see PipelinedContactTraceGenerator),
+     * the contacts are saved in detection order
+     *
+     * @param dir the input directory (each file has to be in time order)
+     * @param file the destination file
+     * @param format the contact trace format (see ContactWriter)
+     * @param compressed true to gzip the contact trace
+     * @param nbReaders the number of threads reading the files
+     * @return the generator, giving the trace length and the stage times
+     * @throws IOException
+     * @throws ParseException
+     */
+    public static PipelinedContactTraceGenerator pipelineContactTrace(File dir, File file, ContactWriter.Format format,
+                                                                      boolean compressed, int nbReaders) throws IOException, ParseException {
+        Metrics.Timer timer = Metrics.start(Metrics.Phase.LIST);
+        PipelinedContactTraceGenerator generator = new PipelinedContactTraceGenerator(TraceReader.listFiles(dir),
+                nbReaders, AsyncContactSink.DEFAULT_QUEUE_LENGTH);
+        timer.stop();
+        timer = Metrics.start(Metrics.Phase.GENERATE);
+        try (ContactWriter writer = new ContactWriter(file, format, compressed)) {
+            if (EPISODE_GAP >= 0) {
+                ContactEpisodeAggregator aggregator = episodeAggregator(writer);
+                generator.generate(aggregator);
+                aggregator.close();
+            } else {
+                generator.generate(writer);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            timer.stop();
+        }
+        return generator;
+    }
+
+    /**
+     * Generates the contact trace of a directory larger than the heap (see OutOfCoreContactTraceGenerator):
+     * the coordinates are spilled as time chunks to a local directory, and the contacts are saved chunk after chunk
+     *
+     * @param dir the input directory
+     * @param file the destination file
+     * @param spillDir the local directory where to spill the chunks
+     * @param format the contact trace format (see ContactWriter)
+     * @param compressed true to gzip the contact trace
+     * @return the generator, giving the trace and chunk lengths
+     * @throws IOException
+     * @throws ParseException
+     */
+    public static OutOfCoreContactTraceGenerator spillContactTrace(File dir, File file, File spillDir,
+                                                                   ContactWriter.Format format, boolean compressed) throws IOException, ParseException {
+        Metrics.Timer timer = Metrics.start(Metrics.Phase.LIST);
+        OutOfCoreContactTraceGenerator generator = new OutOfCoreContactTraceGenerator(TraceReader.listFiles(dir), spillDir);
+        timer.stop();
+        try (ContactWriter writer = new ContactWriter(file, format, compressed)) {
+            generator.generate(writer);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return generator;
+    }
+
+    /**
+     * Appends the contacts of new taxi files to the contact trace of the previous ones
+     * (see IncrementalContactTraceGenerator), then saves the checkpoint for the next files
+     * (the contact trace is first cut back to its length at the checkpoint, dropping the contacts of an interrupted run)
+     *
+     * @param dir the directory of the new taxi files (later than the checkpoint)
+     * @param file the contact trace to extend (created by the first generation)
+     * @param checkpointFile the checkpoint of the previous generation (created by the first generation)
+     * @param format the contact trace format (see ContactWriter)
+     * @param compressed true to gzip the contact trace
+     * @return the generator, giving the trace and window lengths
+     * @throws IOException
+     * @throws ParseException
+     */
+    public static IncrementalContactTraceGenerator appendContactTrace(File dir, File file, File checkpointFile,
+                                                                      ContactWriter.Format format, boolean compressed) throws IOException, ParseException {
+        Metrics.Timer timer = Metrics.start(Metrics.Phase.LIST);
+        IncrementalContactTraceGenerator generator = new IncrementalContactTraceGenerator(TraceReader.listFiles(dir), checkpointFile);
+        timer.stop();
+        generator.append(file, format, compressed);
+        return generator;
     }
 
     /**
      * Generates the contact trace
+     * (the contact episodes need the contacts in time order, which only generateGrid gives)
      */
     public void generate() {
+        if (EPISODE_GAP >= 0) {
+            generateGrid();
+            return;
+        }
         generateMultiThread();
         // generateSingleThread();
+        // generateGrid();
     }
 
     /**
      * Generates the contact trace with a mono-thread implementation
      */
     public void generateSingleThread() {
-        taxiContacts = new ConcurrentHashMap<>();
-        int nbIter = 0;
-        for (Map.Entry<CoordinateId, Coordinate> entry : taxiCoordinates.entrySet()) {
-            if (VERBOSE && ((taxiCoordinates.entrySet().size() - nbIter) % (taxiCoordinates.entrySet().size() / 10) == 0))
-                System.out.print((taxiCoordinates.entrySet().size() - nbIter) * 10 / taxiCoordinates.entrySet().size() + "...");
-            generateSubTrace(entry,
-                    taxiCoordinates.subMap(entry.getKey(),
-                            false,
-                            new CoordinateId(999999, entry.getKey().getTaxiTimestamp() + TIME_RANGE * 1000),
-                            true),
-                    taxiContacts);
-            nbIter++;
+        ContactBuffer contacts = new ContactBuffer();
+        int size = taxiCoordinates.size();
+        Metrics.Timer timer = Metrics.start(Metrics.Phase.GENERATE);
+        for (int part = 10, index = 0; part > 0; part--) {
+            for (int end = progress(size, part); index < end; index++) {
+                generateSubTrace(index, windowEnd(index), contacts);
+            }
         }
+        timer.stop();
+        dedupe(contacts);
         if (VERBOSE) System.out.println("done.");
     }
 
+    /**
+     * Generates the contact trace with a mono-thread implementation
+     * only comparing the coordinates of neighbouring cells of a spatial grid
+     */
+    public void generateGrid() {
+        ContactBuffer contacts = new ContactBuffer();
+        Metrics.Timer timer = Metrics.start(Metrics.Phase.GENERATE);
+        if (EPISODE_GAP >= 0) {
+            ContactEpisodeAggregator aggregator = episodeAggregator(contacts);
+            new GridContactTraceGenerator(taxiCoordinates).generate(aggregator);
+            aggregator.close();
+        } else {
+            new GridContactTraceGenerator(taxiCoordinates).generate(contacts);
+        }
+        timer.stop();
+        dedupe(contacts);
+    }
+
+    /**
+     * Sorts and deduplicates the generated contacts, which become the contact trace
+     *
+     * @param contacts the generated contacts
+     */
+    private void dedupe(ContactBuffer contacts) {
+        Metrics.Timer timer = Metrics.start(Metrics.Phase.DEDUPE);
+        contacts.sort();
+        timer.stop();
+        taxiContacts = contacts;
+    }
+
+    /**
+     * Displays the next step of the progress bar (10...9... down to 1...) and gives the end of a tenth of a loop,
+     * so that a loop is split in ten parts instead of testing its progress at each iteration
+     *
+     * @param size the loop length
+     * @param part the remaining tenths, from 10 to 1
+     * @return the index following the last iteration of the tenth
+     */
+    static int progress(int size, int part) {
+        if (VERBOSE) System.out.print(part + "...");
+        return size - (int) ((long) size * (part - 1) / 10);
+    }
+
+    /**
+     * Creates the aggregator of the contacts into episodes, with the EPISODE_GAP tolerance
+     *
+     * @param sink where to add the contact episodes
+     * @return the aggregator
+     */
+    private static ContactEpisodeAggregator episodeAggregator(ContactSink sink) {
+        return new ContactEpisodeAggregator(sink, EPISODE_GAP * 1000, TIME_RANGE * 1000);
+    }
+
+    /**
+     * Finds the end of the time window of a coordinate
+     *
+     * @param index of the coordinate
+     * @return the index following the last coordinate at most TIME_RANGE seconds later
+     */
+    int windowEnd(int index) {
+        return taxiCoordinates.higher(taxiCoordinates.getTaxiTimestamp(index) + TIME_RANGE, LAST_TAXI_NUMBER);
+    }
+
     /**
      * Computes the GPS distance between two taxi coordinates to determine if a contact exists
      *
-     * @param entry the first GPS coordinate to examine
-     * @param subMap the following GPS coordinates (in time order) to compare to
-     * @param taxiContacts to generated contact trace where to add potential contacts
-     */
-    public void generateSubTrace(Map.Entry<CoordinateId, Coordinate> entry, Map<CoordinateId, Coordinate> subMap, ConcurrentHashMap<Contact, Integer> taxiContacts) {
-        for (Map.Entry<CoordinateId, Coordinate> follower : subMap.entrySet()) {
-            if (entry.getValue().getTaxiNumber() != follower.getValue().getTaxiNumber()
-                    && entry.getValue().distance(follower.getValue()) <= DISTANCE_RANGE) {
-                taxiContacts.put(new Contact(entry.getValue().getTaxiNumber(),
-                        follower.getValue().getTaxiNumber(),
-                        entry.getValue().getTaxiTimestamp().getTime(),
-                        follower.getValue().getTaxiTimestamp().getTime()), new Integer(0));
+     * @param index the first GPS coordinate to examine
+     * @param end the end of the following GPS coordinates (in time order) to compare to
+     * @param sink where to add potential contacts
+     */
+    public void generateSubTrace(int index, int end, ContactSink sink) {
+        int taxiNumber = taxiCoordinates.getTaxiNumber(index);
+        double taxiLatitude = taxiCoordinates.getTaxiLatitude(index);
+        double taxiLongitude = taxiCoordinates.getTaxiLongitude(index);
+        double latitudeLimit = GridContactTraceGenerator.latitudeCell(DISTANCE_RANGE);
+        double longitudeLimit = DistanceMetric.longitudeLimit(DISTANCE_RANGE, taxiLatitude);
+        double threshold = DISTANCE_METRIC.threshold(DISTANCE_RANGE);
+        double[] cache = new double[2 * DistanceMetric.CACHE_SIZE];
+        DISTANCE_METRIC.prepare(taxiLatitude, taxiLongitude, cache, 0);
+        long nbEvaluated = 0;
+        long nbPrefiltered = 0;
+        long nbEmitted = 0;
+        for (int follower = index + 1; follower < end; follower++) {
+            if (taxiNumber == taxiCoordinates.getTaxiNumber(follower)) continue;
+            nbEvaluated++;
+            double followerLatitude = taxiCoordinates.getTaxiLatitude(follower);
+            double followerLongitude = taxiCoordinates.getTaxiLongitude(follower);
+            if (Math.abs(followerLatitude - taxiLatitude) > latitudeLimit
+                    || Math.abs(followerLongitude - taxiLongitude) > longitudeLimit) {
+                nbPrefiltered++;
+                continue;
+            }
+            DISTANCE_METRIC.prepare(followerLatitude, followerLongitude, cache, DistanceMetric.CACHE_SIZE);
+            if (DISTANCE_METRIC.isInRange(cache, 0, cache, DistanceMetric.CACHE_SIZE, threshold)) {
+                nbEmitted++;
+                sink.add(taxiNumber,
+                        taxiCoordinates.getTaxiNumber(follower),
+                        taxiCoordinates.getTaxiTimestamp(index) * 1000,
+                        taxiCoordinates.getTaxiTimestamp(follower) * 1000);
             }
         }
+        if (METRICS) {
+            Metrics.count(Metrics.Counter.PAIRS_EVALUATED, nbEvaluated);
+            Metrics.count(Metrics.Counter.PAIRS_PREFILTERED, nbPrefiltered);
+            Metrics.count(Metrics.Counter.CONTACTS_EMITTED, nbEmitted);
+        }
     }
 
+
     /**
      * Generates the contact trace with a multi-thread implementation
      */
     public void generateMultiThread() {
-        ForkJoinPool forkJoinPool = new ForkJoinPool();
+        generateMultiThread(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Generates the contact trace with a multi-thread implementation on a given number of threads
+     *
+     * @param parallelism the number of threads
+     */
+    public void generateMultiThread(int parallelism) {
+        ForkJoinPool forkJoinPool = new ForkJoinPool(parallelism);
+        if (isDone()) reinitialize();
         forkJoinPool.invoke(this);
+        forkJoinPool.shutdown();
+    }
+
+    /**
+     * Generates the contacts of a range of coordinates with their following coordinates
+     * (up to TIME_RANGE seconds after the range) with the multi-thread implementation,
+     * e.g. for a chunk or a shard of a larger trace
+     *
+     * @param from the index of the first coordinate of the range
+     * @param to the index following the last coordinate of the range
+     * @param parallelism the number of threads
+     * @return the sorted and deduplicated contacts of the range (not kept as the contact trace)
+     */
+    public ContactBuffer generateRange(int from, int to, int parallelism) {
+        ContactCollector collector = new ContactCollector();
+        Metrics.Timer timer = Metrics.start(Metrics.Phase.GENERATE);
+        ForkJoinPool forkJoinPool = new ForkJoinPool(parallelism);
+        forkJoinPool.invoke(new SubContactTraceGeneratorTask(this, from, to, (to - from) / (8 * parallelism), collector));
+        forkJoinPool.shutdown();
+        timer.stop();
+        timer = Metrics.start(Metrics.Phase.DEDUPE);
+        ContactBuffer contacts = collector.merge();
+        timer.stop();
+        return contacts;
     }
 
     /**
      * Overrides compute method from RecursiveAction
-     * Splits the taxi trace analysis through different SubContactTraceGeneratorTask in different threads
+     * Splits the taxi trace analysis through different SubContactTraceGeneratorTask in different threads,
+     * recursively dividing the trace into time slabs (about 8 slabs per thread),
+     * each thread adding its contacts to its own buffer
      */
     @Override
     protected void compute() {
-        taxiContacts = new ConcurrentHashMap<>();
-        LinkedList<RecursiveAction> forks = new LinkedList<>();
-        int nbIter = 0;
-        for (Map.Entry<CoordinateId, Coordinate> entry : taxiCoordinates.entrySet()) {
-            if (VERBOSE && ((taxiCoordinates.entrySet().size() - nbIter) % (taxiCoordinates.entrySet().size() / 10) == 0))
-                System.out.print((taxiCoordinates.entrySet().size() - nbIter) * 10 / taxiCoordinates.entrySet().size() + "...");
-            SubContactTraceGeneratorTask subTask = new SubContactTraceGeneratorTask(entry,
-                    taxiCoordinates.subMap(entry.getKey(),
-                            false,
-                            new CoordinateId(999999, entry.getKey().getTaxiTimestamp() + TIME_RANGE * 1000),
-                            true),
-                    taxiContacts
-            );
-            forks.add(subTask);
-            subTask.fork();
-            nbIter++;
-        }
-        if (VERBOSE) System.out.println("threads launched.");
-        nbIter = 0;
-        for (RecursiveAction task : forks) {
-            if (VERBOSE && ((forks.size() - nbIter) % (forks.size() / 10) == 0))
-                System.out.print((forks.size() - nbIter) * 10 / forks.size() + "...");
-            task.join();
-            nbIter++;
-        }
+        ContactCollector collector = new ContactCollector();
+        int size = taxiCoordinates.size();
+        int slabLength = size / (8 * getPool().getParallelism());
+        Metrics.Timer timer = Metrics.start(Metrics.Phase.GENERATE);
+        new SubContactTraceGeneratorTask(this, 0, size, slabLength, collector).invoke();
+        timer.stop();
+        timer = Metrics.start(Metrics.Phase.DEDUPE);
+        taxiContacts = collector.merge();
+        timer.stop();
         if (VERBOSE) System.out.println("done.");
     }
 
@@ -0,0 +1,337 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Persistent cache of the parsed taxi trace files and of the generated contact traces
+ *
+ * The entries are named after a hash of their content identity: the path, size and modification time of a trace file
+ * for its coordinates (a binary trace of the file, see MappedCoordinateStore), plus the contact parameters
+ * for a contact trace (in the binary format of ContactWriter). An unchanged file is read from the cache,
+ * a changed file is parsed again under a new entry. Each use of an entry refreshes its modification time,
+ * and the least recently used entries are removed once the cache is larger than its maximum size.
+ * The entries are written into temporary files then renamed, so that concurrent or interrupted runs never read half an entry.
+ */
+public class TraceCache {
+
+    public static final long DEFAULT_MAX_SIZE = 1L << 30; // bytes
+
+    private static final String TRACE_SUFFIX = ".trace";
+    private static final String CONTACTS_SUFFIX = ".contacts";
+
+    private static final ThreadLocal<TraceReader> READERS = new ThreadLocal<TraceReader>() {
+        @Override
+        protected TraceReader initialValue() {
+            return new TraceReader();
+        }
+    };
+
+    private File dir;
+    private long maxSize;
+    private int nbHits;
+    private int nbMisses;
+
+    /**
+     * Opens (or creates) a cache directory, removing the least recently used entries beyond the maximum size
+     *
+     * @param dir the cache directory
+     * @param maxSize the maximum size of the cache in bytes
+     * @throws IOException if the directory cannot be created
+     */
+    public TraceCache(File dir, long maxSize) throws IOException {
+        if (maxSize < 0) throw new IllegalArgumentException("negative cache size: " + maxSize);
+        Files.createDirectories(dir.toPath());
+        this.dir = dir;
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    /**
+     * Reads the taxi trace of a directory, parsing only the files missing from the cache
+     * (in parallel, one reading thread per processor), then caches them
+     *
+     * @param source the taxi trace source directory, or a binary trace file (mapped, not cached)
+     * @return the taxi trace read
+     * @throws IOException
+     * @throws ParseException
+     */
+    public Trace load(File source) throws IOException, ParseException {
+        return load(source, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Reads the taxi trace of a directory with a given number of reading threads,
+     * parsing only the files missing from the cache, then caches them
+     *
+     * The files are sorted one by one, so that their concatenation sorted again
+     * keeps the same duplicated coordinates as Trace.fromDirectory.
+     *
+     * @param source the taxi trace source directory, or a binary trace file (mapped, not cached)
+     * @param nbThreads the number of reading threads
+     * @return the taxi trace read
+     * @throws IOException
+     * @throws ParseException
+     */
+    public Trace load(File source, int nbThreads) throws IOException, ParseException {
+        if (source.isFile()) return Trace.fromBinaryFile(source);
+        Metrics.Timer timer = Metrics.start(Metrics.Phase.LIST);
+        final List<File> files = TraceReader.listFiles(source);
+        timer.stop();
+        final ColumnarCoordinateStore[] fileCoordinates = new ColumnarCoordinateStore[files.size()];
+        List<Callable<Void>> parsers = new ArrayList<>();
+        timer = Metrics.start(Metrics.Phase.PARSE);
+        for (int i = 0; i < files.size(); i++) {
+            final int file = i;
+            final File entry = entry(key(files.get(file)), TRACE_SUFFIX);
+            if (entry.isFile()) {
+                fileCoordinates[file] = read(entry);
+                touch(entry);
+                nbHits++;
+                continue;
+            }
+            nbMisses++;
+            parsers.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    ColumnarCoordinateStore coordinates = new ColumnarCoordinateStore();
+                    READERS.get().readFile(files.get(file), coordinates);
+                    coordinates.sort();
+                    fileCoordinates[file] = coordinates;
+                    File temporary = File.createTempFile("entry", ".tmp", dir);
+                    MappedCoordinateStore.write(coordinates, temporary, MappedCoordinateStore.DEFAULT_INDEX_STEP);
+                    publish(temporary, entry);
+                    return null;
+                }
+            });
+        }
+        if (!parsers.isEmpty()) parse(parsers, nbThreads);
+        timer.stop();
+        timer = Metrics.start(Metrics.Phase.INDEX);
+        int size = 0;
+        for (ColumnarCoordinateStore coordinates : fileCoordinates) size += coordinates.size();
+        ColumnarCoordinateStore taxiCoordinates = new ColumnarCoordinateStore(size);
+        for (ColumnarCoordinateStore coordinates : fileCoordinates) taxiCoordinates.addAll(coordinates);
+        taxiCoordinates.sort();
+        timer.stop();
+        if (!parsers.isEmpty()) evict();
+        if (Trace.VERBOSE) System.out.println("done.");
+        return new Trace(taxiCoordinates);
+    }
+
+    /**
+     * Gets the cached contact trace of a source for some contact parameters
+     *
+     * @param source the taxi trace source directory or binary file
+     * @param parameters the contact parameters
+     * @return the sorted contacts, or null if they are not cached
+     * @throws IOException
+     */
+    public ContactBuffer getContacts(File source, ContactParameters parameters) throws IOException {
+        File entry = entry(key(source, parameters), CONTACTS_SUFFIX);
+        if (!entry.isFile()) return null;
+        ContactBuffer contacts = ContactIndex.readContactTrace(entry);
+        contacts.sort();
+        touch(entry);
+        return contacts;
+    }
+
+    /**
+     * Caches the contact trace of a source for some contact parameters
+     *
+     * @param source the taxi trace source directory or binary file
+     * @param parameters the contact parameters
+     * @param contacts the sorted contacts
+     * @throws IOException
+     */
+    public void putContacts(File source, ContactParameters parameters, ContactBuffer contacts) throws IOException {
+        File entry = entry(key(source, parameters), CONTACTS_SUFFIX);
+        File temporary = File.createTempFile("entry", ".tmp", dir);
+        try (ContactWriter writer = new ContactWriter(temporary, ContactWriter.Format.BINARY, false)) {
+            for (int i = 0; i < contacts.size(); i++) {
+                writer.write(contacts.getTaxi1(i), contacts.getTaxi2(i), contacts.getStart(i), contacts.getStop(i));
+            }
+        }
+        publish(temporary, entry);
+        evict();
+    }
+
+    /**
+     * Gets the number of trace files read from the cache
+     *
+     * @return the number of hits
+     */
+    public int getNbHits() {
+        return nbHits;
+    }
+
+    /**
+     * Gets the number of trace files missing from the cache, i.e. parsed
+     *
+     * @return the number of misses
+     */
+    public int getNbMisses() {
+        return nbMisses;
+    }
+
+    /**
+     * Gets the size of the cache entries
+     *
+     * @return the size in bytes
+     */
+    public long getSize() {
+        long size = 0;
+        for (File entry : entries()) size += entry.length();
+        return size;
+    }
+
+    /**
+     * Removes the least recently used entries until the cache fits its maximum size
+     */
+    public void evict() {
+        File[] entries = entries();
+        final long[] lastUses = new long[entries.length];
+        Integer[] order = new Integer[entries.length];
+        long size = 0;
+        for (int i = 0; i < entries.length; i++) {
+            lastUses[i] = entries[i].lastModified(); // read once, the sort needs stable keys
+            order[i] = i;
+            size += entries[i].length();
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer entry1, Integer entry2) {
+                return Long.compare(lastUses[entry1], lastUses[entry2]);
+            }
+        });
+        for (int i = 0; i < order.length && size > maxSize; i++) {
+            long length = entries[order[i]].length();
+            if (entries[order[i]].delete()) size -= length;
+        }
+    }
+
+    private File[] entries() {
+        File[] entries = dir.listFiles();
+        if (entries == null) return new File[0];
+        List<File> cached = new ArrayList<>();
+        for (File entry : entries) {
+            if (entry.getName().endsWith(TRACE_SUFFIX) || entry.getName().endsWith(CONTACTS_SUFFIX)) cached.add(entry);
+        }
+        return cached.toArray(new File[0]);
+    }
+
+    private File entry(String key, String suffix) {
+        return new File(dir, key + suffix);
+    }
+
+    /**
+     * Computes the key of a trace file from its identity (and the binary trace version)
+     */
+    private static String key(File file) throws IOException {
+        return hash("trace " + MappedCoordinateStore.VERSION + "\n" + identity(file));
+    }
+
+    /**
+     * Computes the key of a contact trace from the identity of all the source files and the contact parameters
+     */
+    private static String key(File source, ContactParameters parameters) throws IOException {
+        StringBuilder key = new StringBuilder("contacts " + ContactWriter.VERSION + "\n");
+        if (source.isFile()) {
+            key.append(identity(source));
+        } else {
+            for (File file : TraceReader.listFiles(source)) key.append(identity(file));
+        }
+        return hash(key.append(parameters).toString());
+    }
+
+    private static String identity(File file) throws IOException {
+        return file.getCanonicalPath() + " " + file.length() + " " + file.lastModified() + "\n";
+    }
+
+    private static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 16; i++) hex.append(String.format("%02x", digest[i]));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // SHA-256 is required in every JVM
+        }
+    }
+
+    private static ColumnarCoordinateStore read(File entry) throws IOException {
+        MappedCoordinateStore mapped = new MappedCoordinateStore(entry);
+        ColumnarCoordinateStore coordinates = new ColumnarCoordinateStore(mapped.size());
+        for (int i = 0; i < mapped.size(); i++) {
+            coordinates.add(mapped.getTaxiNumber(i), mapped.getTaxiTimestamp(i),
+                    mapped.getTaxiLongitude(i), mapped.getTaxiLatitude(i),
+                    mapped.getTaxiSpeed(i), mapped.getTaxiDirection(i), mapped.getTaxiStatus(i));
+        }
+        return coordinates;
+    }
+
+    private static void publish(File temporary, File entry) throws IOException {
+        try {
+            Files.move(temporary.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary.toPath());
+        }
+    }
+
+    private static void touch(File entry) {
+        entry.setLastModified(System.currentTimeMillis());
+    }
+
+    private static void parse(List<Callable<Void>> parsers, int nbThreads) throws IOException, ParseException {
+        ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+        try {
+            for (Future<Void> future : executor.invokeAll(parsers)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            if (e.getCause() instanceof ParseException) throw (ParseException) e.getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads the taxi trace files with a byte-level parser
+ *
+ * The input lines have to follow this format (blanks are allowed around the fields)
+ * (int) taxi number, (Date) yyyy-MM-dd HH:mm:ss, (double) longitude, (double) latitude, (int) speed, (int) direction degree, (int) status
+ *
+ * A reader reuses its buffer and its date computations from one file to the other,
+ * so it must not be shared between threads.
+ */
+public class TraceReader {
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    // highest mantissa exactly represented by a double
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private byte[] buffer = new byte[1 << 16];
+    private int position;
+    private int limit;
+
+    private Calendar calendar = Calendar.getInstance();
+    private DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    private long lastHour = -1;
+    private long lastHourTimestamp;
+    private File clampedFile; // last file reported with a clamped coordinate
+
+    /**
+     * Recursively lists the files of a directory (in name order)
+     *
+     * @param dir the input directory
+     * @return the files
+     */
+    public static List<File> listFiles(File dir) {
+        List<File> files = new ArrayList<>();
+        listFiles(dir, files);
+        return files;
+    }
+
+    private static void listFiles(File dir, List<File> files) {
+        File[] entries = dir.listFiles();
+        if (entries == null) return;
+        Arrays.sort(entries);
+        for (File entry : entries) {
+            if (entry.isDirectory()) {
+                listFiles(entry, files);
+            } else {
+                files.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Reads several files in parallel and sorts their coordinates once
+     *
+     * Each thread appends the coordinates of its files into its own store,
+     * the stores are then concatenated in file order (so that duplicated coordinates
+     * are solved as with a sequential reading) before the final sort.
+     *
+     * @param files the input files
+     * @param nbThreads the number of reading threads
+     * @return the sorted coordinates
+     * @throws IOException
+     * @throws ParseException
+     */
+    public static ColumnarCoordinateStore read(final List<File> files, int nbThreads) throws IOException, ParseException {
+        final int[] fileWorkers = new int[files.size()];
+        final int[] fileOffsets = new int[files.size()];
+        final int[] fileLengths = new int[files.size()];
+        final ColumnarCoordinateStore[] workerStores = new ColumnarCoordinateStore[nbThreads];
+        final AtomicInteger nextFile = new AtomicInteger();
+        final AtomicInteger nbRead = new AtomicInteger();
+        final int step = Math.max(1, files.size() / 10);
+        List<Callable<Void>> workers = new ArrayList<>();
+        for (int i = 0; i < nbThreads; i++) {
+            final int worker = i;
+            workers.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    TraceReader reader = new TraceReader();
+                    ColumnarCoordinateStore store = new ColumnarCoordinateStore();
+                    workerStores[worker] = store;
+                    int file;
+                    while ((file = nextFile.getAndIncrement()) < files.size()) {
+                        fileWorkers[file] = worker;
+                        fileOffsets[file] = store.size();
+                        reader.readFile(files.get(file), store);
+                        fileLengths[file] = store.size() - fileOffsets[file];
+                        int done = nbRead.incrementAndGet();
+                        if (Trace.VERBOSE && (files.size() - done) % step == 0)
+                            System.out.print((files.size() - done) * 10 / files.size() + "...");
+                    }
+                    return null;
+                }
+            });
+        }
+        Metrics.Timer timer = Metrics.start(Metrics.Phase.PARSE);
+        ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+        try {
+            for (Future<Void> future : executor.invokeAll(workers)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            if (e.getCause() instanceof ParseException) throw (ParseException) e.getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdown();
+            timer.stop();
+        }
+        timer = Metrics.start(Metrics.Phase.INDEX);
+        int size = 0;
+        for (int length : fileLengths) size += length;
+        ColumnarCoordinateStore taxiCoordinates = new ColumnarCoordinateStore(size);
+        for (int file = 0; file < files.size(); file++) {
+            taxiCoordinates.addAll(workerStores[fileWorkers[file]], fileOffsets[file], fileLengths[file]);
+        }
+        taxiCoordinates.sort();
+        timer.stop();
+        return taxiCoordinates;
+    }
+
+    /**
+     * Appends the taxi coordinates of a file to a store
+     *
+     * @param file the input file
+     * @param taxiCoordinates the store where to append the coordinates
+     * @throws IOException
+     * @throws ParseException
+     */
+    public void readFile(File file, ColumnarCoordinateStore taxiCoordinates) throws IOException, ParseException {
+        try (InputStream in = new FileInputStream(file)) {
+            limit = 0;
+            int read;
+            while ((read = in.read(buffer, limit, buffer.length - limit)) != -1) {
+                limit += read;
+                if (limit == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+        }
+        parseLines(file, 0, taxiCoordinates);
+    }
+
+    /**
+     * Appends the taxi coordinates of the complete lines of a file chunk to a store,
+     * so that a file can be read piece by piece without keeping it open
+     *
+     * @param file the input file
+     * @param offset the position of the chunk in the file (the beginning of a line)
+     * @param length the maximal length of the chunk (extended if a single line is longer)
+     * @param taxiCoordinates the store where to append the coordinates
+     * @return the position following the last line read, -1 if the end of the file was already reached
+     * @throws IOException
+     * @throws ParseException
+     */
+    public long readChunk(File file, long offset, int length, ColumnarCoordinateStore taxiCoordinates) throws IOException, ParseException {
+        boolean endOfFile = false;
+        limit = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(offset);
+            while (true) {
+                if (buffer.length < length) buffer = Arrays.copyOf(buffer, length);
+                int read = raf.read(buffer, limit, length - limit);
+                if (read == -1) {
+                    endOfFile = true;
+                    break;
+                }
+                limit += read;
+                if (limit == length) {
+                    if (lastLineEnd() > 0) break;
+                    length *= 2;
+                }
+            }
+        }
+        if (limit == 0) return -1;
+        if (!endOfFile) limit = lastLineEnd();
+        parseLines(file, offset, taxiCoordinates);
+        return offset + limit;
+    }
+
+    private int lastLineEnd() {
+        for (int i = limit - 1; i >= 0; i--) {
+            if (buffer[i] == '\n') return i + 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Parses the lines of the buffer up to the limit
+     *
+     * @param file the input file (for error messages)
+     * @param offset the position of the buffer in the file (for error messages)
+     * @param taxiCoordinates the store where to append the coordinates
+     * @throws ParseException
+     */
+    private void parseLines(File file, long offset, ColumnarCoordinateStore taxiCoordinates) throws ParseException {
+        position = 0;
+        int line = 1;
+        try {
+            while (position < limit) {
+                skipBlanks();
+                if (position >= limit) break;
+                if ((buffer[position] == '\n' || buffer[position] == '\r')) {
+                    position++;
+                    if (buffer[position - 1] == '\n') line++;
+                    continue;
+                }
+                int taxiNumber = (int) parseLong();
+                expect(',');
+                long taxiTimestamp = parseTimestamp();
+                expect(',');
+                double taxiLongitude = parseDouble();
+                expect(',');
+                double taxiLatitude = parseDouble();
+                expect(',');
+                int taxiSpeed = (int) parseLong();
+                expect(',');
+                int taxiDirection = (int) parseLong();
+                expect(',');
+                int taxiStatus = (int) parseLong();
+                skipBlanks();
+                if (position < limit && buffer[position] == '\r') position++;
+                if (position < limit) expect('\n');
+                if (!ColumnarCoordinateStore.fits(taxiSpeed, taxiDirection, taxiStatus)) clamped(file, offset, line);
+                taxiCoordinates.add(taxiNumber, taxiTimestamp, taxiLongitude, taxiLatitude, taxiSpeed, taxiDirection, taxiStatus);
+                line++;
+            }
+        } catch (ParseException | IllegalArgumentException e) {
+            throw new ParseException(location(file, offset, line) + ": " + e.getMessage(), position);
+        }
+    }
+
+    /**
+     * Counts a coordinate whose speed, direction or status is out of range, and reports the first one of each file
+     */
+    private void clamped(File file, long offset, int line) {
+        Metrics.count(Metrics.Counter.CLAMPED_RECORDS, 1);
+        if (Trace.VERBOSE && !file.equals(clampedFile)) {
+            clampedFile = file;
+            System.out.println(location(file, offset, line) + ": speed, direction or status out of range, clamped");
+        }
+    }
+
+    private static String location(File file, long offset, int line) {
+        return offset == 0 ? file + ":" + line : file + "@" + offset + ":" + line;
+    }
+
+    private void skipBlanks() {
+        while (position < limit && (buffer[position] == ' ' || buffer[position] == '\t')) position++;
+    }
+
+    private void expect(char expected) throws ParseException {
+        skipBlanks();
+        if (position >= limit || buffer[position] != expected)
+            throw new ParseException("'" + expected + "' expected", position);
+        position++;
+    }
+
+    private long parseLong() throws ParseException {
+        skipBlanks();
+        boolean negative = position < limit && buffer[position] == '-';
+        if (negative) position++;
+        int start = position;
+        long value = 0;
+        while (position < limit && buffer[position] >= '0' && buffer[position] <= '9') {
+            value = value * 10 + (buffer[position++] - '0');
+        }
+        if (position == start || position - start > 18) throw new ParseException("integer expected", position);
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses a decimal number
+     *
+     * A mantissa and a power of ten both exactly represented by a double give
+     * a correctly rounded quotient, i.e. the same value as Double.parseDouble.
+     * Other numbers are delegated to Double.parseDouble.
+     */
+    private double parseDouble() throws ParseException {
+        skipBlanks();
+        int start = position;
+        boolean negative = position < limit && buffer[position] == '-';
+        if (negative || (position < limit && buffer[position] == '+')) position++;
+        long mantissa = 0;
+        int nbDigits = 0;
+        int nbDecimals = 0;
+        boolean decimals = false;
+        while (position < limit) {
+            byte b = buffer[position];
+            if (b >= '0' && b <= '9') {
+                if (mantissa < MAX_EXACT_MANTISSA) mantissa = mantissa * 10 + (b - '0');
+                nbDigits++;
+                if (decimals) nbDecimals++;
+            } else if (b == '.' && !decimals) {
+                decimals = true;
+            } else {
+                break;
+            }
+            position++;
+        }
+        if (nbDigits == 0) throw new ParseException("number expected", position);
+        if (position < limit && (buffer[position] == 'e' || buffer[position] == 'E')
+                || mantissa >= MAX_EXACT_MANTISSA || nbDecimals >= POWERS_OF_TEN.length) {
+            while (position < limit && buffer[position] != ',' && buffer[position] != '\n') position++;
+            try {
+                return Double.parseDouble(new String(buffer, start, position - start, StandardCharsets.US_ASCII).trim());
+            } catch (NumberFormatException e) {
+                throw new ParseException("number expected", start);
+            }
+        }
+        double value = mantissa / POWERS_OF_TEN[nbDecimals];
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses a yyyy-MM-dd HH:mm:ss date in the default time zone, as SimpleDateFormat does
+     *
+     * The timestamp of the beginning of the hour is computed once for all the following lines
+     * of the same day and hour (i.e. the same yyyy-MM-dd HH prefix).
+     *
+     * @return the timestamp in seconds since the epoch
+     */
+    private long parseTimestamp() throws ParseException {
+        skipBlanks();
+        int start = position;
+        if (position + 19 <= limit
+                && buffer[position + 4] == '-' && buffer[position + 7] == '-' && buffer[position + 10] == ' '
+                && buffer[position + 13] == ':' && buffer[position + 16] == ':') {
+            int year = digits(position, 4);
+            int month = digits(position + 5, 2);
+            int day = digits(position + 8, 2);
+            int hour = digits(position + 11, 2);
+            int minute = digits(position + 14, 2);
+            int second = digits(position + 17, 2);
+            if (year >= 0 && month >= 1 && month <= 12 && day >= 1 && day <= 31 && hour >= 0 && hour < 24
+                    && minute >= 0 && minute < 60 && second >= 0 && second < 60) {
+                position += 19;
+                long hourKey = ((year * 100L + month) * 100 + day) * 100 + hour;
+                if (hourKey != lastHour) {
+                    calendar.clear();
+                    calendar.set(year, month - 1, day, hour, 0, 0);
+                    lastHourTimestamp = calendar.getTimeInMillis() / 1000;
+                    lastHour = hourKey;
+                }
+                return lastHourTimestamp + minute * 60 + second;
+            }
+        }
+        // falls back to the (lenient) date format for unusual dates
+        while (position < limit && buffer[position] != ',' && buffer[position] != '\n') position++;
+        return dateFormat.parse(new String(buffer, start, position - start, StandardCharsets.US_ASCII).trim()).getTime() / 1000;
+    }
+
+    private int digits(int from, int length) {
+        int value = 0;
+        for (int i = from; i < from + length; i++) {
+            if (buffer[i] < '0' || buffer[i] > '9') return -1;
+            value = value * 10 + (buffer[i] - '0');
+        }
+        return value;
+    }
+}
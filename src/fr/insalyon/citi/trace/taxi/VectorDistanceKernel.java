@@ -0,0 +1,82 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector API evaluation of the blocks of BatchDistanceKernel
+ * (only loaded when the jdk.incubator.vector module is available)
+ *
+ * The bitmask is built from the sign of (threshold - value) of each lane, shifted to the lane position,
+ * rather than with VectorMask.toLong which is not an intrinsic on every JDK.
+ */
+class VectorDistanceKernel {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Long> BIT_SPECIES = SPECIES.withLanes(long.class);
+    private static final LongVector LANES = LongVector.zero(BIT_SPECIES).addIndex(1);
+
+    static long inRange(boolean chord, double[] query,
+                        double[] values0, double[] values1, double[] values2, int length, double threshold) {
+        DoubleVector query0 = DoubleVector.broadcast(SPECIES, query[0]);
+        DoubleVector query1 = DoubleVector.broadcast(SPECIES, query[1]);
+        DoubleVector query2 = DoubleVector.broadcast(SPECIES, query[2]);
+        DoubleVector thresholds = DoubleVector.broadcast(SPECIES, threshold);
+        LongVector bits = LongVector.zero(BIT_SPECIES);
+        int i = 0;
+        int bound = SPECIES.loopBound(length);
+        // one loop per metric (no vector merged across branches, so that the vectors stay in registers),
+        // with the same operations in the same order as the scalar evaluation
+        if (chord) {
+            for (; i < bound; i += SPECIES.length()) {
+                DoubleVector d0 = DoubleVector.fromArray(SPECIES, values0, i).sub(query0);
+                DoubleVector d1 = DoubleVector.fromArray(SPECIES, values1, i).sub(query1);
+                DoubleVector d2 = DoubleVector.fromArray(SPECIES, values2, i).sub(query2);
+                DoubleVector value = d0.mul(d0).add(d1.mul(d1)).add(d2.mul(d2));
+                bits = bits.or(inRangeBits(thresholds.sub(value), i));
+            }
+        } else {
+            for (; i < bound; i += SPECIES.length()) {
+                DoubleVector d0 = DoubleVector.fromArray(SPECIES, values0, i).sub(query0);
+                DoubleVector d1 = DoubleVector.fromArray(SPECIES, values1, i).sub(query1);
+                DoubleVector value = d0.mul(d0).add(DoubleVector.fromArray(SPECIES, values2, i).mul(query2).mul(d1).mul(d1));
+                bits = bits.or(inRangeBits(thresholds.sub(value), i));
+            }
+        }
+        return bits.reduceLanes(VectorOperators.OR)
+                | BatchDistanceKernel.inRange(chord, query, values0, values1, values2, i, length, threshold);
+    }
+
+    /**
+     * Sets the bit of each lane whose margin (threshold - value) is positive or null,
+     * i.e. whose value is at most the threshold (a difference of distinct doubles is never null)
+     */
+    private static LongVector inRangeBits(DoubleVector margins, int offset) {
+        return margins.reinterpretAsLongs()
+                .lanewise(VectorOperators.LSHR, 63)
+                .lanewise(VectorOperators.XOR, 1)
+                .lanewise(VectorOperators.LSHL, LANES.add(offset));
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+/**
+ * Keeps only a sliding time window of the taxi coordinates in a ring buffer
+ *
+ * Indexes keep growing with the appended coordinates, but only the coordinates
+ * from the last released index are still available (and binary searched).
+ * The indexes wrap around after 2^32 coordinates (e.g. a month-long stream):
+ * they are only compared by their difference, the window being far shorter.
+ */
+public class WindowCoordinateStore implements CoordinateStore {
+
+    private long[] taxiTimestamps;
+    private int[] taxiNumbers;
+    private double[] taxiLongitudes;
+    private double[] taxiLatitudes;
+    private int[] taxiStates;
+    private int first;
+    private int end;
+    private int maxLength;
+
+    public WindowCoordinateStore() {
+        this(1024);
+    }
+
+    /**
+     * @param capacity the initial capacity (rounded up to a power of two)
+     */
+    public WindowCoordinateStore(int capacity) {
+        this(capacity, 0);
+    }
+
+    /**
+     * @param capacity the initial capacity (rounded up to a power of two)
+     * @param index the index of the first coordinate
+     */
+    WindowCoordinateStore(int capacity, int index) {
+        allocate(Integer.highestOneBit(Math.max(2, capacity - 1)) << 1);
+        this.first = index;
+        this.end = index;
+        this.maxLength = 0;
+    }
+
+    private void allocate(int capacity) {
+        taxiTimestamps = new long[capacity];
+        taxiNumbers = new int[capacity];
+        taxiLongitudes = new double[capacity];
+        taxiLatitudes = new double[capacity];
+        taxiStates = new int[capacity];
+    }
+
+    /**
+     * Appends a coordinate (it has to follow the previous ones in time order)
+     *
+     * @return the index of the coordinate
+     */
+    public int add(int taxiNumber, long taxiTimestamp, double taxiLongitude, double taxiLatitude,
+                   int taxiSpeed, int taxiDirection, int taxiStatus) {
+        if (end - first == taxiTimestamps.length) grow();
+        set(end, taxiNumber, taxiTimestamp, taxiLongitude, taxiLatitude, taxiSpeed, taxiDirection, taxiStatus);
+        maxLength = Math.max(maxLength, end + 1 - first);
+        return end++;
+    }
+
+    /**
+     * Replaces an available coordinate
+     *
+     * @param index of the coordinate
+     */
+    public void set(int index, int taxiNumber, long taxiTimestamp, double taxiLongitude, double taxiLatitude,
+                    int taxiSpeed, int taxiDirection, int taxiStatus) {
+        int slot = index & (taxiTimestamps.length - 1);
+        taxiTimestamps[slot] = taxiTimestamp;
+        taxiNumbers[slot] = taxiNumber;
+        taxiLongitudes[slot] = taxiLongitude;
+        taxiLatitudes[slot] = taxiLatitude;
+        taxiStates[slot] = ColumnarCoordinateStore.pack(taxiSpeed, taxiDirection, taxiStatus);
+    }
+
+    /**
+     * Releases the coordinates before an index
+     *
+     * @param index of the first coordinate to keep
+     */
+    public void release(int index) {
+        if (index - first > 0) first = index - end > 0 ? end : index;
+    }
+
+    /**
+     * Gets the index of the first available coordinate
+     *
+     * @return the index
+     */
+    public int getFirst() {
+        return first;
+    }
+
+    /**
+     * Gets the highest number of coordinates kept at the same time
+     *
+     * @return the number of coordinates
+     */
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    private void grow() {
+        long[] timestamps = taxiTimestamps;
+        int[] numbers = taxiNumbers;
+        double[] longitudes = taxiLongitudes;
+        double[] latitudes = taxiLatitudes;
+        int[] states = taxiStates;
+        int mask = timestamps.length - 1;
+        allocate(timestamps.length * 2);
+        int newMask = taxiTimestamps.length - 1;
+        for (int index = first; index != end; index++) {
+            taxiTimestamps[index & newMask] = timestamps[index & mask];
+            taxiNumbers[index & newMask] = numbers[index & mask];
+            taxiLongitudes[index & newMask] = longitudes[index & mask];
+            taxiLatitudes[index & newMask] = latitudes[index & mask];
+            taxiStates[index & newMask] = states[index & mask];
+        }
+    }
+
+    /**
+     * Gets the index following the last appended coordinate
+     *
+     * @return the number of coordinates appended since the beginning (modulo 2^32)
+     */
+    @Override
+    public int size() {
+        return end;
+    }
+
+    @Override
+    public int getTaxiNumber(int index) {
+        return taxiNumbers[index & (taxiNumbers.length - 1)];
+    }
+
+    @Override
+    public long getTaxiTimestamp(int index) {
+        return taxiTimestamps[index & (taxiTimestamps.length - 1)];
+    }
+
+    @Override
+    public double getTaxiLongitude(int index) {
+        return taxiLongitudes[index & (taxiLongitudes.length - 1)];
+    }
+
+    @Override
+    public double getTaxiLatitude(int index) {
+        return taxiLatitudes[index & (taxiLatitudes.length - 1)];
+    }
+
+    @Override
+    public int getTaxiSpeed(int index) {
+        return ColumnarCoordinateStore.unpackSpeed(taxiStates[index & (taxiStates.length - 1)]);
+    }
+
+    @Override
+    public int getTaxiDirection(int index) {
+        return ColumnarCoordinateStore.unpackDirection(taxiStates[index & (taxiStates.length - 1)]);
+    }
+
+    @Override
+    public int getTaxiStatus(int index) {
+        return ColumnarCoordinateStore.unpackStatus(taxiStates[index & (taxiStates.length - 1)]);
+    }
+
+    @Override
+    public long getMemorySize() {
+        return (long) taxiTimestamps.length * ColumnarCoordinateStore.BYTES_PER_RECORD;
+    }
+
+    /**
+     * Finds by binary search the first available coordinate greater than or equal to a coordinate id
+     * (the released coordinates are not searched)
+     *
+     * @param taxiTimestamp the timestamp in seconds
+     * @param taxiNumber the id of a taxi
+     * @return the index of the coordinate, size() if there is none
+     */
+    @Override
+    public int ceiling(long taxiTimestamp, int taxiNumber) {
+        // offsets from the first available coordinate, the indexes wrapping around
+        int low = 0;
+        int high = end - first;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compareTo(first + middle, taxiTimestamp, taxiNumber) < 0) low = middle + 1;
+            else high = middle;
+        }
+        return first + low;
+    }
+
+    /**
+     * Finds by binary search the first available coordinate strictly greater than a coordinate id
+     * (the released coordinates are not searched)
+     *
+     * @param taxiTimestamp the timestamp in seconds
+     * @param taxiNumber the id of a taxi
+     * @return the index of the coordinate, size() if there is none
+     */
+    @Override
+    public int higher(long taxiTimestamp, int taxiNumber) {
+        int low = 0;
+        int high = end - first;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compareTo(first + middle, taxiTimestamp, taxiNumber) <= 0) low = middle + 1;
+            else high = middle;
+        }
+        return first + low;
+    }
+}
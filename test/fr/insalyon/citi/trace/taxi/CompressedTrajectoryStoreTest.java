@@ -0,0 +1,125 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static fr.insalyon.citi.trace.taxi.TestTraces.EXAMPLE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the compressed blocks (varint and zigzag deltas) decode into the original coordinates
+ */
+public class CompressedTrajectoryStoreTest {
+
+    private static void assertSameCoordinates(CoordinateStore expected, CoordinateStore actual) {
+        assertEquals("trace length", expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals("taxi " + i, expected.getTaxiNumber(i), actual.getTaxiNumber(i));
+            assertEquals("timestamp " + i, expected.getTaxiTimestamp(i), actual.getTaxiTimestamp(i));
+            assertEquals("longitude " + i, Double.doubleToLongBits(expected.getTaxiLongitude(i)),
+                    Double.doubleToLongBits(actual.getTaxiLongitude(i)));
+            assertEquals("latitude " + i, Double.doubleToLongBits(expected.getTaxiLatitude(i)),
+                    Double.doubleToLongBits(actual.getTaxiLatitude(i)));
+            assertEquals("speed " + i, expected.getTaxiSpeed(i), actual.getTaxiSpeed(i));
+            assertEquals("direction " + i, expected.getTaxiDirection(i), actual.getTaxiDirection(i));
+            assertEquals("status " + i, expected.getTaxiStatus(i), actual.getTaxiStatus(i));
+        }
+    }
+
+    private static ColumnarCoordinateStore extract(CoordinateStore taxiCoordinates, long from, long to) {
+        ColumnarCoordinateStore extracted = new ColumnarCoordinateStore();
+        for (int i = 0; i < taxiCoordinates.size(); i++) {
+            long timestamp = taxiCoordinates.getTaxiTimestamp(i);
+            if (timestamp < from || timestamp >= to) continue;
+            extracted.add(taxiCoordinates.getTaxiNumber(i), timestamp, taxiCoordinates.getTaxiLongitude(i),
+                    taxiCoordinates.getTaxiLatitude(i), taxiCoordinates.getTaxiSpeed(i),
+                    taxiCoordinates.getTaxiDirection(i), taxiCoordinates.getTaxiStatus(i));
+        }
+        extracted.sort();
+        return extracted;
+    }
+
+    @Test
+    public void exampleTrace() throws Exception {
+        Trace.VERBOSE = false;
+        CoordinateStore taxiCoordinates = Trace.fromDirectory(EXAMPLE).getTaxiCoordinates();
+        CompressedTrajectoryStore store = new CompressedTrajectoryStore(taxiCoordinates);
+        assertEquals(taxiCoordinates.size(), store.size());
+        assertTrue("compressed", store.getEncodedSize() < (long) taxiCoordinates.size() * MappedCoordinateStore.RECORD_SIZE);
+        assertSameCoordinates(taxiCoordinates, store.extract(Long.MIN_VALUE, Long.MAX_VALUE));
+        long first = taxiCoordinates.getTaxiTimestamp(0);
+        for (long from = first; from < first + 24 * 3600; from += 5000) {
+            assertSameCoordinates(extract(taxiCoordinates, from, from + 3600), store.extract(from, from + 3600));
+        }
+    }
+
+    @Test
+    public void extremeDeltas() {
+        // deltas of every sign and size: zigzag varints up to their longest encodings
+        ColumnarCoordinateStore taxiCoordinates = new ColumnarCoordinateStore();
+        long timestamp = 0;
+        for (int i = 0; i < 3 * CompressedTrajectoryStore.BLOCK_LENGTH; i++) {
+            timestamp += i % 7 == 0 ? 1L << 40 : i % 3;
+            boolean high = i % 2 == 0;
+            taxiCoordinates.add(1, timestamp, high ? 180 : -180, high ? 90 : -90,
+                    high ? 4095 : 0, high ? 0 : 4095, high ? 255 : 0);
+        }
+        taxiCoordinates.add(2, Long.MIN_VALUE / 2, 0, 0, 0, 0, 0);
+        taxiCoordinates.add(2, Long.MAX_VALUE / 2, 0, 0, 0, 0, 0);
+        taxiCoordinates.sort();
+        assertSameCoordinates(taxiCoordinates,
+                new CompressedTrajectoryStore(taxiCoordinates).extract(Long.MIN_VALUE, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void scaledAndRawCoordinates() {
+        Random random = new Random(1);
+        ColumnarCoordinateStore taxiCoordinates = new ColumnarCoordinateStore();
+        for (int taxi = 0; taxi < 3; taxi++) {
+            for (int i = 0; i < 2 * CompressedTrajectoryStore.BLOCK_LENGTH; i++) {
+                double longitude = 121 + random.nextInt(1000000) / 1e6; // scaled by 1e6
+                double latitude = 31 + random.nextInt(10000000) / 1e7; // scaled by 1e7
+                if (taxi == 2) latitude = 31 + random.nextDouble(); // raw doubles
+                taxiCoordinates.add(taxi, 1171756800L + i * 10, longitude, latitude,
+                        random.nextInt(4096), random.nextInt(4096), random.nextInt(256));
+            }
+        }
+        taxiCoordinates.sort();
+        CompressedTrajectoryStore store = new CompressedTrajectoryStore(taxiCoordinates);
+        assertSameCoordinates(taxiCoordinates, store.extract(Long.MIN_VALUE, Long.MAX_VALUE));
+    }
+
+    @Test
+    public void empty() {
+        ColumnarCoordinateStore taxiCoordinates = new ColumnarCoordinateStore();
+        CompressedTrajectoryStore store = new CompressedTrajectoryStore(taxiCoordinates);
+        assertEquals(0, store.getNbBlocks());
+        assertEquals(0, store.extract(Long.MIN_VALUE, Long.MAX_VALUE).size());
+        ContactBuffer contacts = new ContactBuffer();
+        store.generate(Long.MIN_VALUE, Long.MAX_VALUE, contacts);
+        assertEquals(0, contacts.size());
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static fr.insalyon.citi.trace.taxi.TestTraces.assertSameContacts;
+import static fr.insalyon.citi.trace.taxi.TestTraces.reference;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the contact index queries against a scan of the contact trace of the example trace
+ */
+public class ContactIndexTest {
+
+    private static final long HOUR = 3600 * 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ContactBuffer contacts;
+    private ContactIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        contacts = reference();
+        File file = folder.newFile("contacts.index");
+        ContactIndex.write(contacts, file, ContactIndex.DEFAULT_BUCKET_STEP);
+        index = new ContactIndex(file);
+    }
+
+    /**
+     * Scans the contacts of a taxi overlapping a period
+     */
+    private ContactBuffer scan(int taxi, long from, long to) {
+        ContactBuffer found = new ContactBuffer();
+        for (int i = 0; i < contacts.size(); i++) {
+            if (contacts.getTaxi1(i) != taxi && contacts.getTaxi2(i) != taxi) continue;
+            if (contacts.getStart(i) < to && contacts.getStop(i) >= from)
+                found.add(contacts.getTaxi1(i), contacts.getTaxi2(i), contacts.getStart(i), contacts.getStop(i));
+        }
+        return found;
+    }
+
+    private static ContactBuffer sorted(ContactBuffer buffer) {
+        buffer.sort();
+        return buffer;
+    }
+
+    @Test
+    public void size() {
+        assertEquals(contacts.size(), index.size());
+        long records = 0;
+        for (int taxi : index.getTaxis()) records += index.countOf(taxi);
+        assertEquals("each contact is recorded for both taxis", 2L * contacts.size(), records);
+    }
+
+    @Test
+    public void contactsOfWithoutBounds() {
+        for (int taxi : index.getTaxis()) {
+            ContactBuffer found = index.contactsOf(taxi, Long.MIN_VALUE, Long.MAX_VALUE);
+            assertEquals(index.countOf(taxi), found.size());
+            for (int i = 1; i < found.size(); i++) {
+                assertTrue("start order", found.getStart(i - 1) <= found.getStart(i));
+            }
+            assertSameContacts(scan(taxi, Long.MIN_VALUE, Long.MAX_VALUE), sorted(found));
+        }
+    }
+
+    @Test
+    public void contactsOfWithBounds() {
+        long first = index.getFirstBucket();
+        long last = index.getLastBucket();
+        for (int taxi : index.getTaxis()) {
+            for (long from = first - HOUR; from < last + HOUR; from += HOUR / 4) {
+                assertSameContacts(scan(taxi, from, from + HOUR), sorted(index.contactsOf(taxi, from, from + HOUR)));
+            }
+            assertSameContacts(scan(taxi, Long.MIN_VALUE, first + HOUR), sorted(index.contactsOf(taxi, Long.MIN_VALUE, first + HOUR)));
+            assertSameContacts(scan(taxi, last - HOUR, Long.MAX_VALUE), sorted(index.contactsOf(taxi, last - HOUR, Long.MAX_VALUE)));
+            assertEquals(0, index.contactsOf(taxi, last, Long.MAX_VALUE).size());
+            assertEquals(0, index.contactsOf(taxi, Long.MIN_VALUE, first).size());
+        }
+    }
+
+    @Test
+    public void contactsOfUnknownTaxi() {
+        assertEquals(0, index.contactsOf(-1, Long.MIN_VALUE, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    public void contactsBetween() {
+        int[] taxis = index.getTaxis();
+        for (int taxi1 : taxis) {
+            for (int taxi2 : taxis) {
+                ContactBuffer expected = new ContactBuffer();
+                for (int i = 0; i < contacts.size(); i++) {
+                    if ((contacts.getTaxi1(i) == taxi1 && contacts.getTaxi2(i) == taxi2)
+                            || (contacts.getTaxi1(i) == taxi2 && contacts.getTaxi2(i) == taxi1))
+                        expected.add(contacts.getTaxi1(i), contacts.getTaxi2(i), contacts.getStart(i), contacts.getStop(i));
+                }
+                assertSameContacts(expected, sorted(index.contactsBetween(taxi1, taxi2)));
+            }
+        }
+    }
+
+    @Test
+    public void countPerBucket() {
+        long first = index.getFirstBucket();
+        long last = index.getLastBucket();
+        long[] counts = index.countPerBucket(first, last, HOUR);
+        long[] expected = new long[counts.length];
+        for (int i = 0; i < contacts.size(); i++) expected[(int) ((contacts.getStart(i) - first) / HOUR)]++;
+        assertArrayEquals(expected, counts);
+    }
+
+    @Test
+    public void countPerBucketOfTaxi() {
+        long first = index.getFirstBucket();
+        long last = index.getLastBucket();
+        for (int taxi : index.getTaxis()) {
+            long[] expected = new long[(int) ((last - first + HOUR - 1) / HOUR)];
+            for (int i = 0; i < contacts.size(); i++) {
+                if (contacts.getTaxi1(i) == taxi || contacts.getTaxi2(i) == taxi)
+                    expected[(int) ((contacts.getStart(i) - first) / HOUR)]++;
+            }
+            assertArrayEquals(expected, index.countPerBucket(taxi, first, last, HOUR));
+        }
+    }
+
+    @Test
+    public void buildFromContactTrace() throws Exception {
+        File trace = folder.newFile("contacts.txt");
+        ContactWriter.write(contacts, trace, ContactWriter.Format.TEXT, true);
+        File file = folder.newFile("built.index");
+        ContactIndex.build(trace, file, ContactIndex.DEFAULT_BUCKET_STEP);
+        ContactIndex built = new ContactIndex(file);
+        assertArrayEquals(index.getTaxis(), built.getTaxis());
+        for (int taxi : index.getTaxis()) {
+            assertSameContacts(index.contactsOf(taxi, Long.MIN_VALUE, Long.MAX_VALUE),
+                    built.contactsOf(taxi, Long.MIN_VALUE, Long.MAX_VALUE));
+        }
+    }
+}
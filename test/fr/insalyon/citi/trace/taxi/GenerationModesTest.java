@@ -0,0 +1,208 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static fr.insalyon.citi.trace.taxi.TestTraces.EXAMPLE;
+import static fr.insalyon.citi.trace.taxi.TestTraces.assertSameContacts;
+import static fr.insalyon.citi.trace.taxi.TestTraces.reference;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that every generation mode gives the contact trace of Trace.generate on the example trace
+ */
+public class GenerationModesTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CoordinateStore taxiCoordinates;
+
+    @Before
+    public void setUp() throws Exception {
+        Trace.VERBOSE = false;
+        reference();
+        taxiCoordinates = Trace.fromDirectory(EXAMPLE).getTaxiCoordinates();
+    }
+
+    @After
+    public void tearDown() {
+        Trace.DISTANCE_RANGE = 250;
+        Trace.TIME_RANGE = 30;
+        Trace.DISTANCE_METRIC = DistanceMetric.Standard.HAVERSINE;
+        Trace.EPISODE_GAP = -1;
+    }
+
+    @Test
+    public void singleThread() throws Exception {
+        Trace trace = new Trace(taxiCoordinates);
+        trace.generateSingleThread();
+        assertSameContacts(reference(), trace.getTaxiContacts());
+    }
+
+    @Test
+    public void grid() throws Exception {
+        Trace trace = new Trace(taxiCoordinates);
+        trace.generateGrid();
+        assertSameContacts(reference(), trace.getTaxiContacts());
+    }
+
+    @Test
+    public void binaryTrace() throws Exception {
+        File file = folder.newFile("trace.bin");
+        MappedCoordinateStore.write(taxiCoordinates, file, MappedCoordinateStore.DEFAULT_INDEX_STEP);
+        assertSameContacts(reference(), Trace.fromBinaryFile(file).getTaxiContacts());
+    }
+
+    @Test
+    public void streamedBinaryTrace() throws Exception {
+        File written = folder.newFile("written.bin");
+        File streamed = folder.newFile("streamed.bin");
+        MappedCoordinateStore.write(taxiCoordinates, written, MappedCoordinateStore.DEFAULT_INDEX_STEP);
+        new StreamingContactTraceGenerator(TraceReader.listFiles(EXAMPLE)).write(streamed, MappedCoordinateStore.DEFAULT_INDEX_STEP);
+        assertArrayEquals(java.nio.file.Files.readAllBytes(written.toPath()), java.nio.file.Files.readAllBytes(streamed.toPath()));
+    }
+
+    @Test
+    public void streaming() throws Exception {
+        StreamingContactTraceGenerator generator = new StreamingContactTraceGenerator(TraceReader.listFiles(EXAMPLE));
+        ContactBuffer contacts = new ContactBuffer();
+        generator.generate(contacts);
+        contacts.sort();
+        assertEquals(taxiCoordinates.size(), generator.getTraceLength());
+        assertSameContacts(reference(), contacts);
+    }
+
+    @Test
+    public void streamingReadAhead() throws Exception {
+        ExecutorService readers = Executors.newFixedThreadPool(2);
+        try {
+            ContactBuffer contacts = new ContactBuffer();
+            new StreamingContactTraceGenerator(TraceReader.listFiles(EXAMPLE), readers).generate(contacts);
+            contacts.sort();
+            assertSameContacts(reference(), contacts);
+        } finally {
+            readers.shutdown();
+        }
+    }
+
+    @Test
+    public void pipelined() throws Exception {
+        PipelinedContactTraceGenerator generator = new PipelinedContactTraceGenerator(TraceReader.listFiles(EXAMPLE), 2, 4);
+        ContactBuffer contacts = new ContactBuffer();
+        generator.generate(contacts);
+        contacts.sort();
+        assertSameContacts(reference(), contacts);
+    }
+
+    @Test
+    public void compressed() throws Exception {
+        CompressedTrajectoryStore store = new CompressedTrajectoryStore(taxiCoordinates);
+        ContactBuffer contacts = new ContactBuffer();
+        store.generate(Long.MIN_VALUE, Long.MAX_VALUE, contacts);
+        contacts.sort();
+        assertSameContacts(reference(), contacts);
+    }
+
+    @Test
+    public void dwells() throws Exception {
+        assertSameContacts(reference(), new DwellContactTraceGenerator(taxiCoordinates).generate());
+    }
+
+    @Test
+    public void outOfCore() throws Exception {
+        // chunks far shorter than the trace, so that contacts cross the chunk boundaries
+        OutOfCoreContactTraceGenerator generator = new OutOfCoreContactTraceGenerator(TraceReader.listFiles(EXAMPLE),
+                folder.newFolder("spill"), 4096, 2);
+        ContactBuffer contacts = new ContactBuffer();
+        generator.generate(contacts);
+        contacts.sort();
+        assertEquals(taxiCoordinates.size(), generator.getTraceLength());
+        assertSameContacts(reference(), contacts);
+    }
+
+    @Test
+    public void sweep() throws Exception {
+        List<ContactParameters> runs = Arrays.asList(ContactParameters.current(),
+                new ContactParameters(100, 60, DistanceMetric.Standard.HAVERSINE, -1));
+        ContactBuffer[] contacts = new SweepContactTraceGenerator(taxiCoordinates, runs).generate();
+        assertSameContacts(reference(), contacts[0]);
+        Trace.DISTANCE_RANGE = 100;
+        Trace.TIME_RANGE = 60;
+        assertSameContacts(new Trace(taxiCoordinates).getTaxiContacts(), contacts[1]);
+    }
+
+    @Test
+    public void sharded() throws Exception {
+        File file = folder.newFile("contacts.bin");
+        ShardedContactTraceGenerator generator = new ShardedContactTraceGenerator(EXAMPLE, folder.newFolder("work"), 3, null);
+        generator.generate(file, ContactWriter.Format.BINARY, false);
+        assertSameContacts(reference(), ContactIndex.readContactTrace(file));
+    }
+
+    @Test
+    public void cache() throws Exception {
+        TraceCache cache = new TraceCache(folder.newFolder("cache"), TraceCache.DEFAULT_MAX_SIZE);
+        ContactParameters parameters = ContactParameters.current();
+        assertNull(cache.getContacts(EXAMPLE, parameters));
+        Trace trace = cache.load(EXAMPLE);
+        assertEquals(0, cache.getNbHits());
+        cache.putContacts(EXAMPLE, parameters, trace.getTaxiContacts());
+        assertSameContacts(reference(), trace.getTaxiContacts());
+
+        trace = cache.load(EXAMPLE);
+        assertEquals(cache.getNbMisses(), cache.getNbHits());
+        assertSameContacts(reference(), trace.getTaxiContacts());
+        ContactBuffer cached = cache.getContacts(EXAMPLE, parameters);
+        assertNotNull(cached);
+        assertSameContacts(reference(), cached);
+        assertNull(cache.getContacts(EXAMPLE, new ContactParameters(100, 30, DistanceMetric.Standard.HAVERSINE, -1)));
+    }
+
+    @Test
+    public void episodes() throws Exception {
+        Trace.EPISODE_GAP = 120;
+        ContactBuffer expected = new Trace(taxiCoordinates).getTaxiContacts();
+        Trace grid = new Trace(taxiCoordinates);
+        grid.generateGrid();
+        assertSameContacts(expected, grid.getTaxiContacts());
+        File file = folder.newFile("episodes.bin");
+        Trace.streamContactTrace(EXAMPLE, file, ContactWriter.Format.BINARY, false);
+        ContactBuffer streamed = ContactIndex.readContactTrace(file);
+        streamed.sort();
+        assertSameContacts(expected, streamed);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static fr.insalyon.citi.trace.taxi.TestTraces.EXAMPLE;
+import static fr.insalyon.citi.trace.taxi.TestTraces.assertSameContacts;
+import static fr.insalyon.citi.trace.taxi.TestTraces.reference;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the example trace generated in several parts from checkpoints gives the contact trace of Trace.generate
+ */
+public class IncrementalContactTraceGeneratorTest {
+
+    private static final String[] BOUNDARIES = {"2007-02-18 08:00:00", "2007-02-18 16:00:00"};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File[] parts;
+    private File checkpoint;
+    private File contacts;
+
+    @Before
+    public void setUp() throws Exception {
+        Trace.VERBOSE = false;
+        parts = new File[BOUNDARIES.length + 1];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = split(i == 0 ? "" : BOUNDARIES[i - 1], i == BOUNDARIES.length ? "~" : BOUNDARIES[i]);
+        }
+        checkpoint = new File(folder.getRoot(), "contacts.checkpoint");
+        contacts = new File(folder.getRoot(), "contacts.bin");
+    }
+
+    @After
+    public void tearDown() {
+        Trace.TIME_RANGE = 30;
+    }
+
+    /**
+     * Copies the lines of the example files whose timestamp is in a period into a new directory
+     */
+    private File split(String from, String to) throws IOException {
+        File dir = folder.newFolder();
+        for (File file : TraceReader.listFiles(EXAMPLE)) {
+            List<String> lines = new ArrayList<>();
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                String timestamp = line.split(",")[1].trim();
+                if (timestamp.compareTo(from) >= 0 && timestamp.compareTo(to) < 0) lines.add(line);
+            }
+            Files.write(new File(dir, file.getName()).toPath(), lines, StandardCharsets.UTF_8);
+        }
+        return dir;
+    }
+
+    private void append(File part) throws IOException, ParseException {
+        new IncrementalContactTraceGenerator(TraceReader.listFiles(part), checkpoint)
+                .append(contacts, ContactWriter.Format.BINARY, false);
+    }
+
+    private ContactBuffer read() throws IOException {
+        ContactBuffer buffer = ContactIndex.readContactTrace(contacts);
+        int size = buffer.size();
+        buffer.sort();
+        assertEquals("each contact is appended once", size, buffer.size());
+        return buffer;
+    }
+
+    @Test
+    public void appendParts() throws Exception {
+        for (File part : parts) append(part);
+        assertTrue(checkpoint.isFile());
+        assertSameContacts(reference(), read());
+    }
+
+    @Test
+    public void resumeInterruptedGeneration() throws Exception {
+        append(parts[0]);
+        File previous = folder.newFile();
+        Files.copy(checkpoint.toPath(), previous.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        // interrupted between the writing of the contacts and the one of the checkpoint
+        append(parts[1]);
+        Files.copy(previous.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        try (FileOutputStream out = new FileOutputStream(contacts, true)) {
+            out.write(new byte[ContactWriter.RECORD_SIZE / 2]);
+        }
+        append(parts[1]);
+        append(parts[2]);
+        assertSameContacts(reference(), read());
+    }
+
+    @Test
+    public void rejectOtherParameters() throws Exception {
+        append(parts[0]);
+        Trace.TIME_RANGE = 60;
+        try {
+            append(parts[1]);
+            fail("checkpoint made with another time range");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void rejectCoordinatesBeforeCheckpoint() throws Exception {
+        append(parts[1]);
+        try {
+            append(parts[0]);
+            fail("coordinates before the checkpoint");
+        } catch (ParseException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Example trace of the tests directory, and its reference contact trace (Trace.generate)
+ */
+final class TestTraces {
+
+    static final File EXAMPLE = new File("tests/shanghai-taxi-070218-example");
+
+    private static ContactBuffer reference;
+
+    private TestTraces() {
+    }
+
+    /**
+     * Generates once the contact trace of the example trace with the multi-thread implementation
+     *
+     * @return the sorted contacts, with the default contact parameters
+     */
+    static synchronized ContactBuffer reference() throws IOException, ParseException {
+        if (reference == null) {
+            Trace.VERBOSE = false;
+            reference = Trace.fromDirectory(EXAMPLE).getTaxiContacts();
+        }
+        return reference;
+    }
+
+    static void assertSameContacts(ContactBuffer expected, ContactBuffer actual) {
+        for (int i = 0; i < Math.min(expected.size(), actual.size()); i++) {
+            assertEquals("contact " + i, expected.getContact(i), actual.getContact(i));
+        }
+        assertEquals("contact trace length", expected.size(), actual.size());
+    }
+}
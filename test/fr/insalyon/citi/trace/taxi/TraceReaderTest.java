@@ -0,0 +1,107 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the parsing of the taxi files, and the reporting of their invalid lines
+ */
+public class TraceReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        Trace.VERBOSE = false;
+        Trace.METRICS = true;
+        Metrics.reset();
+    }
+
+    @After
+    public void tearDown() {
+        Trace.METRICS = false;
+        Metrics.reset();
+    }
+
+    private File write(String... lines) throws Exception {
+        File file = folder.newFile();
+        Files.write(file.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+        return file;
+    }
+
+    @Test
+    public void parse() throws Exception {
+        File file = write("90349,2007-02-18 00:00:14,121.520600,31.201800, 98, 45,0",
+                "", " 90350 , 2007-02-18 00:01:03 , 121.5 , 31.2 , 102 , 4095 , 255 ");
+        ColumnarCoordinateStore taxiCoordinates = TraceReader.read(Collections.singletonList(file), 1);
+        assertEquals(2, taxiCoordinates.size());
+        assertEquals(90350, taxiCoordinates.getTaxiNumber(1));
+        assertEquals(taxiCoordinates.getTaxiTimestamp(0) + 49, taxiCoordinates.getTaxiTimestamp(1));
+        assertEquals(121.5, taxiCoordinates.getTaxiLongitude(1), 0);
+        assertEquals(31.2, taxiCoordinates.getTaxiLatitude(1), 0);
+        assertEquals(102, taxiCoordinates.getTaxiSpeed(1));
+        assertEquals(4095, taxiCoordinates.getTaxiDirection(1));
+        assertEquals(255, taxiCoordinates.getTaxiStatus(1));
+        assertEquals(0, Metrics.get(Metrics.Counter.CLAMPED_RECORDS));
+    }
+
+    @Test
+    public void countClampedRecords() throws Exception {
+        File file = write("90349,2007-02-18 00:00:14,121.520600,31.201800, 98, 45,0",
+                "90349,2007-02-18 00:01:03,121.534000,31.199300,9999, 45,0",
+                "90349,2007-02-18 00:01:19,121.538300,31.199800, 94, 45,300");
+        ColumnarCoordinateStore taxiCoordinates = TraceReader.read(Collections.singletonList(file), 1);
+        assertEquals(3, taxiCoordinates.size());
+        assertEquals(4095, taxiCoordinates.getTaxiSpeed(1));
+        assertEquals(255, taxiCoordinates.getTaxiStatus(2));
+        assertEquals(2, Metrics.get(Metrics.Counter.CLAMPED_RECORDS));
+    }
+
+    @Test
+    public void locateInvalidLine() throws Exception {
+        File file = write("90349,2007-02-18 00:00:14,121.520600,31.201800, 98, 45,0",
+                "90349,2007-02-18 00:01:03,121.534000,x,102, 45,0");
+        try {
+            TraceReader.read(Collections.singletonList(file), 1);
+            fail("invalid latitude");
+        } catch (ParseException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(file + ":2: "));
+        }
+    }
+}
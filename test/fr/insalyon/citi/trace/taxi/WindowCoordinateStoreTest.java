@@ -0,0 +1,105 @@
+/*
+ * Copyright 2013-2014 Institut National des Sciences Appliquées de Lyon (INSA-Lyon)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * @author Frédéric Le Mouël
+ */
+
+package fr.insalyon.citi.trace.taxi;
+
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static fr.insalyon.citi.trace.taxi.TestTraces.EXAMPLE;
+import static fr.insalyon.citi.trace.taxi.TestTraces.assertSameContacts;
+import static fr.insalyon.citi.trace.taxi.TestTraces.reference;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the sliding window when its indexes wrap around, and its binary searches
+ */
+public class WindowCoordinateStoreTest {
+
+    private CoordinateStore taxiCoordinates;
+
+    @Before
+    public void setUp() throws Exception {
+        Trace.VERBOSE = false;
+        taxiCoordinates = Trace.fromDirectory(EXAMPLE).getTaxiCoordinates();
+    }
+
+    private static int add(WindowCoordinateStore window, CoordinateStore taxiCoordinates, int i) {
+        return window.add(taxiCoordinates.getTaxiNumber(i), taxiCoordinates.getTaxiTimestamp(i),
+                taxiCoordinates.getTaxiLongitude(i), taxiCoordinates.getTaxiLatitude(i),
+                taxiCoordinates.getTaxiSpeed(i), taxiCoordinates.getTaxiDirection(i), taxiCoordinates.getTaxiStatus(i));
+    }
+
+    @Test
+    public void wrapAround() throws Exception {
+        // the indexes overflow in the middle of the trace
+        int start = Integer.MAX_VALUE - taxiCoordinates.size() / 2;
+        WindowCoordinateStore window = new WindowCoordinateStore(16, start);
+        GridContactTraceGenerator grid = new GridContactTraceGenerator(window, start, ContactParameters.current());
+        ContactBuffer contacts = new ContactBuffer();
+        for (int i = 0; i < taxiCoordinates.size(); i++) {
+            int index = add(window, taxiCoordinates, i);
+            assertEquals(start + i, index);
+            grid.follow(index, contacts);
+            window.release(grid.getOldest());
+        }
+        contacts.sort();
+        assertSameContacts(reference(), contacts);
+    }
+
+    @Test
+    public void search() {
+        int start = Integer.MAX_VALUE - 1000;
+        WindowCoordinateStore window = new WindowCoordinateStore(16, start);
+        for (int i = 0; i < 5000; i++) {
+            add(window, taxiCoordinates, i);
+            if (i % 10 != 0) continue;
+            int first = Math.max(0, i - 300);
+            window.release(start + first);
+            for (int j = first; j <= i; j += 7) {
+                long timestamp = taxiCoordinates.getTaxiTimestamp(j);
+                int number = taxiCoordinates.getTaxiNumber(j);
+                assertEquals(start + expectedCeiling(first, i + 1, timestamp, number),
+                        window.ceiling(timestamp, number));
+                assertEquals(start + expectedHigher(first, i + 1, timestamp, number),
+                        window.higher(timestamp, number));
+                assertEquals(start + expectedCeiling(first, i + 1, timestamp, Integer.MIN_VALUE),
+                        window.ceiling(timestamp, Integer.MIN_VALUE));
+                assertEquals(start + expectedHigher(first, i + 1, timestamp, Integer.MAX_VALUE),
+                        window.higher(timestamp, Integer.MAX_VALUE));
+            }
+            assertEquals(start + first, window.ceiling(Long.MIN_VALUE, Integer.MIN_VALUE));
+            assertEquals(start + i + 1, window.higher(Long.MAX_VALUE, Integer.MAX_VALUE));
+        }
+    }
+
+    private int expectedCeiling(int from, int to, long timestamp, int number) {
+        int i = from;
+        while (i < to && taxiCoordinates.compareTo(i, timestamp, number) < 0) i++;
+        return i;
+    }
+
+    private int expectedHigher(int from, int to, long timestamp, int number) {
+        int i = from;
+        while (i < to && taxiCoordinates.compareTo(i, timestamp, number) <= 0) i++;
+        return i;
+    }
+}